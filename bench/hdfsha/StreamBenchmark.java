@@ -0,0 +1,153 @@
+package hdfsha;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost per byte of the data generator, the null sink and the copy loops.
+ *
+ * Every invocation moves {@link #BYTES} bytes, so the scores are in ns per
+ * byte. The local file system stands in for HDFS.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamBenchmark {
+
+    private static final int BYTES = 1024 * 1024;
+
+    private ClientTest client;
+    private FileSystem localFs;
+    private Path localFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        client = new ClientTest(new NamenodeLookupStatic("127.0.0.1"), 1, 1);
+        localFs = FileSystem.getLocal(new Configuration());
+        localFile = new Path(System.getProperty("java.io.tmpdir"),
+                "stream-benchmark-" + Thread.currentThread().getId());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        localFs.delete(localFile, false);
+        localFs.close();
+    }
+
+    /** Reads at most BYTES from the stream, one byte at a time */
+    private static int drain(InputStream in) throws IOException {
+        int sum = 0;
+        for (int i = 0; i < BYTES; i++) {
+            sum += in.read();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public int deadBeefRead() throws IOException {
+        return drain(new DeadBeefInputStream(1));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public int deadBeefBufferedRead() throws IOException {
+        return drain(new BufferedInputStream(new DeadBeefInputStream(1)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public void nullOutputWrite(Blackhole bh) throws IOException {
+        OutputStream out = new NullOutputStream();
+        for (int i = 0; i < BYTES; i++) {
+            out.write(i);
+        }
+        bh.consume(out);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public void doIOToNull() throws IOException {
+        client.doIO(new LimitedInputStream(new BufferedInputStream(
+                new DeadBeefInputStream(1)), BYTES), new NullOutputStream());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    @Threads(4)
+    public void doIOToNullThreads() throws IOException {
+        doIOToNull();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public void doIOToLocalFs() throws IOException {
+        OutputStream out = localFs.create(localFile, true);
+        try {
+            client.doIO(new LimitedInputStream(new BufferedInputStream(
+                    new DeadBeefInputStream(1)), BYTES), out);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    @Threads(4)
+    public void doIOToLocalFsThreads() throws IOException {
+        doIOToLocalFs();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES)
+    public void copyBytesToLocalFs() throws IOException {
+        IOUtils.copyBytes(new LimitedInputStream(new DeadBeefInputStream(1),
+                BYTES), localFs.create(localFile, true), 4096, true);
+    }
+
+    /**
+     * Stops after a number of bytes, so a whole 64 MB block is not needed
+     * per invocation
+     */
+    private static final class LimitedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return in.read();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package hdfsha;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.zookeeper.KeeperException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Overhead of the {@link Transaction} wrapper and latency of a namenode
+ * change notification, against a ZooKeeper server running in process.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZooKeeperBenchmark {
+
+    private static final String NAMENODE_PATH = "/namenode";
+
+    private LocalZooKeeperServer zookeeper;
+    private NamenodeLookupZooKeeper lookup;
+    private final AtomicLong changes = new AtomicLong();
+    private final Object notified = new Object();
+    private volatile String lastNotified;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException,
+            KeeperException {
+        zookeeper = new LocalZooKeeperServer(new File(
+                System.getProperty("java.io.tmpdir"), "zookeeper-benchmark"));
+        zookeeper.start();
+        zookeeper.publish(NAMENODE_PATH, "nn-0:8020");
+        lookup = new NamenodeLookupZooKeeper(zookeeper.getConnectString(), null);
+        lookup.setListener(new NamenodeChangedListener() {
+
+            @Override
+            public void namenodeChanged(String newAddress) {
+                synchronized (notified) {
+                    lastNotified = newAddress;
+                    notified.notifyAll();
+                }
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        lookup.shutdown();
+        zookeeper.shutdown();
+    }
+
+    @Benchmark
+    public byte[] rawGetData() throws KeeperException, InterruptedException {
+        return zookeeper.getClient().getData(NAMENODE_PATH, false, null);
+    }
+
+    @Benchmark
+    public byte[] transactionGetData() throws KeeperException,
+            InterruptedException {
+        return new GetDataTransaction(zookeeper.getClient(), NAMENODE_PATH,
+                null).invoke();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public byte[] transactionGetDataThreads() throws KeeperException,
+            InterruptedException {
+        return transactionGetData();
+    }
+
+    /**
+     * From the change of the znode to the listener being called
+     */
+    @Benchmark
+    public String listenerDispatch() throws KeeperException,
+            InterruptedException {
+        String address = "nn-" + changes.incrementAndGet() + ":8020";
+        synchronized (notified) {
+            zookeeper.publish(NAMENODE_PATH, address);
+            while (!address.equals(lastNotified)) {
+                notified.wait();
+            }
+        }
+        return lastNotified;
+    }
+}
@@ -0,0 +1,481 @@
+package hdfsha;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CodecPool;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.io.compress.CompressionOutputStream;
+import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * Compresses streams block by block with a Hadoop codec, on a pool of
+ * worker threads, so a single stream can use more than one core.
+ *
+ * Each block is written as its raw length, its compressed length and the
+ * compressed bytes. This framing is what allows blocks to be compressed and
+ * decompressed independently, but it also means files are only readable
+ * through {@link #decompress(InputStream)}, not by the plain codec.
+ *
+ * Raw blocks are leased from {@link BufferPool}. Raw and compressed bytes,
+ * the CPU time of the workers and the wall time are accumulated over every
+ * stream, for {@link #report()}. One instance is meant to serve every
+ * stream of a tool, and to be closed at its end to stop the workers.
+ */
+public class BlockCompression implements Closeable {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final byte[] NO_BLOCK = new byte[0];
+
+    private final CompressionCodec codec;
+    private final int blockSize;
+    private final int threads;
+    private final ExecutorService pool;
+
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong cpuNanos = new AtomicLong();
+    private final AtomicLong wallNanos = new AtomicLong();
+
+    /**
+     * @param codecName a codec name or class known to Hadoop, e.g. gzip or snappy
+     * @param threads the number of workers
+     * @param blockSize the raw size of each block
+     */
+    public BlockCompression(String codecName, int threads, int blockSize,
+            Configuration conf) {
+        this.codec = new CompressionCodecFactory(conf).getCodecByName(codecName);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown codec " + codecName);
+        }
+        this.threads = threads;
+        this.blockSize = blockSize;
+        this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "Compression-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Configured by <code>compression.codec</code>, <code>compression.threads</code>
+     * (default, the number of cores) and <code>compression.blockKB</code>
+     * (default 256)
+     * @return null if no codec is set
+     */
+    public static BlockCompression fromProperties(Configuration conf) {
+        String codec = System.getProperty("compression.codec");
+        if (codec == null) {
+            return null;
+        }
+        return new BlockCompression(codec,
+                Integer.getInteger("compression.threads",
+                        Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("compression.blockKB", 256) * 1024, conf);
+    }
+
+    /**
+     * @return the stream generators should use with compression, from
+     * <code>compression.compressibility</code> (default 0.5)
+     */
+    public static InputStream generator(long size) {
+        return new CompressibleInputStream(size,
+                Double.parseDouble(System.getProperty("compression.compressibility", "0.5")));
+    }
+
+    /**
+     * @param out where the framed, compressed blocks are written
+     */
+    public CompressedOutputStream compress(OutputStream out) {
+        return new CompressedOutputStream(out);
+    }
+
+    /**
+     * @param in a stream written by {@link #compress(OutputStream)}
+     */
+    public InputStream decompress(InputStream in) {
+        return new DecompressedInputStream(in);
+    }
+
+    private byte[] compressBlock(byte[] raw, int length) throws IOException {
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        Compressor compressor = CodecPool.getCompressor(codec);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+            CompressionOutputStream out = codec.createOutputStream(bytes, compressor);
+            out.write(raw, 0, length);
+            out.finish();
+            out.close();
+            return bytes.toByteArray();
+        } finally {
+            CodecPool.returnCompressor(compressor);
+            cpuNanos.addAndGet(THREADS.getCurrentThreadCpuTime() - cpuStart);
+        }
+    }
+
+    /**
+     * @return a pooled buffer holding the raw block up to its limit
+     */
+    private ByteBuffer decompressBlock(byte[] compressed, int rawLength) throws IOException {
+        long cpuStart = THREADS.getCurrentThreadCpuTime();
+        Decompressor decompressor = CodecPool.getDecompressor(codec);
+        ByteBuffer raw = BufferPool.get().acquire(false, rawLength);
+        boolean done = false;
+        try {
+            CompressionInputStream in = codec.createInputStream(
+                    new ByteArrayInputStream(compressed), decompressor);
+            new DataInputStream(in).readFully(raw.array(), 0, rawLength);
+            in.close();
+            done = true;
+            return raw;
+        } finally {
+            if (!done) {
+                BufferPool.get().release(raw);
+            }
+            CodecPool.returnDecompressor(decompressor);
+            cpuNanos.addAndGet(THREADS.getCurrentThreadCpuTime() - cpuStart);
+        }
+    }
+
+    private static <T> T get(Future<T> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            block.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Block (de)compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * Blocks are compressed in background, and written in order as they are
+     * done. A flush writes the blocks already compressed without waiting for
+     * the others, and never cuts the current block, so frequent flushes do
+     * not spoil the ratio. Call {@link #finish()} to write everything.
+     */
+    public final class CompressedOutputStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        private final Deque<Integer> pendingLengths = new ArrayDeque<Integer>();
+        private final long start = System.nanoTime();
+        private ByteBuffer block;
+        private int length = 0;
+        private boolean finished = false;
+
+        private CompressedOutputStream(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        private byte[] block() throws IOException {
+            if (block == null) {
+                block = BufferPool.get().acquire(false, blockSize);
+            }
+            return block.array();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            block()[length++] = (byte) b;
+            if (length == blockSize) {
+                submit();
+            }
+        }
+
+        @Override
+        public void write(byte[] buffer, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = Math.min(len, blockSize - length);
+                System.arraycopy(buffer, off, block(), length, count);
+                length += count;
+                off += count;
+                len -= count;
+                if (length == blockSize) {
+                    submit();
+                }
+            }
+        }
+
+        private void submit() throws IOException {
+            final ByteBuffer raw = block;
+            final int rawLength = length;
+            pending.add(pool.submit(new Callable<byte[]>() {
+
+                @Override
+                public byte[] call() throws IOException {
+                    try {
+                        return compressBlock(raw.array(), rawLength);
+                    } finally {
+                        BufferPool.get().release(raw);
+                    }
+                }
+            }));
+            pendingLengths.add(rawLength);
+            block = null;
+            length = 0;
+            // Bound the memory, and give backpressure to the writer
+            while (pending.size() > 2 * threads) {
+                writeHead();
+            }
+        }
+
+        private void writeHead() throws IOException {
+            byte[] compressed = get(pending.peek());
+            pending.remove();
+            int rawLength = pendingLengths.remove();
+            out.writeInt(rawLength);
+            out.writeInt(compressed.length);
+            out.write(compressed);
+            rawBytes.addAndGet(rawLength);
+            compressedBytes.addAndGet(compressed.length + 8);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            while (!pending.isEmpty() && pending.peek().isDone()) {
+                writeHead();
+            }
+            out.flush();
+        }
+
+        /**
+         * Compresses the last partial block, and writes and flushes every
+         * block. The underlying stream is left open.
+         */
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            if (length > 0) {
+                submit();
+            }
+            while (!pending.isEmpty()) {
+                writeHead();
+            }
+            out.flush();
+            finished = true;
+            wallNanos.addAndGet(System.nanoTime() - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                // Blocks still pending give their buffers back when done
+                pending.clear();
+                BufferPool.get().release(block);
+                block = null;
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads blocks ahead and decompresses them in background, as many as
+     * there are workers
+     */
+    private final class DecompressedInputStream extends FilterInputStream {
+
+        private final DataInputStream frames;
+        private final Deque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+        private final long start = System.nanoTime();
+        private ByteBuffer current;
+        private byte[] block = NO_BLOCK;
+        private int blockLength = 0;
+        private int position = 0;
+        private boolean eof = false;
+        private boolean accounted = false;
+
+        private DecompressedInputStream(InputStream in) {
+            super(in);
+            this.frames = new DataInputStream(in);
+        }
+
+        private void readAhead() throws IOException {
+            while (!eof && pending.size() < threads) {
+                final int rawLength;
+                try {
+                    rawLength = frames.readInt();
+                } catch (EOFException e) {
+                    eof = true;
+                    break;
+                }
+                final byte[] compressed = new byte[frames.readInt()];
+                frames.readFully(compressed);
+                compressedBytes.addAndGet(compressed.length + 8);
+                pending.add(pool.submit(new Callable<ByteBuffer>() {
+
+                    @Override
+                    public ByteBuffer call() throws IOException {
+                        return decompressBlock(compressed, rawLength);
+                    }
+                }));
+            }
+        }
+
+        /**
+         * @return false at the end of the stream
+         */
+        private boolean nextBlock() throws IOException {
+            while (position == blockLength) {
+                releaseCurrent();
+                readAhead();
+                if (pending.isEmpty()) {
+                    if (!accounted) {
+                        accounted = true;
+                        wallNanos.addAndGet(System.nanoTime() - start);
+                    }
+                    return false;
+                }
+                current = get(pending.peek());
+                pending.remove();
+                block = current.array();
+                blockLength = current.limit();
+                position = 0;
+                rawBytes.addAndGet(blockLength);
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextBlock()) {
+                return -1;
+            }
+            return block[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!nextBlock()) {
+                return -1;
+            }
+            int count = Math.min(len, blockLength - position);
+            System.arraycopy(block, position, buffer, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return blockLength - position;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && nextBlock()) {
+                int count = (int) Math.min(n - skipped, blockLength - position);
+                position += count;
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void releaseCurrent() {
+            if (current != null) {
+                BufferPool.get().release(current);
+                current = null;
+                block = NO_BLOCK;
+                blockLength = 0;
+                position = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            releaseCurrent();
+            // Decompressed blocks nobody will read, give their buffers back
+            for (Future<ByteBuffer> block : pending) {
+                try {
+                    BufferPool.get().release(get(block));
+                } catch (IOException e) {
+                    // Its buffer was already released
+                }
+            }
+            pending.clear();
+            super.close();
+        }
+    }
+
+    /**
+     * @return codec, ratio, CPU time of the workers and effective throughput,
+     * in raw MB per second of wall time
+     */
+    public String report() {
+        long raw = rawBytes.get();
+        long compressed = compressedBytes.get();
+        long wallMs = wallNanos.get() / 1000000;
+        return String.format(Locale.ENGLISH,
+                "codec=%s, threads=%d, blockKB=%d, rawBytes=%d, compressedBytes=%d, ratio=%f, cpuMs=%d, wallMs=%d, effectiveMBps=%f",
+                codec.getClass().getSimpleName(), threads, blockSize / 1024, raw,
+                compressed, compressed == 0 ? 0 : raw / (double) compressed,
+                cpuNanos.get() / 1000000, wallMs,
+                wallMs == 0 ? 0 : raw / (1024.0 * 1024.0) / (wallMs / 1000.0));
+    }
+
+    /**
+     * Clears the counters, e.g. between the write and the read of a file
+     */
+    public void reset() {
+        rawBytes.set(0);
+        compressedBytes.set(0);
+        cpuNanos.set(0);
+        wallNanos.set(0);
+    }
+
+    /**
+     * Stops the workers once the blocks already submitted are done, so their
+     * buffers still go back to the pool. Streams cannot be used afterwards.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,503 @@
+package hdfsha;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.hadoop.io.ByteBufferPool;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of heap and direct buffers shared by every transfer of the process,
+ * so memory stays flat however many workers run at once.
+ *
+ * Buffers come in power of two size classes, from 4 KB to 16 MB, and the
+ * memory held by the pool, leased or free, never goes over a cap
+ * (<code>bufferPool.capMB</code>, default 256). When the cap is reached
+ * free buffers of other classes are dropped, and if none is left the
+ * caller waits for a buffer to be released.
+ *
+ * Every leased buffer is tracked, so buffers released twice or never
+ * released are reported. Callers get a view of the pooled buffer, which
+ * the pool only references weakly: a view collected without having been
+ * released counts as leaked, and its memory is given up. With
+ * <code>bufferPool.trackStacks</code> the stack that acquired it is logged
+ * too. Holding a buffer for long, e.g. for a stream followed for days, is
+ * not a leak; buffers held for longer than <code>bufferPool.leakMs</code>
+ * (default 60 s) are only logged when the pool runs out of memory, to tell
+ * who holds it.
+ *
+ * <p><b>Sample code:</b></p>
+ *
+ * <pre>
+ * ByteBuffer buffer = BufferPool.get().acquire(true, 64 * 1024);
+ * try {
+ *     in.read(buffer);
+ * } finally {
+ *     BufferPool.get().release(buffer);
+ * }
+ * </pre>
+ */
+public class BufferPool implements ByteBufferPool {
+
+    private static final Logger LOG = Logger.getLogger(BufferPool.class);
+
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MAX_CLASS_SHIFT = 24;
+    private static final int CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+
+    private static BufferPool shared;
+
+    /**
+     * Who holds a buffer, and since when. It refers to the view given to the
+     * caller weakly and to the pooled buffer strongly.
+     */
+    private static final class Lease extends WeakReference<ByteBuffer> {
+        final ByteBuffer pooled;
+        final int key;
+        final String thread = Thread.currentThread().getName();
+        final long since = System.currentTimeMillis();
+        final Throwable stack;
+
+        Lease(ByteBuffer view, ByteBuffer pooled, ReferenceQueue<ByteBuffer> queue,
+                boolean trackStack) {
+            super(view, queue);
+            this.pooled = pooled;
+            this.key = System.identityHashCode(view);
+            this.stack = trackStack ? new Throwable("Acquired here") : null;
+        }
+    }
+
+    private final long capacity;
+    private final long leakMillis;
+    private final boolean trackStacks;
+
+    // Free buffers per size class, heap at 0 and direct at 1
+    private final List<List<ArrayDeque<ByteBuffer>>> free = new ArrayList<List<ArrayDeque<ByteBuffer>>>();
+    // Leases by identity hash of their view, which is not kept reachable
+    private final Map<Integer, List<Lease>> leased = new HashMap<Integer, List<Lease>>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+    private int outstanding = 0;
+
+    private long allocatedBytes = 0;
+    private long leasedBytes = 0;
+    private long peakLeasedBytes = 0;
+    private long acquires = 0;
+    private long hits = 0;
+    private long evictions = 0;
+    private long waits = 0;
+    private long waitNanos = 0;
+    private long badReleases = 0;
+    private long leaked = 0;
+
+    /**
+     * @param capacity the most memory held by the pool, in bytes
+     * @param leakMillis how long a buffer may be held before it is logged
+     * when the pool runs out of memory
+     * @param trackStacks whether to record where each buffer was acquired
+     */
+    public BufferPool(long capacity, long leakMillis, boolean trackStacks) {
+        this.capacity = capacity;
+        this.leakMillis = leakMillis;
+        this.trackStacks = trackStacks;
+        for (int direct = 0; direct < 2; direct++) {
+            List<ArrayDeque<ByteBuffer>> classes = new ArrayList<ArrayDeque<ByteBuffer>>();
+            for (int i = 0; i < CLASSES; i++) {
+                classes.add(new ArrayDeque<ByteBuffer>());
+            }
+            free.add(classes);
+        }
+    }
+
+    /**
+     * @return the pool of the process, configured by the properties
+     */
+    public static synchronized BufferPool get() {
+        if (shared == null) {
+            shared = new BufferPool(Long.getLong("bufferPool.capMB", 256) * 1024 * 1024,
+                    Long.getLong("bufferPool.leakMs", 60000),
+                    Boolean.getBoolean("bufferPool.trackStacks"));
+        }
+        return shared;
+    }
+
+    /**
+     * @return the index of the class for the size, or -1 if it is too big to
+     * be pooled
+     */
+    private static int sizeClass(int size) {
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+        return shift > MAX_CLASS_SHIFT ? -1 : shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Leases a buffer, waiting if the pool is at its cap
+     * @param direct whether the buffer is allocated out of the heap
+     * @param size the least capacity, which is also the limit of the buffer
+     * @return a cleared buffer, to be given back with {@link #release(ByteBuffer)}
+     */
+    public synchronized ByteBuffer acquire(boolean direct, int size)
+            throws InterruptedIOException {
+        expungeCollected();
+        int sizeClass = sizeClass(size);
+        int classSize = sizeClass < 0 ? size : 1 << (sizeClass + MIN_CLASS_SHIFT);
+        if (classSize > capacity) {
+            throw new IllegalArgumentException("Buffer of " + size
+                    + " bytes is over the pool cap of " + capacity);
+        }
+        acquires++;
+
+        ByteBuffer buffer = sizeClass < 0 ? null : free.get(direct ? 1 : 0)
+                .get(sizeClass).poll();
+        if (buffer != null) {
+            hits++;
+        } else {
+            while (allocatedBytes + classSize > capacity && !evictOne()) {
+                awaitRelease();
+                expungeCollected();
+            }
+            allocatedBytes += classSize;
+            buffer = direct ? ByteBuffer.allocateDirect(classSize)
+                    : ByteBuffer.allocate(classSize);
+        }
+
+        buffer.clear();
+        ByteBuffer view = buffer.duplicate();
+        view.limit(size);
+        Lease lease = new Lease(view, buffer, collected, trackStacks);
+        List<Lease> bucket = leased.get(lease.key);
+        if (bucket == null) {
+            bucket = new ArrayList<Lease>(1);
+            leased.put(lease.key, bucket);
+        }
+        bucket.add(lease);
+        outstanding++;
+        leasedBytes += buffer.capacity();
+        peakLeasedBytes = Math.max(peakLeasedBytes, leasedBytes);
+        return view;
+    }
+
+    /**
+     * @return the lease of the view, no longer tracked, or null if it was
+     * not leased
+     */
+    private Lease untrack(ByteBuffer view) {
+        List<Lease> bucket = leased.get(System.identityHashCode(view));
+        if (bucket != null) {
+            for (Lease lease : bucket) {
+                if (lease.get() == view) {
+                    untrack(lease);
+                    return lease;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the lease was not tracked anymore
+     */
+    private boolean untrack(Lease lease) {
+        List<Lease> bucket = leased.get(lease.key);
+        if (bucket == null) {
+            return false;
+        }
+        for (Iterator<Lease> it = bucket.iterator(); it.hasNext();) {
+            if (it.next() == lease) {
+                it.remove();
+                if (bucket.isEmpty()) {
+                    leased.remove(lease.key);
+                }
+                outstanding--;
+                leasedBytes -= lease.pooled.capacity();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Accounts the views collected without having been released. Their
+     * memory is dropped rather than reused, its array may still be in use.
+     */
+    private void expungeCollected() {
+        Reference<? extends ByteBuffer> reference;
+        while ((reference = collected.poll()) != null) {
+            Lease lease = (Lease) reference;
+            if (untrack(lease)) {
+                leaked++;
+                allocatedBytes -= lease.pooled.capacity();
+                LOG.warn("Buffer of " + lease.pooled.capacity() + " bytes acquired by "
+                        + lease.thread + " was never released", lease.stack);
+                notifyAll();
+            }
+        }
+    }
+
+    private void awaitRelease() throws InterruptedIOException {
+        waits++;
+        long start = System.nanoTime();
+        try {
+            wait(leakMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for buffer memory");
+        } finally {
+            waitNanos += System.nanoTime() - start;
+        }
+        if (System.nanoTime() - start >= leakMillis * 1000000L) {
+            LOG.warn("Waited " + leakMillis + " ms for buffer memory, " + report());
+            logLongLeases();
+        }
+    }
+
+    /**
+     * Drops a free buffer, the biggest one, to make room
+     * @return false if there was none
+     */
+    private boolean evictOne() {
+        for (int i = CLASSES - 1; i >= 0; i--) {
+            for (List<ArrayDeque<ByteBuffer>> classes : free) {
+                ByteBuffer buffer = classes.get(i).poll();
+                if (buffer != null) {
+                    allocatedBytes -= buffer.capacity();
+                    evictions++;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives a buffer back to the pool. It must not be used afterwards.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        Lease lease = untrack(buffer);
+        if (lease == null) {
+            badReleases++;
+            LOG.warn("Released a buffer that was not leased, or released twice",
+                    new Throwable("Released here"));
+            return;
+        }
+        lease.clear();
+        ByteBuffer pooled = lease.pooled;
+        int sizeClass = sizeClass(pooled.capacity());
+        if (sizeClass < 0) {
+            allocatedBytes -= pooled.capacity();
+        } else {
+            free.get(pooled.isDirect() ? 1 : 0).get(sizeClass).push(pooled);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Like {@link #acquire(boolean, int)}. The interface declares no
+     * exception, but an interrupt is still thrown as the
+     * InterruptedIOException: the callers are reads of Hadoop streams, which
+     * handle it as any other IOException.
+     */
+    @Override
+    public ByteBuffer getBuffer(boolean direct, int length) {
+        try {
+            return acquire(direct, length);
+        } catch (InterruptedIOException e) {
+            throw BufferPool.<RuntimeException>rethrow(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> T rethrow(Throwable e) throws T {
+        throw (T) e;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.hadoop.io.ByteBufferPool#putBuffer(java.nio.ByteBuffer)
+     */
+    @Override
+    public void putBuffer(ByteBuffer buffer) {
+        release(buffer);
+    }
+
+    /**
+     * Like {@link IOUtils#copyBytes(InputStream, OutputStream, int, boolean)},
+     * with a pooled buffer
+     * @return the bytes copied
+     */
+    public long copy(InputStream in, OutputStream out, int size, boolean close)
+            throws IOException {
+        ByteBuffer buffer = acquire(false, size);
+        long total = 0;
+        try {
+            byte[] bytes = buffer.array();
+            int read;
+            while ((read = in.read(bytes, 0, size)) != -1) {
+                out.write(bytes, 0, read);
+                total += read;
+            }
+            if (close) {
+                out.close();
+                out = null;
+                in.close();
+                in = null;
+            }
+            return total;
+        } finally {
+            release(buffer);
+            if (close) {
+                IOUtils.closeStream(out);
+                IOUtils.closeStream(in);
+            }
+        }
+    }
+
+    /**
+     * Replaces {@link java.io.BufferedInputStream}, the buffer is released
+     * when the stream is closed
+     */
+    public InputStream buffered(InputStream in, int size) throws InterruptedIOException {
+        return new PooledInputStream(in, acquire(false, size));
+    }
+
+    private final class PooledInputStream extends FilterInputStream {
+
+        private ByteBuffer buffer;
+        private final byte[] bytes;
+        private final int size;
+        private int position = 0;
+        private int count = 0;
+
+        private PooledInputStream(InputStream in, ByteBuffer buffer) {
+            super(in);
+            this.buffer = buffer;
+            this.bytes = buffer.array();
+            this.size = buffer.limit();
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Stream closed");
+            }
+            int read = in.read(bytes, 0, size);
+            position = 0;
+            count = Math.max(read, 0);
+            return read > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == count && !fill()) {
+                return -1;
+            }
+            return bytes[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == count) {
+                if (len >= size) {
+                    // No point in copying twice
+                    return in.read(b, off, len);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            int copied = Math.min(len, count - position);
+            System.arraycopy(bytes, position, b, off, copied);
+            position += copied;
+            return copied;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long buffered = Math.min(n, count - position);
+            position += buffered;
+            return buffered + (n > buffered ? in.skip(n - buffered) : 0);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return count - position + in.available();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer != null) {
+                release(buffer);
+                buffer = null;
+            }
+            in.close();
+        }
+    }
+
+    /**
+     * Logs every buffer held for longer than the leak threshold, which may
+     * well be in use still
+     * @return how many there are
+     */
+    public synchronized int logLongLeases() {
+        long now = System.currentTimeMillis();
+        int longLeases = 0;
+        for (List<Lease> bucket : leased.values()) {
+            for (Lease lease : bucket) {
+                if (now - lease.since >= leakMillis) {
+                    longLeases++;
+                    LOG.info("Buffer of " + lease.pooled.capacity() + " bytes held by "
+                            + lease.thread + " for " + (now - lease.since) + " ms", lease.stack);
+                }
+            }
+        }
+        return longLeases;
+    }
+
+    /**
+     * @return utilisation, reuse and contention of the pool, and the buffers
+     * held for long and never released
+     */
+    public synchronized String report() {
+        expungeCollected();
+        int longLeases = 0;
+        long now = System.currentTimeMillis();
+        for (List<Lease> bucket : leased.values()) {
+            for (Lease lease : bucket) {
+                if (now - lease.since >= leakMillis) {
+                    longLeases++;
+                }
+            }
+        }
+        return String.format(Locale.ENGLISH,
+                "capBytes=%d, allocatedBytes=%d, leasedBytes=%d, peakLeasedBytes=%d, utilisation=%f, acquires=%d, hitRate=%f, evictions=%d, waits=%d, waitMs=%d, outstanding=%d, longLeases=%d, leaked=%d, badReleases=%d",
+                capacity, allocatedBytes, leasedBytes, peakLeasedBytes,
+                allocatedBytes == 0 ? 0 : leasedBytes / (double) allocatedBytes,
+                acquires, acquires == 0 ? 0 : hits / (double) acquires, evictions,
+                waits, waitNanos / 1000000, outstanding, longLeases, leaked, badReleases);
+    }
+}
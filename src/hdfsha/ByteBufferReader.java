@@ -0,0 +1,224 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.hdfs.DFSInputStream;
+import org.apache.hadoop.hdfs.client.HdfsDataInputStream;
+import org.apache.hadoop.io.ByteBufferPool;
+
+/**
+ * Reads whole files without copying them through heap arrays. The mode is
+ * chosen with <code>read.mode</code>:
+ * <ul>
+ * <li><b>stream</b>: plain {@link java.io.InputStream} reads into a heap array</li>
+ * <li><b>bytebuffer</b>: {@link org.apache.hadoop.fs.ByteBufferReadable}
+ * reads into a pooled direct buffer</li>
+ * <li><b>zerocopy</b>: the enhanced read API, which maps the block file in
+ * memory when it is local and cached (or checksums are skipped with
+ * <code>read.skipChecksums</code>), and otherwise fills a pooled buffer</li>
+ * </ul>
+ * A mode the stream does not support falls back to the next one down.
+ * Buffers, heap ones included, are leased from {@link BufferPool}.
+ *
+ * Short-circuit local reads are enabled by setting
+ * <code>read.shortCircuit</code> to the datanode domain socket path. Bytes
+ * are counted per path: mapped, buffer and stream as seen here, and local,
+ * short-circuit and zero-copy as seen by the HDFS client.
+ */
+public class ByteBufferReader {
+
+    public enum Mode {
+        STREAM, BYTEBUFFER, ZEROCOPY
+    }
+
+    /**
+     * Called after every chunk read, e.g. to count progress or to abort on
+     * failover
+     */
+    public interface Listener {
+        void read(int bytes) throws IOException;
+    }
+
+    private final Mode mode;
+    private final int bufferSize;
+    private final ByteBufferPool pool;
+    private final EnumSet<ReadOption> options;
+
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final AtomicLong bufferBytes = new AtomicLong();
+    private final AtomicLong streamBytes = new AtomicLong();
+    private final AtomicLong localBytes = new AtomicLong();
+    private final AtomicLong shortCircuitBytes = new AtomicLong();
+    private final AtomicLong zeroCopyBytes = new AtomicLong();
+
+    public ByteBufferReader(Mode mode, int bufferSize, ByteBufferPool pool,
+            boolean skipChecksums) {
+        this.mode = mode;
+        this.bufferSize = bufferSize;
+        this.pool = pool;
+        this.options = skipChecksums ? EnumSet.of(ReadOption.SKIP_CHECKSUMS)
+                : EnumSet.noneOf(ReadOption.class);
+    }
+
+    /**
+     * Configured by <code>read.mode</code>, <code>read.bufferKB</code>
+     * (default 1024) and <code>read.skipChecksums</code>
+     * @return null if the mode is not set
+     */
+    public static ByteBufferReader fromProperties() {
+        String mode = System.getProperty("read.mode");
+        if (mode == null) {
+            return null;
+        }
+        return new ByteBufferReader(Mode.valueOf(mode.toUpperCase(Locale.ENGLISH)),
+                Integer.getInteger("read.bufferKB", 1024) * 1024,
+                BufferPool.get(), Boolean.getBoolean("read.skipChecksums"));
+    }
+
+    /**
+     * Enables short-circuit local reads if <code>read.shortCircuit</code>
+     * gives the domain socket of the datanodes
+     */
+    public static void configure(Configuration conf) {
+        String socket = System.getProperty("read.shortCircuit");
+        if (socket != null) {
+            conf.setBoolean("dfs.client.read.shortcircuit", true);
+            conf.set("dfs.domain.socket.path", socket);
+        }
+    }
+
+    /**
+     * Reads the stream to the end
+     * @param listener may be null
+     * @return the bytes read
+     */
+    public long read(FSDataInputStream in, Listener listener) throws IOException {
+        long bytes;
+        switch (mode) {
+            case ZEROCOPY:
+                bytes = readZeroCopy(in, listener);
+                break;
+            case BYTEBUFFER:
+                bytes = readByteBuffer(in, listener);
+                break;
+            default:
+                bytes = readStream(in, listener);
+        }
+        collectStatistics(in);
+        return bytes;
+    }
+
+    private long readZeroCopy(FSDataInputStream in, Listener listener) throws IOException {
+        long total = 0;
+        while (true) {
+            ByteBuffer buffer;
+            long zeroCopyBefore = zeroCopyBytesRead(in);
+            try {
+                buffer = in.read(pool, bufferSize, options);
+            } catch (UnsupportedOperationException e) {
+                return total + readByteBuffer(in, listener);
+            }
+            if (buffer == null) {
+                return total;
+            }
+            int read = buffer.remaining();
+            in.releaseBuffer(buffer);
+            // Every direct buffer is a MappedByteBuffer, so ask the client
+            // whether it mapped the block or filled a pooled buffer
+            if (zeroCopyBytesRead(in) > zeroCopyBefore) {
+                mappedBytes.addAndGet(read);
+            } else {
+                bufferBytes.addAndGet(read);
+            }
+            total += read;
+            if (listener != null) {
+                listener.read(read);
+            }
+        }
+    }
+
+    private long readByteBuffer(FSDataInputStream in, Listener listener) throws IOException {
+        long total = 0;
+        ByteBuffer buffer = pool.getBuffer(true, bufferSize);
+        try {
+            int read;
+            while (true) {
+                buffer.clear();
+                try {
+                    read = in.read(buffer);
+                } catch (UnsupportedOperationException e) {
+                    return total + readStream(in, listener);
+                }
+                if (read == -1) {
+                    return total;
+                }
+                bufferBytes.addAndGet(read);
+                total += read;
+                if (listener != null) {
+                    listener.read(read);
+                }
+            }
+        } finally {
+            pool.putBuffer(buffer);
+        }
+    }
+
+    private long readStream(FSDataInputStream in, Listener listener) throws IOException {
+        long total = 0;
+        ByteBuffer pooled = pool.getBuffer(false, bufferSize);
+        try {
+            byte[] buffer = pooled.array();
+            int read;
+            while ((read = in.read(buffer, 0, bufferSize)) != -1) {
+                streamBytes.addAndGet(read);
+                total += read;
+                if (listener != null) {
+                    listener.read(read);
+                }
+            }
+            return total;
+        } finally {
+            pool.putBuffer(pooled);
+        }
+    }
+
+    /**
+     * @return the bytes the HDFS client read by mapping block files, 0 for
+     * other file systems
+     */
+    private static long zeroCopyBytesRead(FSDataInputStream in) {
+        if (in instanceof HdfsDataInputStream) {
+            return ((HdfsDataInputStream) in).getReadStatistics()
+                    .getTotalZeroCopyBytesRead();
+        }
+        return 0;
+    }
+
+    private void collectStatistics(FSDataInputStream in) {
+        if (in instanceof HdfsDataInputStream) {
+            DFSInputStream.ReadStatistics statistics = ((HdfsDataInputStream) in)
+                    .getReadStatistics();
+            localBytes.addAndGet(statistics.getTotalLocalBytesRead());
+            shortCircuitBytes.addAndGet(statistics.getTotalShortCircuitBytesRead());
+            zeroCopyBytes.addAndGet(statistics.getTotalZeroCopyBytesRead());
+        }
+    }
+
+    /**
+     * @return the bytes read through each path, over every file read
+     */
+    public String report() {
+        return String.format(Locale.ENGLISH,
+                "mode=%s, mappedBytes=%d, bufferBytes=%d, streamBytes=%d, localBytes=%d, shortCircuitBytes=%d, zeroCopyBytes=%d",
+                mode.name().toLowerCase(Locale.ENGLISH), mappedBytes.get(),
+                bufferBytes.get(), streamBytes.get(), localBytes.get(),
+                shortCircuitBytes.get(), zeroCopyBytes.get());
+    }
+}
@@ -0,0 +1,481 @@
+package hdfsha;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * A long running client that keeps the JVM, the namenode lookup and the HDFS
+ * clients warm, and runs jobs submitted over a loopback socket. Short jobs
+ * then skip the JVM startup, the class loading, the parsing of the
+ * configuration, the ZooKeeper session and the namenode handshake, and run
+ * on code the JIT already compiled.
+ *
+ * A connection sends the token of the agent on a first line, then the job
+ * and its arguments on a second one:
+ * <ul>
+ * <li><code>copy &lt;localFile&gt; &lt;hdfsFile&gt;</code></li>
+ * <li><code>read &lt;hdfsFile&gt;</code></li>
+ * <li><code>stat &lt;hdfsPath&gt;</code></li>
+ * <li><code>list &lt;hdfsPath&gt;</code></li>
+ * <li><code>workload &lt;scenario&gt;</code>, see {@link WorkloadEngine}</li>
+ * <li><code>status</code>: the state of the agent</li>
+ * <li><code>shutdown</code></li>
+ * </ul>
+ * Whatever the job prints is streamed back as it is printed, and the last
+ * line is <code>OK elapsedMs=...</code> or <code>ERROR ...</code>. Any line
+ * client works, e.g.
+ * <code>(cat ~/.hdfs-tests-agent-token; echo "read /f") | nc 127.0.0.1 7070</code>.
+ *
+ * The socket only listens on the loopback interface, and jobs run only with
+ * the token, which the agent writes to a file only its owner may read when
+ * it first starts. The agent refuses to use a token file others can read.
+ * Unix domain sockets would need a newer JVM than the one the tests run on.
+ *
+ * Configured by system properties:
+ * <ul>
+ * <li><code>agent.port</code>: 7070 by default</li>
+ * <li><code>agent.maxJobs</code>: jobs run at the same time, 4 by default;
+ * further connections wait</li>
+ * <li><code>agent.tokenFile</code>: the token, ~/.hdfs-tests-agent-token by
+ * default</li>
+ * </ul>
+ *
+ * Usage:
+ * <code>ClientAgent serve &lt;static|ha|multi&gt; &lt;namenode&gt; &lt;zookeeper&gt;</code>
+ * or <code>ClientAgent submit &lt;job&gt; [args...]</code>
+ */
+public class ClientAgent {
+
+    private static final Logger LOG = Logger.getLogger(ClientAgent.class);
+
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = EnumSet.of(
+            PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+
+    /**
+     * Sends what a job thread, or a thread it started, prints to its
+     * connection, and the rest to the console
+     */
+    private static final class JobOutput extends OutputStream {
+        private final PrintStream console;
+        private final InheritableThreadLocal<PrintStream> target = new InheritableThreadLocal<PrintStream>();
+
+        JobOutput(PrintStream console) {
+            this.console = console;
+        }
+
+        private PrintStream target() {
+            PrintStream out = target.get();
+            return out == null ? console : out;
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+    }
+
+    private final NamenodeLookup lookup;
+    private final FailoverHandler failover;
+    private final FailoverFileSystem fs;
+    private final Semaphore slots;
+    private final JobOutput output;
+    private final byte[] token;
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final long startMillis = System.currentTimeMillis();
+    private volatile ServerSocket server;
+
+    public ClientAgent(NamenodeLookup lookup) throws IOException {
+        this.token = createToken(tokenFile()).getBytes(UTF8);
+        this.lookup = lookup;
+        this.failover = new FailoverHandler(lookup);
+        Configuration conf = new Configuration();
+        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+        ByteBufferReader.configure(conf);
+        this.fs = new FailoverFileSystem(failover, conf);
+        fs.setMetadataCache(MetadataCache.fromProperties());
+        this.slots = new Semaphore(Integer.getInteger("agent.maxJobs", 4));
+        this.output = new JobOutput(System.out);
+    }
+
+    /**
+     * Connects to the active namenode, so the first job does not pay for it
+     */
+    void warmUp() throws IOException {
+        long start = System.currentTimeMillis();
+        fs.getFileStatus(new Path("/"));
+        LOG.info("Warmed up in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    static File tokenFile() {
+        return new File(System.getProperty("agent.tokenFile", new File(
+                System.getProperty("user.home"), ".hdfs-tests-agent-token").getPath()));
+    }
+
+    /**
+     * @return the token in the file, written there first if there is none
+     * @throws IOException if others may read the file
+     */
+    static String createToken(File file) throws IOException {
+        if (!file.exists()) {
+            byte[] random = new byte[16];
+            new SecureRandom().nextBytes(random);
+            StringBuilder token = new StringBuilder();
+            for (byte b : random) {
+                token.append(String.format(Locale.ENGLISH, "%02x", b & 0xff));
+            }
+            Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            Files.write(file.toPath(), token.toString().getBytes(UTF8));
+            LOG.info("Wrote a new token to " + file);
+        }
+        return readToken(file);
+    }
+
+    static String readToken(File file) throws IOException {
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file.toPath());
+        if (!OWNER_ONLY.containsAll(permissions)) {
+            throw new IOException(file + " may be read by others ("
+                    + PosixFilePermissions.toString(permissions) + "), it must be 0600");
+        }
+        List<String> lines = Files.readAllLines(file.toPath(), UTF8);
+        if (lines.isEmpty() || lines.get(0).trim().isEmpty()) {
+            throw new IOException("No token in " + file);
+        }
+        return lines.get(0).trim();
+    }
+
+    /**
+     * @return the port, which is chosen if 0 is given
+     */
+    int bind(int port) throws IOException {
+        server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        return server.getLocalPort();
+    }
+
+    /**
+     * Accepts jobs until shut down, each on its own thread
+     */
+    void serve() throws IOException {
+        System.setOut(new PrintStream(output, true));
+        LOG.info("Accepting jobs on 127.0.0.1:" + server.getLocalPort());
+        try {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (SocketException e) {
+                    if (server.isClosed()) {
+                        return;
+                    }
+                    throw e;
+                }
+                Thread thread = new Thread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                }, "Job-" + jobs.incrementAndGet());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } finally {
+            System.setOut(output.console);
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+            try {
+                String presented = in.readLine();
+                if (presented == null
+                        || !MessageDigest.isEqual(token, presented.trim().getBytes(UTF8))) {
+                    LOG.warn("Refused a job without the token");
+                    out.println("ERROR bad token");
+                    return;
+                }
+                String line = in.readLine();
+                if (line == null || line.trim().isEmpty()) {
+                    out.println("ERROR empty job");
+                    return;
+                }
+                slots.acquire();
+                try {
+                    output.target.set(out);
+                    runJob(line.trim().split("\\s+"), out);
+                } finally {
+                    output.target.remove();
+                    slots.release();
+                }
+            } finally {
+                out.flush();
+                socket.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOG.warn("Lost the connection of a job", e);
+        }
+    }
+
+    private void runJob(String[] job, PrintStream out) {
+        LOG.info("Job " + Arrays.toString(job));
+        long start = System.currentTimeMillis();
+        try {
+            execute(job, out);
+            out.println("OK elapsedMs=" + (System.currentTimeMillis() - start));
+        } catch (Exception e) {
+            failedJobs.incrementAndGet();
+            LOG.warn("Job " + Arrays.toString(job) + " failed", e);
+            out.println("ERROR " + e);
+        }
+    }
+
+    private void execute(String[] job, PrintStream out) throws Exception {
+        String name = job[0].toLowerCase(Locale.ENGLISH);
+        if (name.equals("copy") && job.length == 3) {
+            copy(job[1], new Path(job[2]), out);
+        } else if (name.equals("read") && job.length == 2) {
+            read(new Path(job[1]), out);
+        } else if (name.equals("stat") && job.length == 2) {
+            FileStatus status = fs.getFileStatus(new Path(job[1]));
+            out.println(String.format(Locale.ENGLISH, "path=%s, length=%d, directory=%b, modified=%d",
+                    status.getPath().toUri().getPath(), status.getLen(),
+                    status.isDirectory(), status.getModificationTime()));
+        } else if (name.equals("list") && job.length == 2) {
+            for (FileStatus status : fs.listStatus(new Path(job[1]))) {
+                out.println(status.getPath().toUri().getPath());
+            }
+        } else if (name.equals("workload") && job.length == 2) {
+            WorkloadEngine engine = new WorkloadEngine(fs,
+                    WorkloadEngine.loadScenario(job[1]));
+            try {
+                engine.run();
+            } finally {
+                engine.close();
+            }
+        } else if (name.equals("status") && job.length == 1) {
+            status(out);
+        } else if (name.equals("shutdown") && job.length == 1) {
+            server.close();
+        } else {
+            throw new IllegalArgumentException("Unknown job " + Arrays.toString(job));
+        }
+    }
+
+    /**
+     * Copies a local file, starting over on the new active after a failover
+     */
+    private void copy(final String localFile, final Path hdfsFile, PrintStream out)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        // Counts the bytes written in Metrics, those of attempts started over too
+        final ProgressTracker progress = ProgressTracker.start("copy " + localFile,
+                new File(localFile).length());
+        long bytes;
+        try {
+            bytes = failover.execute("copy " + localFile, new FailoverHandler.Attempt<Long>() {
+
+                @Override
+                public Long run(String namenodeAddress) throws IOException {
+                    InputStream in = progress.track(new FileInputStream(localFile));
+                    FSDataOutputStream hdfsOut;
+                    try {
+                        hdfsOut = fs.fileSystem(namenodeAddress).create(
+                                new Path(hdfsFile.toUri().getPath()), true);
+                    } catch (IOException e) {
+                        in.close();
+                        throw e;
+                    }
+                    int epochBefore = failover.getEpoch();
+                    InFlightTransfers.Transfer transfer = failover.getTransfers().register(hdfsOut);
+                    try {
+                        long copied = BufferPool.get().copy(in, hdfsOut, COPY_BUFFER, true);
+                        failover.checkFailover(epochBefore);
+                        return copied;
+                    } catch (IOException e) {
+                        if (transfer.isCancelled()) {
+                            throw new NameNodeChangedException();
+                        }
+                        throw e;
+                    } finally {
+                        failover.getTransfers().unregister(transfer);
+                    }
+                }
+            });
+        } finally {
+            progress.finish();
+        }
+        fs.invalidate(hdfsFile);
+        printTransfer(out, "copy", bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Reads a file, going on from the same position after a failover
+     */
+    private void read(Path hdfsFile, PrintStream out) throws IOException {
+        long start = System.nanoTime();
+        ProgressTracker progress = ProgressTracker.startRead("read " + hdfsFile, 0);
+        long bytes;
+        try {
+            FSDataInputStream in = fs.open(hdfsFile);
+            try {
+                bytes = BufferPool.get().copy(in, new NullOutputStream(progress), COPY_BUFFER, true);
+            } finally {
+                in.close();
+            }
+        } finally {
+            progress.finish();
+        }
+        printTransfer(out, "read", bytes, System.nanoTime() - start);
+    }
+
+    private static void printTransfer(PrintStream out, String event, long bytes,
+            long nanos) {
+        out.println(String.format(Locale.ENGLISH, "%d agent: event=%s, bytes=%d, ms=%d, MBPerSec=%.2f",
+                System.currentTimeMillis(), event, bytes, nanos / 1000000,
+                bytes / 1048576.0 / Math.max(nanos / 1e9, 1e-9)));
+    }
+
+    private void status(PrintStream out) {
+        out.println(String.format(Locale.ENGLISH,
+                "%d agent: event=status, namenode=%s, uptimeMs=%d, jobs=%d, failedJobs=%d, failovers=%d, retries=%d",
+                System.currentTimeMillis(), failover.getNamenodeAddress(),
+                System.currentTimeMillis() - startMillis, jobs.get(),
+                failedJobs.get(), failover.getEpoch(), failover.getRetries()));
+        for (String line : fs.report()) {
+            out.println(String.format(Locale.ENGLISH, "%d agent: event=metadata, %s",
+                    System.currentTimeMillis(), line));
+        }
+        if (fs.getMetadataCache() != null) {
+            out.println(String.format(Locale.ENGLISH, "%d agent: event=metadataCache, %s",
+                    System.currentTimeMillis(), fs.getMetadataCache().report()));
+        }
+        out.println(String.format(Locale.ENGLISH, "%d agent: event=bufferpool, %s",
+                System.currentTimeMillis(), BufferPool.get().report()));
+    }
+
+    void close() throws InterruptedException {
+        try {
+            fs.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        lookup.shutdown();
+    }
+
+    /**
+     * Sends a job to the agent, with the token from the token file, and
+     * prints what comes back
+     * @return whether the job succeeded
+     */
+    static boolean submit(int port, String[] job) throws IOException {
+        return submit(port, readToken(tokenFile()), job);
+    }
+
+    static boolean submit(int port, String token, String[] job) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (String arg : job) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            line.append(arg);
+        }
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        try {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), "UTF-8"), true);
+            out.println(token);
+            out.println(line);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            String last = null;
+            String received;
+            while ((received = in.readLine()) != null) {
+                System.out.println(received);
+                last = received;
+            }
+            return last != null && last.startsWith("OK");
+        } finally {
+            socket.close();
+        }
+    }
+
+    public static void main(String... args) throws IOException,
+            InterruptedException {
+        int port = Integer.getInteger("agent.port", 7070);
+        if (args.length >= 2 && args[0].equals("submit")) {
+            System.exit(submit(port, Arrays.copyOfRange(args, 1, args.length)) ? 0 : 1);
+        }
+        if (args.length != 4 || !args[0].equals("serve")) {
+            System.err.println("Usage: ClientAgent serve <static|ha|multi> <namenode> <zookeeper>");
+            System.err.println("       ClientAgent submit <job> [args...]");
+            System.exit(1);
+        }
+        int nnLookupType = NamenodeLookup.STATIC;
+        if (args[1].equalsIgnoreCase("ha")) {
+            nnLookupType = NamenodeLookup.HA;
+        } else if (args[1].equalsIgnoreCase("multi")) {
+            nnLookupType = NamenodeLookup.MULTI;
+        }
+        Metrics.get().publish();
+        ClientAgent agent = new ClientAgent(NamenodeLookupFactory.create(nnLookupType,
+                args[2], args[3]));
+        try {
+            agent.warmUp();
+            agent.bind(port);
+            agent.serve();
+        } finally {
+            agent.close();
+        }
+    }
+}
@@ -0,0 +1,741 @@
+package hdfsha;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.zookeeper.KeeperException;
+
+
+public class ClientTest implements NamenodeChangedListener {
+
+	private static final int ONE_MB = 1024*1024;
+
+    // Waiting time configs
+    private static final int FAILOVER_INPROGRESS_WAIT_MIN = 5;
+    private static final int REGULAR_ERROR_WAIT_MS = 2000;
+    private static final int FAILOVER_COMPLETED_WAIT_MS = 2000;
+	
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long COORDINATION_TIMEOUT_MS = 3600 * 1000L;
+    private NamenodeLookup namenodeLookup;
+    private int blocks;
+    private int files;
+    private String hostname;
+    
+    
+    private volatile String namenodeAddress;
+    private volatile CountDownLatch waitFailoverLatch;
+    private volatile boolean isFailoverComplete;
+    private volatile Configuration conf;
+    private final InFlightTransfers transfers = new InFlightTransfers();
+    private final ReconnectPacer pacer;
+    private final BlockCompression compression;
+    private final ByteBufferReader reader;
+    private final MetadataCache metadataCache = MetadataCache.fromProperties();
+
+    // Totals of the run, published in coordinated runs
+    private long bytesWritten;
+    private long writeMillis;
+    private long bytesRead;
+    private long readMillis;
+
+
+    public ClientTest(NamenodeLookup namenode, int blocks, int files) throws UnknownHostException{
+        this.namenodeLookup = namenode;
+        namenodeLookup.setListener(this);
+        this.blocks = blocks;
+        this.files = files;
+        this.namenodeAddress = namenode.getNamenodeAddress();
+        Metrics.get().namenode(namenodeAddress);
+        this.hostname = InetAddress.getLocalHost().getHostName();
+        this.waitFailoverLatch = new CountDownLatch(1);
+        this.isFailoverComplete = false;
+        this.pacer = new ReconnectPacer(namenode, FAILOVER_COMPLETED_WAIT_MS);
+        this.conf= new Configuration();
+        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+        this.compression = BlockCompression.fromProperties(conf);
+        this.reader = ByteBufferReader.fromProperties();
+        ByteBufferReader.configure(conf);
+    }
+
+
+    @Override
+    public void namenodeChanged(String newAddress) {
+        synchronized(this){
+            System.out.println("Changed namenode to " + newAddress);
+            namenodeAddress = newAddress;
+            Metrics.get().namenodeChanged(newAddress);
+            this.isFailoverComplete = true;
+            this.waitFailoverLatch.countDown();
+        }
+        // Do not wait for the RPC to give up on the dead namenode
+        transfers.cancelAll();
+        if (metadataCache != null) {
+            metadataCache.namenodeChanged(newAddress);
+        }
+
+    }
+
+    /**
+     * Runs the cleanup on its own thread, counted in the cleanup backlog
+     */
+    private static void cleanupInBackground(final Runnable cleanup, String name) {
+        Metrics.get().cleanupStarted();
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    cleanup.run();
+                } finally {
+                    Metrics.get().cleanupDone();
+                }
+            }
+        }, name).start();
+    }
+
+    private synchronized String getNamenodeAddress(){
+        return namenodeAddress;
+    }
+    
+    
+    void doIO(InputStream in, OutputStream out) throws IOException {
+        doIO(in, out, null);
+    }
+
+    /**
+     * @param progress counts the bytes copied at every flush, may be null
+     */
+    void doIO(InputStream in, OutputStream out, ProgressTracker progress) throws IOException {
+        int countBytes = 0;
+        int data;
+        boolean failoverStateBefore = isFailoverComplete;
+
+        while ((data = in.read()) != -1) {
+            out.write(data);
+            if ((++countBytes) == BUFFER_SIZE) {
+                countBytes = 0;
+                out.flush();
+                if (progress != null) {
+                    progress.addBytes(BUFFER_SIZE);
+                }
+            }
+
+            boolean currentFailoverState = isFailoverComplete;
+            if (failoverStateBefore != currentFailoverState)
+                throw new NameNodeChangedException();
+        }
+        if (progress != null) {
+            progress.addBytes(countBytes);
+        }
+    }
+
+    /**
+     * Writes out what a compressed stream still holds, the end of the I/O
+     */
+    private static void finishCompression(OutputStream out) throws IOException {
+        if (out instanceof BlockCompression.CompressedOutputStream) {
+            ((BlockCompression.CompressedOutputStream) out).finish();
+        }
+    }
+
+    /**
+     * Does the I/O registering it as an in-flight transfer, so it can be
+     * aborted as soon as the namenode changes
+     * @param hdfsStream the stream connected to the namenode
+     */
+    private void doCancellableIO(InputStream in, OutputStream out,
+            Closeable hdfsStream, ProgressTracker progress) throws IOException {
+        InFlightTransfers.Transfer transfer = transfers.register(hdfsStream);
+        try {
+            doIO(in, out, progress);
+            finishCompression(out);
+        } catch (IOException e) {
+            if (transfer.isCancelled()) {
+                throw new NameNodeChangedException();
+            }
+            throw e;
+        } finally {
+            transfers.unregister(transfer);
+        }
+    }
+
+    /**
+     * Like {@link #doCancellableIO(InputStream, OutputStream, Closeable, ProgressTracker)},
+     * but data generation runs in its own thread, overlapped with the writes
+     */
+    private void doCancellablePipelinedIO(WritePipeline pipeline, InputStream in,
+            OutputStream out, Closeable hdfsStream, final ProgressTracker progress)
+            throws IOException {
+        final boolean failoverStateBefore = isFailoverComplete;
+        InFlightTransfers.Transfer transfer = transfers.register(hdfsStream);
+        try {
+            pipeline.copy(in, out, new WritePipeline.Listener() {
+
+                @Override
+                public void written(int bytes) throws IOException {
+                    progress.addBytes(bytes);
+                    if (failoverStateBefore != isFailoverComplete)
+                        throw new NameNodeChangedException();
+                }
+            });
+            finishCompression(out);
+        } catch (IOException e) {
+            if (transfer.isCancelled()) {
+                throw new NameNodeChangedException();
+            }
+            throw e;
+        } finally {
+            transfers.unregister(transfer);
+        }
+    }
+
+    /**
+     * Reads to the end with {@link ByteBufferReader}, as an in-flight transfer
+     */
+    private void doCancellableBufferRead(FSDataInputStream in,
+            final ProgressTracker progress) throws IOException {
+        final boolean failoverStateBefore = isFailoverComplete;
+        InFlightTransfers.Transfer transfer = transfers.register(in);
+        try {
+            reader.read(in, new ByteBufferReader.Listener() {
+
+                @Override
+                public void read(int bytes) throws IOException {
+                    progress.addBytes(bytes);
+                    if (failoverStateBefore != isFailoverComplete)
+                        throw new NameNodeChangedException();
+                }
+            });
+        } catch (IOException e) {
+            if (transfer.isCancelled()) {
+                throw new NameNodeChangedException();
+            }
+            throw e;
+        } finally {
+            transfers.unregister(transfer);
+        }
+    }
+
+    //========================================================================
+    // File Creation
+    //=======================================================================
+    
+    private void attemptCreate(String filename) throws IOException{
+        InputStream in= null;
+        FileSystem hdfs = null;
+        OutputStream out = null;
+        ProgressTracker progress = ProgressTracker.start("write " + filename,
+                blocks * DeadBeefInputStream.HDFS_BLOCK);
+
+        try{
+            System.out.println("Attempt to create " + filename);
+            // Compression is pointless on the DeadBeef pattern
+            in = BufferPool.get().buffered(compression == null ? new DeadBeefInputStream(blocks)
+                    : BlockCompression.generator(blocks * DeadBeefInputStream.HDFS_BLOCK), 8192);
+            String currentNamenodeAddress = getNamenodeAddress();
+            String hdfsFileUri = "hdfs://" + currentNamenodeAddress + "/" +filename;
+            hdfs = FileSystem.get(URI.create(hdfsFileUri), conf);
+            OutputStream hdfsOut = hdfs.create(new Path(hdfsFileUri), true, 4096,
+                    progress.progressable());
+            out = hdfsOut;
+            if (compression != null) {
+                compression.reset();
+                out = compression.compress(hdfsOut);
+            }
+            long start = System.currentTimeMillis();
+            WritePipeline pipeline = null;
+            if (Boolean.getBoolean("write.pipeline")) {
+                pipeline = WritePipeline.fromProperties();
+                doCancellablePipelinedIO(pipeline, in, out, hdfsOut, progress);
+            } else {
+                doCancellableIO(in, out, hdfsOut, progress);
+            }
+            long end = System.currentTimeMillis();
+            if (compression != null) {
+                System.out.println(String.format(Locale.ENGLISH,"\n%d client: hostName=%s, event=compression, %s",
+                        System.currentTimeMillis(),hostname,compression.report()));
+            }
+            if (pipeline != null) {
+                System.out.println(String.format(Locale.ENGLISH,"\n%d client: hostName=%s, event=pipeline, %s",
+                        System.currentTimeMillis(),hostname,pipeline.report()));
+            }
+            bytesWritten += blocks*DeadBeefInputStream.HDFS_BLOCK;
+            writeMillis += end-start;
+            long elapsedTime = (end-start)/1000;
+            double throughput = blocks*DeadBeefInputStream.HDFS_BLOCK/ONE_MB/((double)elapsedTime);
+            System.out.println(String.format(Locale.ENGLISH,"\n%d client: hostName=%s, event=write, readTime=0, readThroughput=0, writeTime=%d, writeThroughput=%f",
+            		System.currentTimeMillis(),hostname,elapsedTime,throughput));
+        }finally{
+            progress.finish();
+            if (metadataCache != null) {
+                metadataCache.invalidate(new Path("/" + filename));
+            }
+            // Local, closing it does not block, and gives back its buffer
+            IOUtils.closeStream(in);
+            final FileSystem hdfs_final = hdfs;
+            final OutputStream out_final = out;
+
+            Runnable cleanupRunnable = new Runnable() {
+
+                @Override
+                public void run() {
+                    // TODO Auto-generated method stub
+                    if (out_final != null) {
+                        try {
+                            out_final.close();
+                        } catch (Exception e) {
+                        }
+                    }
+
+                    if (hdfs_final != null) {
+                        try {
+                            hdfs_final.close();
+                        } catch (Exception e) {
+                        }
+                    }
+                }
+            };
+            //Do in background
+            cleanupInBackground(cleanupRunnable, "Cleanup-Creating-" + filename);
+        }
+    }
+
+    private void create(String filename) throws InterruptedException, IOException{
+        System.out.println("Creating " + filename);
+        long start = System.nanoTime();
+        pacer.admit();
+        for (int i = 1; i <= MAX_ATTEMPTS; i++) {
+            try {
+                attemptCreate(filename);
+                Metrics.get().operation("create", System.nanoTime() - start);
+                return;
+
+            } catch (NameNodeChangedException e) {
+                handleFailoverAlreadyDone();
+
+            } catch (IOException e) {
+                // Failover? Assume HADOOP RPC already retries so
+                // if we reach here is because failover is on the way
+                handleGenericIOException();
+            }
+        }
+        // If we reach here something bad happened
+        Metrics.get().operationFailed("create");
+        throw new IOException("Could not create file " + filename);
+    }
+
+    private void handleFailoverAlreadyDone() {
+        Metrics.get().retry();
+        /*
+         * We know already that Hot Standby Node has already complete failover.
+         * So just wait a little before trying again. The wait is random inside
+         * a window sized for the whole fleet, to prevent waves of clients
+         * flooding the standby
+         */
+        try {
+            System.out.println("Start small wait after failover complete");
+            pacer.pause();
+            System.out.println("Finish small wait after failover complete");
+        } catch (InterruptedException e) {
+            // Just propagate the interruption as we already stopping sleeping
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleGenericIOException() {
+        Metrics.get().retry();
+
+        if (!isFailoverComplete) {
+            /*
+             * Right now, we don't know what happened. We may be in the middle
+             * of a failover or of some hiccup of namenode. Let's expect for the
+             * worst: a failover. Although being pessimistic here may be not the
+             * more efficient solution here, it is the simpler and safer
+             */
+            System.out.println("Failover hasn't happened yet. Assuming it is in progress."
+                    + " We'll wait until it is finished");
+            try {
+                // Wait for little bit longer than ZooKeeper timeout
+                // or for failover complete
+                waitFailoverLatch.await(FAILOVER_INPROGRESS_WAIT_MIN,
+                        TimeUnit.MINUTES);
+                if (isFailoverComplete) {
+                    // We do wait until it is complete
+                    System.out.println("EVENT: FAILOVER_COMPLETE");
+                    // Every waiting client wakes up now, do not rush together
+                    pacer.pause();
+                } else {
+                    // Wait timeout
+                    System.out.println("Some big failure happened, because faiolver did not happen");
+                }
+            } catch (InterruptedException e) {
+                // Just propagate the interruption as we already stopping
+                // sleeping
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // Okay this might be a standby hiccup, so wait 5 sec and try again
+            System.out.println("We know that NN already changed, some I/0 error "
+                    + "or the RPC has not given up yet");
+            try {
+                Thread.sleep(REGULAR_ERROR_WAIT_MS);
+            } catch (InterruptedException e) {
+                // Just propagate the interruption as we already stopping
+                // sleeping
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //========================================================================
+    // File listing
+    //========================================================================
+
+    private void attemptFileListing(String readNamenodeAddress) throws IOException{
+        System.out.println("Attempt to list root on " + readNamenodeAddress);
+        String hdfsFileUri = "hdfs://" + readNamenodeAddress + "/";
+        FileSystem hdfs = null;
+        try{
+            hdfs = FileSystem.get(URI.create(hdfsFileUri), conf);
+            if (Boolean.getBoolean("listing.streaming")) {
+                // Constant memory, report the rate instead of every path
+                StreamingLister lister = new StreamingLister(hdfs,
+                        Integer.getInteger("listing.parallelism", 4));
+                lister.list(new Path(hdfsFileUri),
+                        Boolean.getBoolean("listing.recursive"), null);
+                System.out.println(String.format(Locale.ENGLISH,"\n%d client: hostName=%s, event=list, %s",
+                        System.currentTimeMillis(),hostname,lister.report()));
+            } else {
+                // Keyed without the namenode, any of them has the same root
+                FileStatus[] fss = metadataCache == null ? null
+                        : metadataCache.listStatus(new Path("/"));
+                if (fss == null) {
+                    long generation = metadataCache == null ? 0 : metadataCache.generation();
+                    fss = hdfs.listStatus(new Path(hdfsFileUri));
+                    if (metadataCache != null) {
+                        metadataCache.putListing(new Path("/"), fss, generation);
+                    }
+                }
+                for (FileStatus fs:fss){
+                    System.out.println(fs.getPath().toString());
+                }
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Listing interrupted");
+        }finally{
+            final FileSystem hdfs_final = hdfs;
+            Runnable cleanupRunnable = new Runnable(){
+
+                @Override
+                public void run() {
+                    if(hdfs_final != null){
+                        try {
+                            hdfs_final.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+                
+            };
+                    
+            //Do in background
+            cleanupInBackground(cleanupRunnable, "Cleanup-Listing-" + hostname);
+        }
+    }
+
+    private void fileListing() throws InterruptedException, IOException{
+        System.out.println("Listing files ");
+        long start = System.nanoTime();
+        pacer.admit();
+        for(int i=1; i<=MAX_ATTEMPTS;i++){
+            // Listing is a metadata read, it may be served by a standby
+            String readNamenodeAddress = namenodeLookup.getReadNamenodeAddress();
+            try{
+                attemptFileListing(readNamenodeAddress);
+                Metrics.get().operation("list", System.nanoTime() - start);
+                return;
+            }
+            catch (NameNodeChangedException e){
+                System.out.println("NameNode Changed while listing");
+                handleFailoverAlreadyDone();
+            }
+            catch (IOException e){
+                System.out.println("IOException when listing files on "
+                        + readNamenodeAddress + "on Attempt " + i);
+                if (!readNamenodeAddress.equals(getNamenodeAddress())
+                        && namenodeLookup instanceof NamenodeLookupMulti) {
+                    // Not a failover, just stop reading from that namenode
+                    ((NamenodeLookupMulti) namenodeLookup).readFailed(readNamenodeAddress);
+                } else {
+                    handleGenericIOException();
+                }
+            }
+        }
+        //If we reach here something bad happened
+        Metrics.get().operationFailed("list");
+        throw new IOException("Could not list files");
+    }
+
+
+    //========================================================================
+    // File reading
+    //========================================================================
+
+    //Attention lower throughput if run co-located on nodes with data
+    //https://issues.apache.org/jira/browse/HDFS-347
+
+
+    private void attemptRead(String filename) throws IOException{
+        System.out.println("attempt to read" + filename);
+        ProgressTracker progress = ProgressTracker.startRead("read " + filename,
+                blocks * DeadBeefInputStream.HDFS_BLOCK);
+        OutputStream out = new NullOutputStream(progress);
+        FileSystem hdfs = null;
+        InputStream in = null;
+
+        try {
+
+            String hdfsFileUri = "hdfs://" + getNamenodeAddress() + "/" + filename;
+            hdfs = FileSystem.get(URI.create(hdfsFileUri), conf);
+
+            FSDataInputStream hdfsIn = hdfs.open(new Path(hdfsFileUri), 4096);
+            in = hdfsIn;
+            if (compression != null) {
+                compression.reset();
+                in = compression.decompress(hdfsIn);
+            }
+            long start = System.currentTimeMillis();
+            if (reader != null && compression == null) {
+                // Straight into direct buffers, bypassing the byte stream
+                doCancellableBufferRead(hdfsIn, progress);
+            } else {
+                doCancellableIO(in, out, hdfsIn, null);
+            }
+            long end = System.currentTimeMillis();
+            if (compression != null) {
+                System.out.println(String.format(Locale.ENGLISH,"\n%d client: hostName=%s, event=decompression, %s",
+                        System.currentTimeMillis(),hostname,compression.report()));
+            }
+            bytesRead += blocks*DeadBeefInputStream.HDFS_BLOCK;
+            readMillis += end-start;
+            long elapsedTime = (end-start)/1000;
+            double throughput = blocks*DeadBeefInputStream.HDFS_BLOCK/ONE_MB/((double)elapsedTime);
+            System.out.println(String.format(Locale.ENGLISH,"\n%d client: hostName=%s, event=read, readTime=%d, readThroughput=%f, writeTime=0, writeThroughput=0",
+            		System.currentTimeMillis(),hostname,elapsedTime,throughput));
+        } finally {
+            progress.finish();
+            final FileSystem hdfs_final = hdfs;
+            final OutputStream out_final = out;
+            final InputStream in_final = in;
+
+            Runnable cleanupRunnable = new Runnable() {
+
+                @Override
+                public void run() {
+                    // TODO Auto-generated method stub
+                    if (in_final != null) {
+                        // Gives back the pooled buffers of blocks still decompressing
+                        try {
+                            in_final.close();
+                        } catch (Exception e) {
+                        }
+                    }
+
+                    if (out_final != null) {
+                        try {
+                            out_final.close();
+                        } catch (Exception e) {
+                        }
+                    }
+
+                    if (hdfs_final != null) {
+                        try {
+                            hdfs_final.close();
+                        } catch (Exception e) {
+                        }
+                    }
+                }
+            };
+            //Do in background
+            cleanupInBackground(cleanupRunnable, "Cleanup-Creating-" + filename);
+        }
+    }
+
+
+    private void read(String filename) throws InterruptedException, IOException{
+        System.out.println("Reading " + filename);
+        long start = System.nanoTime();
+        pacer.admit();
+        for(int i=1; i<=MAX_ATTEMPTS;i++){
+            try{
+                attemptRead(filename);
+                Metrics.get().operation("read_file", System.nanoTime() - start);
+                return;
+            } catch (NameNodeChangedException e) {
+                handleFailoverAlreadyDone();
+    
+            } catch (IOException e) {
+                // Failover? Assume HADOOP RPC already retries so
+                // if we reach here is because failover is on the way
+                System.out.println(e.getMessage());
+                e.printStackTrace();
+                handleGenericIOException();
+            }
+        }
+        //If we reach here something bad happened
+        Metrics.get().operationFailed("read_file");
+        throw new IOException("Could not read file " + filename);
+
+    }
+
+    //============================================================
+    // Test Case
+
+
+    /**
+     * @return false if an operation gave up after all its attempts
+     */
+    private boolean oneRun(String filename) throws InterruptedException{
+        try{
+            create(filename);
+            fileListing();
+            read(filename);
+            return true;
+        }catch (IOException e ){
+            System.out.print(e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Creates, lists and reads every file, going on with the next file when
+     * one gives up
+     * @return how many files gave up
+     */
+    int run() throws InterruptedException{
+        int failures = 0;
+        for(int i=1; i<=files;i++){
+             String filename = hostname+"-" + i;
+             if (!oneRun(filename)) {
+                 failures++;
+             }
+        }
+        System.out.println(String.format(Locale.ENGLISH, "\n%d client: hostName=%s, event=failures, files=%d, failures=%d",
+                System.currentTimeMillis(), hostname, files, failures));
+        System.out.println(String.format(Locale.ENGLISH, "\n%d client: hostName=%s, event=pacing, %s",
+                System.currentTimeMillis(), hostname, pacer.report()));
+        if (reader != null) {
+            System.out.println(String.format(Locale.ENGLISH, "\n%d client: hostName=%s, event=readpaths, %s",
+                    System.currentTimeMillis(), hostname, reader.report()));
+        }
+        System.out.println(String.format(Locale.ENGLISH, "\n%d client: hostName=%s, event=bufferpool, %s",
+                System.currentTimeMillis(), hostname, BufferPool.get().report()));
+        if (metadataCache != null) {
+            System.out.println(String.format(Locale.ENGLISH, "\n%d client: hostName=%s, event=metadataCache, %s",
+                    System.currentTimeMillis(), hostname, metadataCache.report()));
+        }
+        if (namenodeLookup instanceof NamenodeLookupMulti) {
+            for (String line : ((NamenodeLookupMulti) namenodeLookup).report()) {
+                System.out.println(String.format(Locale.ENGLISH, "\n%d client: hostName=%s, event=routing, %s",
+                        System.currentTimeMillis(), hostname, line));
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Runs together with the other clients of a coordinated run: waits on the
+     * barrier, runs, and publishes the totals. See {@link RunCoordinator}
+     */
+    private void runCoordinated(String zookeeper, String runId, int clients)
+            throws InterruptedException, IOException {
+        String clientId = System.getProperty("coordination.clientId", hostname);
+        try {
+            RunCoordinator coordinator = new RunCoordinator(zookeeper, runId, clientId);
+            try {
+                // On the clock of ZooKeeper, the same for every client
+                long start = coordinator.awaitStart(clients, COORDINATION_TIMEOUT_MS);
+                long startNanos = System.nanoTime();
+                int failures = run();
+                Map<String, Long> summary = new LinkedHashMap<String, Long>();
+                summary.put("startMs", start);
+                summary.put("endMs", start + TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - startNanos));
+                summary.put("bytesWritten", bytesWritten);
+                summary.put("writeMs", writeMillis);
+                summary.put("bytesRead", bytesRead);
+                summary.put("readMs", readMillis);
+                summary.put("failures", (long) failures);
+                coordinator.publishResult(summary);
+            } finally {
+                coordinator.shutdown();
+            }
+        } catch (KeeperException e) {
+            throw new IOException("Coordination through ZooKeeper failed", e);
+        }
+    }
+
+
+
+    /**
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+
+        String hostname = InetAddress.getLocalHost().getHostName();
+        System.out.println(String.format("\n%d client: hostName=%s, event=start, readTime=0, readThroughput=0, writeTime=0, writeThroughput=0",
+        		System.currentTimeMillis(),hostname));
+
+
+        if (args.length == 6 || args.length ==5){
+            int nnLookupType = NamenodeLookup.STATIC;
+            if(args[0].equalsIgnoreCase("ha")){nnLookupType=NamenodeLookup.HA;}
+            // With multi, the namenode argument lists every namenode
+            if(args[0].equalsIgnoreCase("multi")){nnLookupType=NamenodeLookup.MULTI;}
+            String primaryNamenode = args[1];
+            String zookeeper = args[2];
+            int files = Integer.parseInt(args[3]);
+            int blocks = Integer.parseInt(args[4]);
+
+            Metrics.get().publish();
+            NamenodeLookup nnlkp = NamenodeLookupFactory.create(nnLookupType, primaryNamenode, zookeeper);
+            ClientTest cli = new ClientTest(nnlkp,blocks,files);
+            String runId = System.getProperty("coordination.run");
+            if (runId != null) {
+                // Multi-host run, start together with the other clients
+                cli.runCoordinated(System.getProperty("coordination.zookeeper", zookeeper),
+                        runId, Integer.getInteger("coordination.clients", 1));
+            } else {
+                cli.run();
+            }
+        }else{
+            System.out.println("Client received wrong arguments");
+        }
+
+        System.out.println(String.format("\n%d client: hostName=%s, event=end, readTime=0, readThroughput=0, writeTime=0, writeThroughput=0",
+        		System.currentTimeMillis(),hostname));
+
+    }
+}
@@ -0,0 +1,73 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Generates data that compresses to a chosen degree, unlike
+ * {@link DeadBeefInputStream} whose pattern compresses to almost nothing.
+ *
+ * Every 4 KB page is made of random bytes followed by zeros, and the
+ * compressibility is the fraction of zeros. So 0 gives incompressible data,
+ * and 0.75 gives data that a decent codec shrinks to about a quarter.
+ */
+public class CompressibleInputStream extends InputStream {
+
+    private static final int PAGE = 4096;
+
+    private final long size;
+    private final byte[] page = new byte[PAGE];
+    private final byte[] noise;
+    private final Random random;
+    private long produced = 0;
+
+    /**
+     * @param size how many bytes to produce
+     * @param compressibility between 0 and 1, the fraction of every page
+     * that is trivially compressible
+     */
+    public CompressibleInputStream(long size, double compressibility) {
+        if (compressibility < 0 || compressibility > 1) {
+            throw new IllegalArgumentException("Compressibility must be between 0 and 1: "
+                    + compressibility);
+        }
+        this.size = size;
+        this.noise = new byte[(int) Math.round(PAGE * (1 - compressibility))];
+        // Fixed seed, so runs are comparable
+        this.random = new Random(size);
+    }
+
+    private void nextPage() {
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, page, 0, noise.length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (produced >= size) {
+            return -1;
+        }
+        int offset = (int) (produced % PAGE);
+        if (offset == 0) {
+            nextPage();
+        }
+        produced++;
+        return page[offset] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int off, int len) throws IOException {
+        if (produced >= size) {
+            return -1;
+        }
+        int offset = (int) (produced % PAGE);
+        if (offset == 0) {
+            nextPage();
+        }
+        int count = (int) Math.min(Math.min(len, PAGE - offset), size - produced);
+        System.arraycopy(page, offset, buffer, off, count);
+        produced += count;
+        return count;
+    }
+}
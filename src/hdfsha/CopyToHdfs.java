@@ -0,0 +1,482 @@
+package hdfsha;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.DataChecksum;
+import org.apache.log4j.Logger;
+
+
+//FIXME: read/write locks for the namenodeaddress.
+
+
+/**
+ * Copies a local file to HDFS, across failovers.
+ *
+ * With <code>copy.incremental</code> only what HDFS does not have yet is
+ * sent: if the HDFS copy is a prefix of the local file, the tail is
+ * appended. The whole prefix is checked against the checksum the
+ * datanodes compute for it, so a file that was rotated, truncated or
+ * rewritten is sent again in full. With
+ * <code>copy.follow</code> the file keeps being followed like
+ * <code>tail -f</code>, until it has not grown for
+ * <code>copy.followIdleMs</code> (0, the default, is forever). New data is
+ * hflushed once <code>copy.flushKB</code> (1024) have piled up, or after
+ * <code>copy.flushMs</code> (1000) at the end of the file. Attempts start
+ * over once some data is flushed, so a file followed for days survives
+ * any number of failovers.
+ */
+public class CopyToHdfs implements NamenodeChangedListener {
+
+    private static final Logger LOG = Logger.getLogger(CopyToHdfs.class);
+
+    private static final int COPY_BUFFER = 64 * 1024;
+    private static final long FOLLOW_INTERVAL_MS = 200;
+    private static final long LEASE_RECOVERY_WAIT_MS = 1000;
+    private static final int LEASE_RECOVERY_ATTEMPTS = 30;
+
+    private volatile String namenodeAddress;
+    private String localFile;
+    private String hdfsFile;
+    private NamenodeLookup lookup;
+    private final InFlightTransfers transfers = new InFlightTransfers();
+    // Null without compression.codec, shared by every attempt
+    private final BlockCompression compression = BlockCompression.fromProperties(new Configuration());
+    // Bytes hflushed so far, to tell an attempt that made progress
+    private long flushedBytes;
+
+    @Override
+    public void namenodeChanged(String newAddress) {
+        namenodeAddress = newAddress;
+        Metrics.get().namenodeChanged(newAddress);
+        LOG.info("Namenode changed to "  + newAddress);
+        transfers.cancelAll();
+    }
+
+
+
+    private void copy() throws IOException {
+        if (Boolean.getBoolean("copy.incremental")) {
+            copyIncremental();
+            return;
+        }
+        InputStream in = null;
+        FileSystem hdfs = null;
+        ProgressTracker progress = ProgressTracker.start("copy " + localFile,
+                new File(localFile).length());
+        try {
+
+            in = progress.track(BufferPool.get().buffered(new FileInputStream(localFile), 64 * 1024));
+            String hdfsFileUri = "hdfs://" + namenodeAddress + hdfsFile;
+            Configuration conf = new Configuration();
+            hdfs = FileSystem.get(URI.create(hdfsFileUri), conf);
+
+            OutputStream hdfsOut = hdfs.create(new Path(hdfsFileUri), true, 4096,
+                    progress.progressable());
+            OutputStream out = hdfsOut;
+            if (compression != null) {
+                compression.reset();
+                out = compression.compress(hdfsOut);
+            }
+            LOG.info("Copying " + localFile + " to " + hdfsFileUri);
+            InFlightTransfers.Transfer transfer = transfers.register(hdfsOut);
+            try {
+                BufferPool.get().copy(in, out, 64 * 1024, true);// has a finally to close the streams
+                if (compression != null) {
+                    LOG.info("Compression: " + compression.report());
+                }
+            } catch (IOException e) {
+                if (transfer.isCancelled()) {
+                    throw new NameNodeChangedException();
+                }
+                throw e;
+            } finally {
+                transfers.unregister(transfer);
+            }
+        } finally {
+            progress.finish();
+            if(hdfs != null){
+                hdfs.close();
+            }
+        }
+
+    }
+
+    //========================================================================
+    // Incremental copy
+    //========================================================================
+
+    private void copyIncremental() throws IOException {
+        File local = new File(localFile);
+        if (!local.exists()) {
+            throw new FileNotFoundException("The local file " + localFile + " does not exist");
+        }
+        String hdfsFileUri = "hdfs://" + namenodeAddress + hdfsFile;
+        Configuration conf = new Configuration();
+        FileSystem hdfs = FileSystem.get(URI.create(hdfsFileUri), conf);
+        Path path = new Path(hdfsFileUri);
+        RandomAccessFile in = null;
+        FSDataOutputStream out = null;
+        ProgressTracker progress = null;
+        try {
+            long shipped = shippedLength(hdfs, path, local);
+            progress = ProgressTracker.start("append " + localFile,
+                    local.length() - Math.max(shipped, 0));
+            if (shipped < 0) {
+                out = hdfs.create(path, true, 4096, progress.progressable());
+                shipped = 0;
+            } else {
+                out = hdfs.append(path, 4096, progress.progressable());
+            }
+            in = new RandomAccessFile(local, "r");
+            in.seek(shipped);
+
+            InFlightTransfers.Transfer transfer = transfers.register(out);
+            try {
+                long sent = shipTail(in, out, shipped, local, progress);
+                out.close();
+                out = null;
+                LOG.info("Appended " + sent + " bytes to " + hdfsFileUri);
+            } catch (IOException e) {
+                if (transfer.isCancelled()) {
+                    throw new NameNodeChangedException();
+                }
+                throw e;
+            } finally {
+                transfers.unregister(transfer);
+            }
+        } finally {
+            if (progress != null) {
+                progress.finish();
+            }
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    LOG.debug("Error closing the HDFS file", e);
+                }
+            }
+            hdfs.close();
+        }
+    }
+
+    /**
+     * @return how much of the local file HDFS already has, or -1 if it must
+     * be sent again from the start
+     */
+    private long shippedLength(FileSystem hdfs, Path path, File local)
+            throws IOException {
+        if (!hdfs.exists(path)) {
+            return -1;
+        }
+        // A previous attempt may have died holding the lease
+        recoverLease(hdfs, path);
+        long remote = hdfs.getFileStatus(path).getLen();
+        if (remote > local.length()) {
+            LOG.warn("The local file is shorter than the HDFS copy, sending it again");
+            return -1;
+        }
+        if (!samePrefix(hdfs, path, local, remote)) {
+            LOG.warn("The HDFS copy is not a prefix of the local file, sending it again");
+            return -1;
+        }
+        LOG.info("HDFS has " + remote + " of " + local.length() + " bytes");
+        return remote;
+    }
+
+    private void recoverLease(FileSystem hdfs, Path path) throws IOException {
+        if (!(hdfs instanceof DistributedFileSystem)) {
+            return;
+        }
+        for (int i = 0; i < LEASE_RECOVERY_ATTEMPTS; i++) {
+            if (((DistributedFileSystem) hdfs).recoverLease(path)) {
+                return;
+            }
+            try {
+                Thread.sleep(LEASE_RECOVERY_WAIT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted recovering the lease of " + path);
+            }
+        }
+        throw new IOException("Could not recover the lease of " + path);
+    }
+
+    /**
+     * Compares the whole shipped prefix on both sides: with the checksum the
+     * datanodes compute for it, so only the local file is read, or by reading
+     * the HDFS copy back if the file system has no such checksum
+     */
+    private boolean samePrefix(FileSystem hdfs, Path path, File local, long length)
+            throws IOException {
+        if (length == 0) {
+            return true;
+        }
+        FileChecksum remote = hdfs.getFileChecksum(path, length);
+        if (remote instanceof MD5MD5CRC32FileChecksum) {
+            byte[] md5 = localChecksum(hdfs.getFileBlockLocations(path, 0, length),
+                    ((MD5MD5CRC32FileChecksum) remote).getChecksumOpt(), local, length);
+            // Serialized as bytes per CRC, CRCs per block, the MD5 and more
+            DataInputStream bytes = new DataInputStream(new ByteArrayInputStream(remote.getBytes()));
+            bytes.readInt();
+            bytes.readLong();
+            return Arrays.equals(md5, MD5Hash.read(bytes).getDigest());
+        }
+        return crc(hdfs.open(path, 4096), length) == crc(new FileInputStream(local), length);
+    }
+
+    /**
+     * Computes the MD5 of block MD5s of chunk CRCs, as the datanodes do for
+     * the HDFS copy
+     * @return the final MD5
+     */
+    private static byte[] localChecksum(BlockLocation[] blocks, Options.ChecksumOpt opt,
+            File local, long length) throws IOException {
+        int bytesPerCrc = opt.getBytesPerChecksum();
+        DataChecksum crc = DataChecksum.newDataChecksum(opt.getChecksumType(), bytesPerCrc);
+        byte[] chunk = new byte[bytesPerCrc];
+        DataOutputBuffer crcs = new DataOutputBuffer();
+        DataOutputBuffer md5s = new DataOutputBuffer();
+        DataInputStream in = new DataInputStream(BufferPool.get().buffered(
+                new FileInputStream(local), COPY_BUFFER));
+        try {
+            long offset = 0;
+            for (BlockLocation block : blocks) {
+                long end = Math.min(block.getOffset() + block.getLength(), length);
+                if (block.getOffset() != offset) {
+                    throw new IOException("Block at " + block.getOffset() + " instead of " + offset);
+                }
+                crcs.reset();
+                while (offset < end) {
+                    int size = (int) Math.min(bytesPerCrc, end - offset);
+                    in.readFully(chunk, 0, size);
+                    crc.reset();
+                    crc.update(chunk, 0, size);
+                    crcs.writeInt((int) crc.getValue());
+                    offset += size;
+                }
+                MD5Hash.digest(crcs.getData(), 0, crcs.getLength()).write(md5s);
+            }
+            if (offset != length) {
+                throw new IOException("Blocks cover " + offset + " of " + length + " bytes");
+            }
+        } finally {
+            in.close();
+        }
+        // Like the HDFS client, over the whole backing array and not just
+        // its used length: the growth is the same, so are the trailing zeros
+        return MD5Hash.digest(md5s.getData()).getDigest();
+    }
+
+    /**
+     * @return the CRC of the first bytes of the stream, which is closed
+     */
+    private static long crc(InputStream in, long length) throws IOException {
+        ByteBuffer buffer = BufferPool.get().acquire(false, COPY_BUFFER);
+        try {
+            byte[] bytes = buffer.array();
+            CRC32 crc = new CRC32();
+            while (length > 0) {
+                int read = in.read(bytes, 0, (int) Math.min(COPY_BUFFER, length));
+                if (read == -1) {
+                    throw new IOException("End of file " + length + " bytes too early");
+                }
+                crc.update(bytes, 0, read);
+                length -= read;
+            }
+            return crc.getValue();
+        } finally {
+            BufferPool.get().release(buffer);
+            in.close();
+        }
+    }
+
+    /**
+     * Sends from the current position to the end of the local file, and
+     * then keeps following it if asked to
+     * @param offset where the local file is positioned
+     * @return the bytes sent
+     */
+    private long shipTail(RandomAccessFile in, FSDataOutputStream out, long offset,
+            File local, ProgressTracker progress) throws IOException {
+        boolean follow = Boolean.getBoolean("copy.follow");
+        long idleMs = Long.getLong("copy.followIdleMs", 0);
+        long flushBytes = Long.getLong("copy.flushKB", 1024) * 1024;
+        long flushMs = Long.getLong("copy.flushMs", 1000);
+
+        ByteBuffer buffer = BufferPool.get().acquire(false, COPY_BUFFER);
+        long sent = 0;
+        long unflushed = 0;
+        long lastFlush = System.currentTimeMillis();
+        long lastGrowth = lastFlush;
+        try {
+            byte[] bytes = buffer.array();
+            while (true) {
+                int read = in.read(bytes, 0, COPY_BUFFER);
+                long now = System.currentTimeMillis();
+                if (read > 0) {
+                    out.write(bytes, 0, read);
+                    offset += read;
+                    sent += read;
+                    unflushed += read;
+                    progress.addBytes(read);
+                    lastGrowth = now;
+                    if (follow && unflushed >= flushBytes) {
+                        out.hflush();
+                        flushedBytes += unflushed;
+                        unflushed = 0;
+                        lastFlush = now;
+                    }
+                    continue;
+                }
+
+                // End of the local file for now
+                if (!follow) {
+                    return sent;
+                }
+                if (unflushed > 0 && now - lastFlush >= flushMs) {
+                    out.hflush();
+                    flushedBytes += unflushed;
+                    unflushed = 0;
+                    lastFlush = now;
+                }
+                if (local.length() < offset) {
+                    // Retried from the start by run()
+                    throw new IOException("The local file shrank, it was rotated or truncated");
+                }
+                if (idleMs > 0 && now - lastGrowth >= idleMs) {
+                    LOG.info("No new data for " + idleMs + " ms, stop following");
+                    return sent;
+                }
+                try {
+                    Thread.sleep(FOLLOW_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted following " + localFile);
+                }
+            }
+        } finally {
+            BufferPool.get().release(buffer);
+        }
+    }
+
+    /**
+     * Copies the file, retrying across failovers. The lookup is shut down
+     * when done.
+     * @throws FileNotFoundException if the local file does not exist
+     * @throws IOException if every attempt failed, with the last failure
+     */
+    void run() throws IOException, InterruptedException{
+        final int MAX_ATTEMPTS = 10;
+        IOException last = null;
+        try {
+            for (int i = 1; i <= MAX_ATTEMPTS; i++) {
+                long flushedBefore = flushedBytes;
+                try {
+                    copy();
+                    // Copy succeed, get out the loop
+                    LOG.info("Buffer pool: " + BufferPool.get().report());
+                    return;
+                } catch (NameNodeChangedException e) {
+                    // The new namenode is already known, retry at once
+                    LOG.warn("Namenode changed on attempt " + i + ", retrying on "
+                            + namenodeAddress);
+                    last = e;
+                } catch (FileNotFoundException e) {
+                    // No point in trying again
+                    throw e;
+                } catch (IOException e) {
+                    LOG.warn("IOException when copying the file to "
+                            + namenodeAddress + "on Attempt " + i, e);
+                    last = e;
+                    // Wait some time to try againg
+                    Thread.sleep(5000);
+                }
+                if (flushedBytes > flushedBefore) {
+                    // Only failures in a row count, HDFS has what was sent
+                    LOG.info("Attempt " + i + " flushed " + (flushedBytes - flushedBefore)
+                            + " bytes, attempts start over");
+                    i = 0;
+                }
+            }
+        } finally {
+            if (compression != null) {
+                compression.close();
+            }
+            lookup.shutdown();
+        }
+        throw new IOException("Could not copy " + localFile + " in "
+                + MAX_ATTEMPTS + " attempts", last);
+    }
+
+
+    public CopyToHdfs(String zooConnString, String localFile, String hdfsFile){
+        this.localFile = localFile;
+        String[] federated = NamenodeLookupFederated.parse(hdfsFile);
+        if (federated != null) {
+            // nameservice://path on a federated cluster
+            this.hdfsFile = federated[1];
+            this.lookup = new NamenodeLookupFederated(zooConnString, federated[0]);
+        } else {
+            this.hdfsFile = hdfsFile;
+            this.lookup = new NamenodeLookupZooKeeper(zooConnString);
+        }
+        // Listen first, a cached address may be corrected at any moment
+        lookup.setListener(this);
+        this.namenodeAddress = lookup.getNamenodeAddress();
+        Metrics.get().namenode(namenodeAddress);
+    }
+
+    public static void main(String... args) throws InterruptedException{
+        if(args.length != 3){
+            LOG.fatal("Missing parameters");
+            System.exit(1);
+        }
+        Metrics.get().publish();
+        if (new File(args[1]).isDirectory()) {
+            // Directories are mirrored, sending only what changed
+            try {
+                MirrorToHdfs.main(args);
+            } catch (Exception e) {
+                LOG.fatal("Mirroring failed", e);
+                System.exit(1);
+            }
+            return;
+        }
+        CopyToHdfs copier = new CopyToHdfs(args[0], args[1] ,args[2]);
+        try {
+            copier.run();
+        } catch (IOException e) {
+            LOG.fatal("Copy failed", e);
+            System.exit(1);
+        }
+
+    }
+
+}
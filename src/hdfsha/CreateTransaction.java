@@ -0,0 +1,46 @@
+package hdfsha;
+
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+
+/**
+ * Resilient {@link ZooKeeper#create}.
+ *
+ * A create retried after a connection loss may have been applied already, so
+ * callers should be ready for a {@link KeeperException.NodeExistsException}.
+ */
+public final class CreateTransaction extends Transaction<String> {
+
+    /** The data of the new node*/
+    private byte[] data;
+    /** Persistent, ephemeral, sequential...*/
+    private CreateMode mode;
+
+    /**
+     * @param conn ZooKeeper connection
+     * @param nodePath the path of the znode to be created
+     * @param data the data of the new znode
+     * @param mode the kind of znode
+     */
+    public CreateTransaction(ZooKeeper conn,String nodePath, byte[] data, CreateMode mode){
+        super(conn,nodePath);
+        this.data = data;
+        this.mode = mode;
+    }
+
+
+
+    @Override
+    public String toString() {
+        return "CreateTransaction [result=" + result + ", path=" + path
+                + ", zooConn=" + zooConn + ", mode=" + mode +"]";
+    }
+
+    @Override
+    protected void trasactionBody() throws KeeperException, InterruptedException{
+        result = zooConn.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode);
+    }
+}
@@ -1,3 +1,5 @@
+package hdfsha;
+
 import java.io.IOException;
 import java.io.InputStream;
 
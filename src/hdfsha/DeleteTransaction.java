@@ -0,0 +1,40 @@
+package hdfsha;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+
+/**
+ * Resilient {@link ZooKeeper#delete}.
+ *
+ * A delete retried after a connection loss may have been applied already, so
+ * callers should be ready for a {@link KeeperException.NoNodeException}.
+ */
+public final class DeleteTransaction extends Transaction<Void> {
+
+    /** The expected version of the node, -1 for any*/
+    private int version;
+
+    /**
+     * @param conn ZooKeeper connection
+     * @param nodePath the path of the znode to be deleted
+     * @param version the expected version of the znode, -1 for any
+     */
+    public DeleteTransaction(ZooKeeper conn,String nodePath, int version){
+        super(conn,nodePath);
+        this.version = version;
+    }
+
+
+
+    @Override
+    public String toString() {
+        return "DeleteTransaction [path=" + path + ", zooConn=" + zooConn
+                + ", version=" + version +"]";
+    }
+
+    @Override
+    protected void trasactionBody() throws KeeperException, InterruptedException{
+        zooConn.delete(path, version);
+    }
+}
@@ -0,0 +1,39 @@
+package hdfsha;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Resilient {@link ZooKeeper#exists}
+ */
+public final class ExistsTransaction extends Transaction<Stat> {
+
+    /** The watcher to be notified when the node is created, changed or deleted*/
+    private Watcher watcher;
+
+    /**
+     * @param conn ZooKeeper connection
+     * @param nodePath the path to znode you want to check
+     * @param watcher the watcher to be notified of changes in the node, may be null
+     */
+    public ExistsTransaction(ZooKeeper conn,String nodePath, Watcher watcher){
+        super(conn,nodePath);
+        this.watcher = watcher;
+    }
+
+
+
+    @Override
+    public String toString() {
+        return "ExistsTransaction [result=" + result + ", path=" + path
+                + ", zooConn=" + zooConn + ", watcher=" + watcher +"]";
+    }
+
+    @Override
+    protected void trasactionBody() throws KeeperException, InterruptedException{
+        result = zooConn.exists(path, watcher);
+    }
+}
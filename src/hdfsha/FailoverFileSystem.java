@@ -0,0 +1,648 @@
+package hdfsha;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.apache.log4j.Logger;
+
+/**
+ * A {@link FileSystem} that always talks to the active namenode, as given by
+ * a {@link NamenodeLookup}, and replays calls interrupted by a failover
+ * through {@link FailoverHandler}.
+ *
+ * Paths are taken relative to the cluster, whatever namenode their URI
+ * names, so <code>hdfs://old-active/dir</code> is served by the new active.
+ * Replays know which calls are idempotent:
+ * <ul>
+ * <li>getFileStatus, listStatus, mkdirs and open are just replayed</li>
+ * <li>delete replayed after a failover may find the path already gone,
+ * deleted by the call that was interrupted, so false then counts as done</li>
+ * <li>rename replayed finding the source gone and the target there counts
+ * as done</li>
+ * <li>create is replayed only if it overwrites, and append never is</li>
+ * </ul>
+ * Streams from {@link #open(Path, int)} reopen the file on the new active
+ * and continue at the same position if a read fails. Output streams are
+ * bound to the namenode that created them.
+ *
+ * The number of calls, replays and the time to recover, from the first
+ * failure to the success, are kept for every kind of call.
+ *
+ * getFileStatus and listStatus go to the namenode the lookup picks for
+ * reads, which may be a standby or an observer. If it fails them, the lookup
+ * is told and the active answers, without waiting for a failover.
+ *
+ * With a {@link MetadataCache}, getFileStatus and listStatus are answered
+ * from it when they can. Changes through this file system invalidate it,
+ * and so does every failover.
+ */
+public class FailoverFileSystem extends FileSystem {
+
+    private static final Logger LOG = Logger.getLogger(FailoverFileSystem.class);
+
+    public enum Op {
+        OPEN, READ, CREATE, APPEND, LIST, STAT, MKDIRS, DELETE, RENAME
+    }
+
+    /**
+     * A call against the file system of the current active namenode
+     */
+    private interface Call<ReturnType> {
+        /**
+         * @param replay whether a previous attempt of the call failed
+         */
+        ReturnType run(FileSystem fs, boolean replay) throws IOException;
+    }
+
+    private static final class OpStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong recovered = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final LatencyHistogram recovery = new LatencyHistogram();
+    }
+
+    private final FailoverHandler failover;
+    private final Configuration conf;
+    private final Map<String, FileSystem> fileSystems = new HashMap<String, FileSystem>();
+    private final Map<Op, OpStats> stats = new EnumMap<Op, OpStats>(Op.class);
+    private volatile MetadataCache cache;
+    private Path workingDirectory = new Path("/");
+
+    /**
+     * @param failover shared with the callers that do their own retries
+     */
+    public FailoverFileSystem(FailoverHandler failover, Configuration conf) {
+        this.failover = failover;
+        this.conf = conf;
+        // The overloads of open and create without a buffer size read it from here
+        setConf(conf);
+        for (Op op : Op.values()) {
+            stats.put(op, new OpStats());
+        }
+    }
+
+    public FailoverFileSystem(NamenodeLookup lookup, Configuration conf) {
+        this(new FailoverHandler(lookup), conf);
+    }
+
+    FailoverHandler getFailover() {
+        return failover;
+    }
+
+    /**
+     * @param cache may be null, for no caching
+     */
+    public void setMetadataCache(MetadataCache cache) {
+        if (this.cache != null) {
+            failover.removeListener(this.cache);
+        }
+        if (cache != null) {
+            failover.addListener(cache);
+        }
+        this.cache = cache;
+    }
+
+    public MetadataCache getMetadataCache() {
+        return cache;
+    }
+
+    /**
+     * To be called after changing the path other than through this file
+     * system, so it is not served stale from the cache
+     */
+    public void invalidate(Path path) {
+        MetadataCache current = cache;
+        if (current != null) {
+            current.invalidate(strip(path));
+        }
+    }
+
+    /**
+     * @return the client of the given namenode, kept until this is closed
+     */
+    synchronized FileSystem fileSystem(String namenodeAddress)
+            throws IOException {
+        FileSystem fs = fileSystems.get(namenodeAddress);
+        if (fs == null) {
+            fs = FileSystem.get(URI.create("hdfs://" + namenodeAddress + "/"), conf);
+            fileSystems.put(namenodeAddress, fs);
+        }
+        return fs;
+    }
+
+    /**
+     * @return the path without scheme and authority, to be resolved on
+     * whichever namenode is active
+     */
+    private Path strip(Path path) {
+        Path absolute = path.isAbsolute() ? path : new Path(workingDirectory, path);
+        return new Path(absolute.toUri().getPath());
+    }
+
+    private <ReturnType> ReturnType call(Op op, String name,
+            final Call<ReturnType> call) throws IOException {
+        return call(op, name, call, 0);
+    }
+
+    /**
+     * @param failedNanos when the call already failed outside the handler,
+     * so it is run as a replay and counted once; 0 if it did not
+     */
+    private <ReturnType> ReturnType call(Op op, String name,
+            final Call<ReturnType> call, long failedNanos) throws IOException {
+        final OpStats opStats = stats.get(op);
+        final int[] attempts = { failedNanos == 0 ? 0 : 1 };
+        final long[] firstFailure = { failedNanos };
+        if (failedNanos == 0) {
+            opStats.calls.incrementAndGet();
+        }
+        try {
+            ReturnType result = failover.execute(name, new FailoverHandler.Attempt<ReturnType>() {
+
+                @Override
+                public ReturnType run(String namenodeAddress) throws IOException {
+                    boolean replay = attempts[0]++ > 0;
+                    if (replay) {
+                        opStats.retries.incrementAndGet();
+                    }
+                    try {
+                        return call.run(fileSystem(namenodeAddress), replay);
+                    } catch (FileNotFoundException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        if (firstFailure[0] == 0) {
+                            firstFailure[0] = System.nanoTime();
+                        }
+                        throw e;
+                    }
+                }
+            });
+            if (firstFailure[0] != 0) {
+                opStats.recovered.incrementAndGet();
+                synchronized (opStats) {
+                    opStats.recovery.record(System.nanoTime() - firstFailure[0]);
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during " + name);
+        } catch (IOException e) {
+            if (!(e instanceof FileNotFoundException)) {
+                opStats.failed.incrementAndGet();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a metadata read on the namenode the lookup routes reads to, and
+     * on the active if that one fails with anything but an error of the call
+     * itself
+     */
+    private <ReturnType> ReturnType readCall(Op op, final String name,
+            final Call<ReturnType> call) throws IOException {
+        return call(op, name, new Call<ReturnType>() {
+
+            @Override
+            public ReturnType run(FileSystem active, boolean replay) throws IOException {
+                NamenodeLookup lookup = failover.getLookup();
+                String readAddress = lookup.getReadNamenodeAddress();
+                FileSystem fs = fileSystem(readAddress);
+                if (fs == active) {
+                    return call.run(active, replay);
+                }
+                try {
+                    return call.run(fs, replay);
+                } catch (IOException e) {
+                    if (!FailoverHandler.isRetriable(e)) {
+                        throw e;
+                    }
+                    LOG.warn("Could not " + name + " on " + readAddress + ", asking the active", e);
+                    if (lookup instanceof NamenodeLookupMulti) {
+                        ((NamenodeLookupMulti) lookup).readFailed(readAddress);
+                    }
+                    return call.run(active, replay);
+                }
+            }
+        });
+    }
+
+    @Override
+    public URI getUri() {
+        return URI.create("hdfs://" + failover.getNamenodeAddress());
+    }
+
+    @Override
+    public Path getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    @Override
+    public void setWorkingDirectory(Path dir) {
+        workingDirectory = strip(dir);
+    }
+
+    @Override
+    public FileStatus getFileStatus(Path path) throws IOException {
+        final Path p = strip(path);
+        MetadataCache current = cache;
+        FileStatus status = current == null ? null : current.getFileStatus(p);
+        if (status != null) {
+            return status;
+        }
+        long generation = current == null ? 0 : current.generation();
+        status = readCall(Op.STAT, "stat " + p, new Call<FileStatus>() {
+
+            @Override
+            public FileStatus run(FileSystem fs, boolean replay) throws IOException {
+                return fs.getFileStatus(p);
+            }
+        });
+        if (current != null) {
+            current.putFileStatus(p, status, generation);
+        }
+        return status;
+    }
+
+    @Override
+    public FileStatus[] listStatus(Path path) throws IOException {
+        final Path p = strip(path);
+        MetadataCache current = cache;
+        FileStatus[] listing = current == null ? null : current.listStatus(p);
+        if (listing != null) {
+            return listing.clone();
+        }
+        long generation = current == null ? 0 : current.generation();
+        listing = readCall(Op.LIST, "list " + p, new Call<FileStatus[]>() {
+
+            @Override
+            public FileStatus[] run(FileSystem fs, boolean replay) throws IOException {
+                return fs.listStatus(p);
+            }
+        });
+        if (current != null) {
+            current.putListing(p, listing.clone(), generation);
+        }
+        return listing;
+    }
+
+    @Override
+    public boolean mkdirs(Path path, final FsPermission permission) throws IOException {
+        final Path p = strip(path);
+        try {
+            return call(Op.MKDIRS, "mkdirs " + p, new Call<Boolean>() {
+
+                @Override
+                public Boolean run(FileSystem fs, boolean replay) throws IOException {
+                    return fs.mkdirs(p, permission);
+                }
+            });
+        } finally {
+            invalidate(p);
+        }
+    }
+
+    @Override
+    public boolean delete(Path path, final boolean recursive) throws IOException {
+        final Path p = strip(path);
+        try {
+            return call(Op.DELETE, "delete " + p, new Call<Boolean>() {
+
+                @Override
+                public Boolean run(FileSystem fs, boolean replay) throws IOException {
+                    // Gone on replay: the interrupted call deleted it
+                    return fs.delete(p, recursive) || replay;
+                }
+            });
+        } finally {
+            invalidate(p);
+        }
+    }
+
+    @Override
+    public boolean rename(Path source, Path target) throws IOException {
+        final Path src = strip(source);
+        final Path dst = strip(target);
+        try {
+            return call(Op.RENAME, "rename " + src, new Call<Boolean>() {
+
+                @Override
+                public Boolean run(FileSystem fs, boolean replay) throws IOException {
+                    if (fs.rename(src, dst)) {
+                        return true;
+                    }
+                    // The interrupted call may have renamed it already
+                    return replay && !fs.exists(src) && fs.exists(dst);
+                }
+            });
+        } finally {
+            invalidate(src);
+            invalidate(dst);
+        }
+    }
+
+    @Override
+    public FSDataOutputStream create(Path path, final FsPermission permission,
+            final boolean overwrite, final int bufferSize, final short replication,
+            final long blockSize, final Progressable progress) throws IOException {
+        final Path p = strip(path);
+        try {
+            if (!overwrite) {
+                // Not replayed, the interrupted call may have created it
+                stats.get(Op.CREATE).calls.incrementAndGet();
+                return fileSystem(failover.getNamenodeAddress()).create(p, permission,
+                        overwrite, bufferSize, replication, blockSize, progress);
+            }
+            return call(Op.CREATE, "create " + p, new Call<FSDataOutputStream>() {
+
+                @Override
+                public FSDataOutputStream run(FileSystem fs, boolean replay) throws IOException {
+                    return fs.create(p, permission, overwrite, bufferSize, replication,
+                            blockSize, progress);
+                }
+            });
+        } finally {
+            invalidate(p);
+        }
+    }
+
+    @Override
+    public FSDataOutputStream append(Path path, int bufferSize, Progressable progress)
+            throws IOException {
+        Path p = strip(path);
+        stats.get(Op.APPEND).calls.incrementAndGet();
+        try {
+            // Never replayed, a lost append cannot be told from a done one
+            return fileSystem(failover.getNamenodeAddress()).append(p, bufferSize, progress);
+        } finally {
+            invalidate(p);
+        }
+    }
+
+    @Override
+    public FSDataInputStream open(Path path, final int bufferSize) throws IOException {
+        final Path p = strip(path);
+        FSDataInputStream in = call(Op.OPEN, "open " + p, new Call<FSDataInputStream>() {
+
+            @Override
+            public FSDataInputStream run(FileSystem fs, boolean replay) throws IOException {
+                return fs.open(p, bufferSize);
+            }
+        });
+        return new FSDataInputStream(new ReopeningInputStream(p, bufferSize, in));
+    }
+
+    /**
+     * A read on the stream of the file
+     */
+    private interface StreamCall<ReturnType> {
+        ReturnType run(FSDataInputStream in) throws IOException;
+    }
+
+    /**
+     * Reopens the file on the active namenode when a read fails, and goes on
+     * from the same position. Reads go straight to the open stream, their
+     * data comes from the datanodes; only a failed one goes through the
+     * {@link FailoverHandler}, to reopen the file and be replayed.
+     */
+    private final class ReopeningInputStream extends InputStream
+            implements Seekable, PositionedReadable {
+
+        private final Path path;
+        private final int bufferSize;
+        private FSDataInputStream in;
+        private int epoch;
+        private long position = 0;
+
+        private ReopeningInputStream(Path path, int bufferSize, FSDataInputStream in) {
+            this.path = path;
+            this.bufferSize = bufferSize;
+            this.in = in;
+            this.epoch = failover.getEpoch();
+        }
+
+        private FSDataInputStream stream(FileSystem fs) throws IOException {
+            if (epoch != failover.getEpoch()) {
+                // Opened through the old active
+                discard();
+            }
+            if (in == null) {
+                epoch = failover.getEpoch();
+                in = fs.open(path, bufferSize);
+                in.seek(position);
+            }
+            return in;
+        }
+
+        private void discard() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // It is broken anyway
+                }
+                in = null;
+            }
+        }
+
+        private <ReturnType> ReturnType read(final StreamCall<ReturnType> read)
+                throws IOException {
+            long failedNanos = 0;
+            if (in != null && epoch == failover.getEpoch()) {
+                stats.get(Op.READ).calls.incrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    ReturnType result = read.run(in);
+                    Metrics.get().operation("read_chunk", System.nanoTime() - start);
+                    return result;
+                } catch (FileNotFoundException e) {
+                    throw e;
+                } catch (IOException e) {
+                    LOG.debug("Read of " + path + " failed at " + position + ", replaying", e);
+                    failedNanos = System.nanoTime();
+                    discard();
+                }
+            }
+            return call(Op.READ, "read_chunk " + path, new Call<ReturnType>() {
+
+                @Override
+                public ReturnType run(FileSystem fs, boolean replay) throws IOException {
+                    if (replay) {
+                        discard();
+                    }
+                    return read.run(stream(fs));
+                }
+            }, failedNanos);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int data = read(new StreamCall<Integer>() {
+
+                @Override
+                public Integer run(FSDataInputStream stream) throws IOException {
+                    return stream.read();
+                }
+            });
+            if (data != -1) {
+                position++;
+            }
+            return data;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length)
+                throws IOException {
+            int read = read(new StreamCall<Integer>() {
+
+                @Override
+                public Integer run(FSDataInputStream stream) throws IOException {
+                    return stream.read(buffer, offset, length);
+                }
+            });
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(final long at, final byte[] buffer, final int offset,
+                final int length) throws IOException {
+            return read(new StreamCall<Integer>() {
+
+                @Override
+                public Integer run(FSDataInputStream stream) throws IOException {
+                    return stream.read(at, buffer, offset, length);
+                }
+            });
+        }
+
+        @Override
+        public void readFully(final long at, final byte[] buffer, final int offset,
+                final int length) throws IOException {
+            read(new StreamCall<Void>() {
+
+                @Override
+                public Void run(FSDataInputStream stream) throws IOException {
+                    stream.readFully(at, buffer, offset, length);
+                    return null;
+                }
+            });
+        }
+
+        @Override
+        public void readFully(long at, byte[] buffer) throws IOException {
+            readFully(at, buffer, 0, buffer.length);
+        }
+
+        @Override
+        public void seek(final long target) throws IOException {
+            read(new StreamCall<Void>() {
+
+                @Override
+                public Void run(FSDataInputStream stream) throws IOException {
+                    stream.seek(target);
+                    return null;
+                }
+            });
+            position = target;
+        }
+
+        @Override
+        public long getPos() {
+            return position;
+        }
+
+        @Override
+        public boolean seekToNewSource(long target) throws IOException {
+            return in != null && in.seekToNewSource(target);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in == null ? 0 : in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * @return the attempts of that kind of call that were replays
+     */
+    long getRetries(Op op) {
+        return stats.get(op).retries.get();
+    }
+
+    /**
+     * @return the calls of that kind that failed and then succeeded
+     */
+    long getRecovered(Op op) {
+        return stats.get(op).recovered.get();
+    }
+
+    /**
+     * @return a line per kind of call that was used: calls, replays, calls
+     * that recovered, calls that failed, and the recovery time
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<Op, OpStats> entry : stats.entrySet()) {
+            OpStats opStats = entry.getValue();
+            if (opStats.calls.get() == 0) {
+                continue;
+            }
+            String recovery;
+            synchronized (opStats) {
+                recovery = opStats.recovery.summary();
+            }
+            lines.add(String.format(Locale.ENGLISH,
+                    "op=%s, calls=%d, retries=%d, recovered=%d, failed=%d, recovery: %s",
+                    entry.getKey().name().toLowerCase(Locale.ENGLISH),
+                    opStats.calls.get(), opStats.retries.get(),
+                    opStats.recovered.get(), opStats.failed.get(), recovery));
+        }
+        return lines;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The handler may outlive this
+        setMetadataCache(null);
+        synchronized (this) {
+            for (FileSystem fs : fileSystems.values()) {
+                fs.close();
+            }
+            fileSystems.clear();
+        }
+        super.close();
+    }
+}
@@ -0,0 +1,263 @@
+package hdfsha;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.ParentNotDirectoryException;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.ipc.RetriableException;
+import org.apache.hadoop.ipc.StandbyException;
+import org.apache.hadoop.security.AccessControlException;
+import org.apache.log4j.Logger;
+
+/**
+ * Failover handling modelled on the one of {@link ClientTest} and
+ * {@link FailoverTest}, which keep their own, in a form that many worker
+ * threads can share.
+ *
+ * Every failover increments an epoch. An attempt that fails with an I/O
+ * error while the epoch did not change is assumed to have hit a failover in
+ * progress, so we wait for the new namenode; if the epoch did change, we
+ * already know the new namenode and just wait our turn to reconnect. Errors
+ * the namenode gave for the call itself, such as a missing file or a denied
+ * permission, are thrown at once: only a standby, a namenode asking to be
+ * retried or one still in safe mode after a failover are worth waiting for.
+ *
+ * <p><b>Sample code:</b></p>
+ *
+ * <pre>
+ * FileStatus status = failover.execute("stat " + path,
+ *         new FailoverHandler.Attempt&lt;FileStatus&gt;() {
+ *
+ *             public FileStatus run(String namenodeAddress) throws IOException {
+ *                 return fileSystem(namenodeAddress).getFileStatus(path);
+ *             }
+ *         });
+ * </pre>
+ */
+public class FailoverHandler implements NamenodeChangedListener {
+
+    private static final Logger LOG = Logger.getLogger(FailoverHandler.class);
+
+    // Waiting time configs
+    private static final int FAILOVER_INPROGRESS_WAIT_MIN = 5;
+    private static final int REGULAR_ERROR_WAIT_MS = 2000;
+    private static final int FAILOVER_COMPLETED_WAIT_MS = 2000;
+
+    public static final int MAX_ATTEMPTS = 10;
+
+    /** Remote errors that a failover, in progress or done, may explain */
+    private static final Set<String> RETRIABLE_REMOTE = new HashSet<String>(Arrays.asList(
+            StandbyException.class.getName(), RetriableException.class.getName(),
+            "org.apache.hadoop.hdfs.server.namenode.SafeModeException"));
+
+    /**
+     * One attempt of an operation against a namenode
+     * @param <ReturnType> the result of the operation
+     */
+    public interface Attempt<ReturnType> {
+        ReturnType run(String namenodeAddress) throws IOException;
+    }
+
+    private final NamenodeLookup lookup;
+    private final InFlightTransfers transfers = new InFlightTransfers();
+    private final ReconnectPacer pacer;
+    private final Object failoverMonitor = new Object();
+    private final AtomicLong retries = new AtomicLong();
+    private final List<NamenodeChangedListener> listeners = new CopyOnWriteArrayList<NamenodeChangedListener>();
+    private volatile String namenodeAddress;
+    private volatile int epoch = 0;
+
+    public FailoverHandler(NamenodeLookup lookup) {
+        this.lookup = lookup;
+        this.pacer = new ReconnectPacer(lookup, FAILOVER_COMPLETED_WAIT_MS);
+        lookup.setListener(this);
+        this.namenodeAddress = lookup.getNamenodeAddress();
+        Metrics.get().namenode(namenodeAddress);
+    }
+
+    @Override
+    public void namenodeChanged(String newAddress) {
+        synchronized (failoverMonitor) {
+            LOG.info("EVENT: NAMENODE_CHANGED " + newAddress);
+            namenodeAddress = newAddress;
+            epoch++;
+            Metrics.get().namenodeChanged(newAddress);
+            failoverMonitor.notifyAll();
+        }
+        transfers.cancelAll();
+        for (NamenodeChangedListener listener : listeners) {
+            listener.namenodeChanged(newAddress);
+        }
+    }
+
+    /**
+     * The lookup takes a single listener, the handler, which passes the
+     * change on to these, e.g. to drop what was cached from the old active
+     */
+    public void addListener(NamenodeChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(NamenodeChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    public String getNamenodeAddress() {
+        return namenodeAddress;
+    }
+
+    public NamenodeLookup getLookup() {
+        return lookup;
+    }
+
+    /**
+     * @return the number of failovers seen so far
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return how many attempts have been retried
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public InFlightTransfers getTransfers() {
+        return transfers;
+    }
+
+    public ReconnectPacer getPacer() {
+        return pacer;
+    }
+
+    /**
+     * Runs the attempt until it succeeds, handling failovers in between
+     * @param name describes the operation in logs and errors, its first word
+     * is the kind of operation in {@link Metrics}
+     * @throws IOException if all attempts failed
+     */
+    public <ReturnType> ReturnType execute(String name,
+            Attempt<ReturnType> attempt) throws IOException,
+            InterruptedException {
+        String op = name.split(" ", 2)[0];
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            ReturnType result = attempts(name, attempt);
+            succeeded = true;
+            Metrics.get().operation(op, System.nanoTime() - start);
+            return result;
+        } finally {
+            if (!succeeded) {
+                Metrics.get().operationFailed(op);
+            }
+        }
+    }
+
+    private <ReturnType> ReturnType attempts(String name,
+            Attempt<ReturnType> attempt) throws IOException,
+            InterruptedException {
+        pacer.admit();
+        for (int i = 1; i <= MAX_ATTEMPTS; i++) {
+            int epochBefore = epoch;
+            try {
+                return attempt.run(namenodeAddress);
+            } catch (NameNodeChangedException e) {
+                LOG.warn("Namenode changed during " + name);
+                handleFailoverAlreadyDone();
+            } catch (IOException e) {
+                if (!isRetriable(e)) {
+                    // Not a failover, retrying would not help
+                    throw e;
+                }
+                LOG.warn("I/O error on attempt " + i + " of " + name, e);
+                handleGenericIOException(epochBefore);
+            }
+            retries.incrementAndGet();
+            Metrics.get().retry();
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        // If we reach here something bad happened
+        throw new IOException("Could not " + name);
+    }
+
+    /**
+     * @return false for the errors the namenode gave for the call itself,
+     * whether the client unwrapped them or not
+     */
+    static boolean isRetriable(IOException e) {
+        if (e instanceof RemoteException) {
+            return RETRIABLE_REMOTE.contains(((RemoteException) e).getClassName());
+        }
+        return !(e instanceof FileNotFoundException
+                || e instanceof FileAlreadyExistsException
+                || e instanceof ParentNotDirectoryException
+                || e instanceof AccessControlException);
+    }
+
+    /**
+     * To be called by copy loops, so they stop as soon as the namenode changes
+     * @param epochBefore the epoch when the copy started
+     * @throws NameNodeChangedException if a failover happened since then
+     */
+    public void checkFailover(int epochBefore) throws NameNodeChangedException {
+        if (epoch != epochBefore) {
+            throw new NameNodeChangedException();
+        }
+    }
+
+    private void handleFailoverAlreadyDone() {
+        // Wait our turn inside the jitter window, so we do not flood the new active
+        try {
+            pacer.pause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleGenericIOException(int epochBefore) {
+        try {
+            if (epoch == epochBefore) {
+                /*
+                 * Right now, we don't know what happened. Let's expect for the
+                 * worst: a failover, and wait for it a little bit longer than
+                 * ZooKeeper timeout
+                 */
+                long deadline = System.nanoTime()
+                        + TimeUnit.MINUTES.toNanos(FAILOVER_INPROGRESS_WAIT_MIN);
+                synchronized (failoverMonitor) {
+                    long remaining;
+                    while (epoch == epochBefore
+                            && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(failoverMonitor, remaining);
+                    }
+                }
+                if (epoch != epochBefore) {
+                    LOG.info("EVENT: FAILOVER_COMPLETE");
+                    // Every waiting client wakes up now, do not rush together
+                    pacer.pause();
+                } else {
+                    LOG.warn("Some big failure happened, because failover did not happen");
+                }
+            } else {
+                // This might be a standby hiccup or the RPC has not given up yet
+                Thread.sleep(REGULAR_ERROR_WAIT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package hdfsha;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.MiniDFSNNTopology;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the clients against a mini HDFS cluster with two namenodes and an
+ * in-process ZooKeeper, injects failovers and namenode stalls at scripted
+ * times, and measures how long each client takes to recover.
+ *
+ * Clients reach the namenodes through a {@link StallingProxy} each, and
+ * <code>/namenode</code> points to the proxy of the active one. The script
+ * has one fault per line, with the time since the client started:
+ *
+ * <pre>
+ * # ms    fault
+ * 3000    flip           # the standby becomes active, /namenode is updated
+ * 20000   stall 8000     # the active namenode stops answering for 8 s
+ * </pre>
+ *
+ * Recovery time is measured from the fault until bytes flow again after the
+ * outage it caused, watching {@link ProgressTracker#getTotalBytes()}. Each
+ * client is run as many times as trials, and the recovery times are reported
+ * as distributions.
+ *
+ * Usage: <code>FailoverHarness &lt;script&gt; &lt;trials&gt; [clients]</code>, where
+ * clients is a comma separated subset of ClientTest, FailoverTest,
+ * CopyToHdfs and ReadFromHDFS. Needs the hadoop-hdfs test jar on the
+ * classpath. Sizes are set with <code>harness.blocks</code> and
+ * <code>harness.fileMB</code>. A client that gives up fails the run.
+ */
+public class FailoverHarness {
+
+    private static final Logger LOG = Logger.getLogger(FailoverHarness.class);
+
+    private static final String NAMENODE_ZOO_PATH = "/namenode";
+    private static final String HDFS_FILE = "/harness-copy";
+    private static final long SAMPLE_INTERVAL_MS = 50;
+
+    /**
+     * A fault injected at a given time since the client started
+     */
+    private static final class Fault {
+        final long atMs;
+        final String kind;
+        final long durationMs;
+
+        Fault(long atMs, String kind, long durationMs) {
+            this.atMs = atMs;
+            this.kind = kind;
+            this.durationMs = durationMs;
+        }
+    }
+
+    private final List<Fault> script;
+    private final LocalZooKeeperServer zookeeper;
+    private final MiniDFSCluster cluster;
+    private final StallingProxy[] proxies = new StallingProxy[2];
+    private final File localFile;
+    private int active = 0;
+
+    public FailoverHarness(List<Fault> script) throws Exception {
+        this.script = script;
+        File work = new File(System.getProperty("java.io.tmpdir"), "failover-harness");
+        zookeeper = new LocalZooKeeperServer(new File(work, "zookeeper"));
+        zookeeper.start();
+
+        cluster = new MiniDFSCluster.Builder(new Configuration())
+                .nnTopology(MiniDFSNNTopology.simpleHATopology())
+                .numDataNodes(1).build();
+        cluster.waitActive();
+        cluster.transitionToActive(active);
+        for (int i = 0; i < proxies.length; i++) {
+            InetSocketAddress address = cluster.getNameNode(i).getNameNodeAddress();
+            proxies[i] = new StallingProxy(address);
+        }
+        zookeeper.publish(NAMENODE_ZOO_PATH, proxies[active].getAddress());
+
+        localFile = new File(work, "harness-local");
+        writeLocalFile(localFile, Long.getLong("harness.fileMB", 128) * 1024 * 1024);
+    }
+
+    private static void writeLocalFile(File file, long size) throws IOException {
+        file.getParentFile().mkdirs();
+        InputStream in = new DeadBeefInputStream((int) (size / DeadBeefInputStream.HDFS_BLOCK) + 1);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            for (long i = 0; i < size; i++) {
+                out.write(in.read());
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private void inject(Fault fault) throws Exception {
+        if (fault.kind.equals("flip")) {
+            int standby = 1 - active;
+            LOG.info("EVENT: INJECT_FLIP to namenode " + standby);
+            cluster.transitionToStandby(active);
+            cluster.transitionToActive(standby);
+            active = standby;
+            zookeeper.publish(NAMENODE_ZOO_PATH, proxies[active].getAddress());
+        } else if (fault.kind.equals("stall")) {
+            LOG.info("EVENT: INJECT_STALL " + fault.durationMs + " ms");
+            proxies[active].stall(fault.durationMs);
+        }
+    }
+
+    /**
+     * Runs a client once, with the script
+     * @return the recovery time of each fault, in ms, or -1 if the client
+     * finished before the fault
+     */
+    private long[] trial(final String client) throws Exception {
+        final Exception[] failure = new Exception[1];
+        Thread runner = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runClient(client);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        }, "Harness-" + client);
+
+        List<long[]> samples = new ArrayList<long[]>();
+        long[] faultTimes = new long[script.size()];
+        Arrays.fill(faultTimes, -1);
+        long start = System.currentTimeMillis();
+        runner.start();
+
+        int next = 0;
+        while (runner.isAlive()) {
+            long now = System.currentTimeMillis();
+            samples.add(new long[] { now, ProgressTracker.getTotalBytes() });
+            if (next < script.size() && now - start >= script.get(next).atMs) {
+                faultTimes[next] = now;
+                inject(script.get(next));
+                next++;
+            }
+            runner.join(SAMPLE_INTERVAL_MS);
+        }
+        samples.add(new long[] { System.currentTimeMillis(), ProgressTracker.getTotalBytes() });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long[] recoveries = new long[script.size()];
+        for (int f = 0; f < script.size(); f++) {
+            recoveries[f] = faultTimes[f] < 0 ? -1 : recovery(samples, faultTimes[f]);
+        }
+        return recoveries;
+    }
+
+    /**
+     * From the fault until bytes flow again after the outage. No outage seen
+     * means the client did not notice the fault at all.
+     */
+    private static long recovery(List<long[]> samples, long faultTime) {
+        boolean outage = false;
+        for (int i = 1; i < samples.size(); i++) {
+            long[] previous = samples.get(i - 1);
+            long[] current = samples.get(i);
+            if (current[0] <= faultTime) {
+                continue;
+            }
+            boolean flowing = current[1] > previous[1];
+            if (!flowing) {
+                outage = true;
+            } else if (outage) {
+                return current[0] - faultTime;
+            }
+        }
+        // Never flowed again before the end of the client
+        return outage ? samples.get(samples.size() - 1)[0] - faultTime : 0;
+    }
+
+    private void runClient(String client) throws Exception {
+        String connectString = zookeeper.getConnectString();
+        int blocks = Integer.getInteger("harness.blocks", 2);
+        if (client.equals("ClientTest") || client.equals("FailoverTest")) {
+            NamenodeLookup lookup = new NamenodeLookupZooKeeper(connectString, null);
+            try {
+                int failures = client.equals("ClientTest")
+                        ? new ClientTest(lookup, blocks, 1).run()
+                        : new FailoverTest(lookup, blocks, 1).run();
+                if (failures > 0) {
+                    throw new IOException(client + " gave up on " + failures + " files");
+                }
+            } finally {
+                lookup.shutdown();
+            }
+        } else if (client.equals("CopyToHdfs")) {
+            new CopyToHdfs(connectString, localFile.getPath(), HDFS_FILE).run();
+        } else if (client.equals("ReadFromHDFS")) {
+            new ReadFromHDFS(connectString, HDFS_FILE).run();
+        } else {
+            throw new IllegalArgumentException("Unknown client " + client);
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        for (StallingProxy proxy : proxies) {
+            if (proxy != null) {
+                proxy.shutdown();
+            }
+        }
+        cluster.shutdown();
+        zookeeper.shutdown();
+        localFile.delete();
+    }
+
+    static List<Fault> parseScript(String file) throws IOException {
+        List<Fault> script = new ArrayList<Fault>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length < 2) {
+                    continue;
+                }
+                long duration = fields.length > 2 ? Long.parseLong(fields[2]) : 0;
+                script.add(new Fault(Long.parseLong(fields[0]), fields[1], duration));
+            }
+        } finally {
+            reader.close();
+        }
+        return script;
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: FailoverHarness <script> <trials> [clients]");
+            System.exit(1);
+        }
+        Metrics.get().publish();
+        List<Fault> script = parseScript(args[0]);
+        int trials = Integer.parseInt(args[1]);
+        // ReadFromHDFS reads what CopyToHdfs wrote, so copy goes first
+        String[] clients = (args.length > 2 ? args[2]
+                : "CopyToHdfs,ReadFromHDFS,ClientTest,FailoverTest").split(",");
+
+        FailoverHarness harness = new FailoverHarness(script);
+        Map<String, LatencyHistogram> recoveries = new LinkedHashMap<String, LatencyHistogram>();
+        Map<String, Integer> unaffected = new LinkedHashMap<String, Integer>();
+        try {
+            for (int trial = 1; trial <= trials; trial++) {
+                for (String client : clients) {
+                    LOG.info("Trial " + trial + " of " + client);
+                    if (!recoveries.containsKey(client)) {
+                        recoveries.put(client, new LatencyHistogram());
+                        unaffected.put(client, 0);
+                    }
+                    for (long recovery : harness.trial(client)) {
+                        if (recovery > 0) {
+                            recoveries.get(client).record(recovery * 1000000L);
+                        } else if (recovery == 0) {
+                            unaffected.put(client, unaffected.get(client) + 1);
+                        }
+                    }
+                }
+            }
+        } finally {
+            harness.shutdown();
+        }
+
+        for (Map.Entry<String, LatencyHistogram> entry : recoveries.entrySet()) {
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%d harness: client=%s, trials=%d, unaffected=%d, recovery: %s",
+                    System.currentTimeMillis(), entry.getKey(), trials,
+                    unaffected.get(entry.getKey()), entry.getValue().summary()));
+        }
+    }
+}
@@ -1,4 +1,5 @@
-import java.io.BufferedInputStream;
+package hdfsha;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -11,6 +12,7 @@ import java.util.concurrent.TimeUnit;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.log4j.Logger;
 
 public class FailoverTest implements NamenodeChangedListener {
@@ -32,6 +34,8 @@ public class FailoverTest implements NamenodeChangedListener {
     private volatile String namenodeAddress;
     private volatile CountDownLatch waitFailoverLatch;
     private volatile boolean isFailoverComplete;
+    private final InFlightTransfers transfers = new InFlightTransfers();
+    private final ReconnectPacer pacer;
 
     public FailoverTest(NamenodeLookup namenode, int blocks, int files)
             throws UnknownHostException {
@@ -40,9 +44,11 @@ public class FailoverTest implements NamenodeChangedListener {
         this.blocks = blocks;
         this.files = files;
         this.namenodeAddress = namenode.getNamenodeAddress();
+        Metrics.get().namenode(namenodeAddress);
         this.hostname = InetAddress.getLocalHost().getHostName();
         this.waitFailoverLatch = new CountDownLatch(1);
         this.isFailoverComplete = false;
+        this.pacer = new ReconnectPacer(namenode, FAILOVER_COMPLETED_WAIT_MS);
 
     }
 
@@ -51,10 +57,13 @@ public class FailoverTest implements NamenodeChangedListener {
         synchronized (this) {
             LOG.info("EVENT: NAMENODE_CHANGED " + newAddress);
             namenodeAddress = newAddress;
+            Metrics.get().namenodeChanged(newAddress);
             isFailoverComplete = true;
             // Signalize that we should no longer wait for failover
             waitFailoverLatch.countDown();
         }
+        // Abort writes blocked on the dead namenode
+        transfers.cancelAll();
 
     }
 
@@ -62,24 +71,39 @@ public class FailoverTest implements NamenodeChangedListener {
         return namenodeAddress;
     }
 
-    private void run() throws InterruptedException {
-
+    /**
+     * Creates every file, going on with the next one when a file gives up
+     * @return how many files gave up
+     */
+    int run() throws InterruptedException {
+        int failures = 0;
         for (int i = 1; i <= files; i++) {
             String filename = hostname + "-" + i;
-            oneRun(filename);
+            if (!oneRun(filename)) {
+                failures++;
+            }
         }
+        LOG.info("EVENT: PACING " + pacer.report());
+        LOG.info("EVENT: FAILURES " + failures + " of " + files + " files");
+        return failures;
     }
 
-    private void oneRun(String filename) throws InterruptedException {
+    /**
+     * @return false if the create gave up after all its attempts
+     */
+    private boolean oneRun(String filename) throws InterruptedException {
         try {
             create(filename);
+            return true;
         } catch (IOException e) {
             LOG.error("I/O error", e);
+            return false;
         }
     }
 
     private void create(String filename) throws InterruptedException,
     IOException {
+        pacer.admit();
         for (int i = 1; i <= MAX_ATTEMPTS; i++) {
             LOG.info("EVENT: ATTEMPT_WRITE " + Integer.toString(i) + " to "
                     + filename);
@@ -114,22 +138,36 @@ public class FailoverTest implements NamenodeChangedListener {
         boolean failoverStateBefore = isFailoverComplete;
 
         LOG.info("BEGIN attemptCreate" + filename);
+        ProgressTracker progress = ProgressTracker.start("write " + filename,
+                blocks * DeadBeefInputStream.HDFS_BLOCK);
 
         try {
             String currentNamenodeAddress = getNamenodeAddress();
             LOG.info("EVENT: WRITE_STARTED " + filename + " on "
                     + currentNamenodeAddress);
-            in = new BufferedInputStream(new DeadBeefInputStream(blocks));
+            in = BufferPool.get().buffered(new DeadBeefInputStream(blocks), 8192);
             String hdfsFileUri = "hdfs://" + currentNamenodeAddress + "/"
                     + filename;
             Configuration conf = new Configuration();
             hdfs = FileSystem.get(URI.create(hdfsFileUri), conf);
             out = hdfs.create(new Path(hdfsFileUri), true, BUFFER_SIZE, null);
-            doWrite(in, out);
+            InFlightTransfers.Transfer transfer = transfers.register(out);
+            try {
+                doWrite(in, out, progress);
+            } catch (IOException e) {
+                if (transfer.isCancelled()) {
+                    LOG.info("EVENT: WRITE_CANCELLED " + filename);
+                    throw new NameNodeChangedException();
+                }
+                throw e;
+            } finally {
+                transfers.unregister(transfer);
+            }
             LOG.info("EVENT: WRITE_COMPLETE " + filename);
 
         } finally {
             LOG.info("BEGIN FINALLY " + filename);
+            IOUtils.closeStream(in);
 
             /*
              * We're cheating here.
@@ -186,13 +224,15 @@ public class FailoverTest implements NamenodeChangedListener {
                 new Thread(cleanupRunnable, "Cleanup-" + filename).start();
             }
 
+            progress.finish();
             LOG.info("END FINALLY " + filename);
         }
 
         LOG.info("END attemptCreate" + filename);
     }
 
-    private void doWrite(InputStream in, OutputStream out) throws IOException {
+    private void doWrite(InputStream in, OutputStream out,
+            ProgressTracker progress) throws IOException {
         int countBytes = 0;
         int data;
         boolean failoverStateBefore = isFailoverComplete;
@@ -202,23 +242,26 @@ public class FailoverTest implements NamenodeChangedListener {
             if ((++countBytes) == BUFFER_SIZE) {
                 countBytes = 0;
                 out.flush();
+                progress.addBytes(BUFFER_SIZE);
             }
 
             boolean currentFailoverState = isFailoverComplete;
             if (failoverStateBefore != currentFailoverState)
                 throw new NameNodeChangedException();
         }
+        progress.addBytes(countBytes);
     }
 
     private void handleFailoverAlreadyDone() {
         /*
          * We know already that Hot Standby Node has already complete failover.
-         * So just wait a little before trying again. In real world we should
-         * wait a random time to prevent waves of clients flooding the standby
+         * So just wait a little before trying again. The wait is random inside
+         * a window sized for the whole fleet, to prevent waves of clients
+         * flooding the standby
          */
         try {
             LOG.info("Start small wait after failover complete");
-            Thread.sleep(FAILOVER_COMPLETED_WAIT_MS);
+            pacer.pause();
             LOG.info("Finish small wait after failover complete");
         } catch (InterruptedException e) {
             // Just propagate the interruption as we already stopping sleeping
@@ -245,6 +288,8 @@ public class FailoverTest implements NamenodeChangedListener {
                 if (isFailoverComplete) {
                     // We do wait until it is complete
                     LOG.info("EVENT: FAILOVER_COMPLETE");
+                    // Every waiting client wakes up now, do not rush together
+                    pacer.pause();
                 } else {
                     // Wait timeout
                     LOG.warn("Some big failure happened, because faiolver did not happen");
@@ -281,6 +326,7 @@ public class FailoverTest implements NamenodeChangedListener {
             int files = Integer.parseInt(args[1]);
             int blocks = Integer.parseInt(args[2]);
 
+            Metrics.get().publish();
             NamenodeLookup nnlkp = new NamenodeLookupZooKeeper(zookeeper);
             FailoverTest cli = new FailoverTest(nnlkp, blocks, files);
             cli.run();
@@ -0,0 +1,145 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Locale;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+
+/**
+ * Measures the cost of making written data visible (hflush) or durable
+ * (hsync).
+ *
+ * For every combination of flush interval, flush kind and write size a file
+ * is written and the latency of each flush is recorded, together with the
+ * sustained throughput of the whole file, close included.
+ *
+ * <pre>
+ * FlushTest &lt;hdfs uri&gt; &lt;MB per run&gt; &lt;flush intervals in KB&gt; &lt;flush kinds&gt; &lt;write sizes&gt;
+ * FlushTest hdfs://127.0.0.1/testfile 256 64,1024,65536 hflush,hsync 1,4096,65536
+ * </pre>
+ *
+ * Flush kinds are <code>none</code>, <code>flush</code>, <code>hflush</code>
+ * and <code>hsync</code>.
+ */
+public class FlushTest {
+
+	private static final int ONE_KB = 1024;
+	private static final int ONE_MB = 1024 * 1024;
+
+	private final FileSystem hdfs;
+	private final Path path;
+	private final long bytesPerRun;
+
+	public FlushTest(FileSystem hdfs, Path path, long bytesPerRun) {
+		this.hdfs = hdfs;
+		this.path = path;
+		this.bytesPerRun = bytesPerRun;
+	}
+
+	/**
+	 * Writes one file flushing it every interval bytes
+	 */
+	private void run(long flushInterval, String kind, int writeSize) throws IOException {
+		byte[] data = deadBeef(writeSize);
+		LatencyHistogram flushes = new LatencyHistogram();
+
+		long start = System.nanoTime();
+		FSDataOutputStream out = hdfs.create(path, true, 4096, null);
+		try {
+			long written = 0;
+			long sinceFlush = 0;
+			while (written < bytesPerRun) {
+				int len = (int) Math.min(writeSize, bytesPerRun - written);
+				if (len == 1) {
+					out.write(data[0]);
+				} else {
+					out.write(data, 0, len);
+				}
+				Metrics.get().bytesWritten(len);
+				written += len;
+				sinceFlush += len;
+
+				if (sinceFlush >= flushInterval) {
+					sinceFlush = 0;
+					long flushStart = System.nanoTime();
+					flush(out, kind);
+					long flushNanos = System.nanoTime() - flushStart;
+					flushes.record(flushNanos);
+					if (!kind.equals("none")) {
+						Metrics.get().operation(kind, flushNanos);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(String.format(Locale.ENGLISH,
+				"%d flush: kind=%s, intervalKB=%d, writeSize=%d, bytes=%d, time=%.3f, throughputMB=%.2f, %s",
+				System.currentTimeMillis(), kind, flushInterval / ONE_KB, writeSize,
+				bytesPerRun, elapsed, bytesPerRun / (double) ONE_MB / elapsed,
+				flushes.summary()));
+	}
+
+	private static void flush(FSDataOutputStream out, String kind) throws IOException {
+		if (kind.equals("flush")) {
+			out.flush();
+		} else if (kind.equals("hflush")) {
+			out.hflush();
+		} else if (kind.equals("hsync")) {
+			out.hsync();
+		} else if (!kind.equals("none")) {
+			throw new IllegalArgumentException("Unknown flush kind " + kind);
+		}
+	}
+
+	private static byte[] deadBeef(int size) throws IOException {
+		byte[] data = new byte[size];
+		InputStream in = new DeadBeefInputStream(1);
+		try {
+			for (int i = 0; i < size; i++) {
+				data[i] = (byte) in.read();
+			}
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length != 5) {
+			System.err.println("Usage: FlushTest <hdfs uri> <MB per run> <flush intervals in KB>"
+					+ " <flush kinds> <write sizes>");
+			System.exit(1);
+		}
+		Metrics.get().publish();
+		String hdfsUri = args[0];
+		long bytesPerRun = Long.parseLong(args[1]) * ONE_MB;
+
+		Configuration conf = new Configuration();
+		FileSystem hdfs = FileSystem.get(URI.create(hdfsUri), conf);
+		Path path = new Path(hdfsUri);
+		FlushTest test = new FlushTest(hdfs, path, bytesPerRun);
+		try {
+			for (String interval : args[2].split(",")) {
+				for (String kind : args[3].split(",")) {
+					for (String writeSize : args[4].split(",")) {
+						test.run(Long.parseLong(interval) * ONE_KB, kind,
+								Integer.parseInt(writeSize));
+					}
+				}
+			}
+			hdfs.delete(path, false);
+		} finally {
+			hdfs.close();
+		}
+	}
+
+}
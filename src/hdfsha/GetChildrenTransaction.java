@@ -0,0 +1,40 @@
+package hdfsha;
+
+import java.util.List;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+
+/**
+ * Resilient {@link ZooKeeper#getChildren}
+ */
+public final class GetChildrenTransaction extends Transaction<List<String>> {
+
+    /** The watcher to be notified of changes in the node children*/
+    private Watcher watcher;
+
+    /**
+     * @param conn ZooKeeper connection
+     * @param nodePath the path to znode you want to get the children
+     * @param watcher the watcher to be notified when children are added or removed
+     */
+    public GetChildrenTransaction(ZooKeeper conn,String nodePath, Watcher watcher){
+        super(conn,nodePath);
+        this.watcher = watcher;
+    }
+
+
+
+    @Override
+    public String toString() {
+        return "GetChildrenTransaction [result=" + result + ", path=" + path
+                + ", zooConn=" + zooConn + ", watcher=" + watcher +"]";
+    }
+
+    @Override
+    protected void trasactionBody() throws KeeperException, InterruptedException{
+        result = zooConn.getChildren(path, watcher);
+    }
+}
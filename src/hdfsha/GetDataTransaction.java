@@ -1,10 +1,11 @@
-
+package hdfsha;
 
 import java.util.Arrays;
 
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
 
 
 /**
@@ -14,6 +15,8 @@ public final class GetDataTransaction extends Transaction<byte[]> {
 
     /** The watcher to be notified of changes in the node*/
     private Watcher watcher;
+    /** Filled with the node stat, may be null*/
+    private Stat stat;
 
     /**
      * @param conn ZooKeeper connection
@@ -25,6 +28,17 @@ public final class GetDataTransaction extends Transaction<byte[]> {
         this.watcher = watcher;
     }
 
+    /**
+     * @param conn ZooKeeper connection
+     * @param nodePath the path to znode you want to get data
+     * @param watcher the watcher to be notified of changes in the node
+     * @param stat filled with the stat of the node, e.g. its version
+     */
+    public GetDataTransaction(ZooKeeper conn,String nodePath, Watcher watcher, Stat stat){
+        this(conn,nodePath,watcher);
+        this.stat = stat;
+    }
+
 
 
     @Override
@@ -35,6 +49,6 @@ public final class GetDataTransaction extends Transaction<byte[]> {
 
     @Override
     protected void trasactionBody() throws KeeperException, InterruptedException{
-        result = zooConn.getData(path, watcher, null);
+        result = zooConn.getData(path, watcher, stat);
     }
 }
@@ -0,0 +1,125 @@
+package hdfsha;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the transfers that are currently moving data to or from a
+ * namenode.
+ *
+ * When a failover is detected every registered transfer is cancelled: the
+ * thread doing the I/O is interrupted and the stream is closed in the
+ * background. That way a client blocked inside a write or flush against the
+ * dead namenode does not have to wait for Hadoop RPC to give up before
+ * retrying on the new active one.
+ *
+ * <p><b>Sample code:</b></p>
+ *
+ * <pre>
+ * InFlightTransfers.Transfer transfer = transfers.register(out);
+ * try {
+ *     doIO(in, out);
+ * } finally {
+ *     transfers.unregister(transfer);
+ * }
+ * </pre>
+ */
+public class InFlightTransfers {
+
+    private static final Logger LOG = Logger.getLogger(InFlightTransfers.class);
+
+    private final Set<Transfer> transfers = Collections
+            .newSetFromMap(new ConcurrentHashMap<Transfer, Boolean>());
+
+    /**
+     * Registers a transfer done by the current thread
+     * @param stream the stream to be closed if the transfer is cancelled
+     * @return the handle to be passed to {@link #unregister(Transfer)}
+     */
+    public Transfer register(Closeable stream) {
+        Transfer transfer = new Transfer(Thread.currentThread(), stream);
+        transfers.add(transfer);
+        return transfer;
+    }
+
+    /**
+     * Unregisters a transfer. Must be called by the same thread that registered
+     * it, usually in a finally block. If the transfer was cancelled the
+     * interruption used to abort it is cleared, so the caller can sleep before
+     * retrying.
+     * @param transfer the handle returned by {@link #register(Closeable)}
+     * @return true if the transfer was cancelled
+     */
+    public boolean unregister(Transfer transfer) {
+        transfers.remove(transfer);
+        if (transfer.finish()) {
+            Thread.interrupted();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Aborts all registered transfers. It does not block, so it is safe to be
+     * called from the ZooKeeper event thread.
+     */
+    public void cancelAll() {
+        for (Transfer transfer : transfers) {
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * A transfer being done by a thread over a stream
+     */
+    public static final class Transfer {
+
+        private final Thread thread;
+        private final Closeable stream;
+        private boolean cancelled = false;
+        private boolean finished = false;
+
+        private Transfer(Thread thread, Closeable stream) {
+            this.thread = thread;
+            this.stream = stream;
+        }
+
+        /**
+         * @return true if the transfer was aborted because the namenode changed
+         */
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private synchronized boolean finish() {
+            finished = true;
+            return cancelled;
+        }
+
+        private synchronized void cancel() {
+            if (finished || cancelled) {
+                return;
+            }
+            cancelled = true;
+            LOG.info("Cancelling transfer of " + thread.getName());
+            thread.interrupt();
+
+            // Closing may block on the dead namenode, so do it in background
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        stream.close();
+                    } catch (Exception e) {
+                        LOG.debug("Error closing cancelled stream", e);
+                    }
+                }
+            }, "Cancel-" + thread.getName()).start();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package hdfsha;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies in nanoseconds.
+ *
+ * Values are kept in log-linear buckets: every power of two is split in
+ * {@link #SUB_BUCKETS} buckets, so any value is known within about 6% while
+ * the whole range of a long fits in a few KB. Recording is a single atomic
+ * increment, so many threads can share one histogram on the hot path.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the latency to record, negative values are taken as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while ((current = max.get()) < value
+                && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    /**
+     * Adds all values of another histogram to this one
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long value = other.buckets.get(i);
+            if (value > 0) {
+                buckets.addAndGet(i, value);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long otherMax = other.max.get();
+        long current;
+        while ((current = max.get()) < otherMax
+                && !max.compareAndSet(current, otherMax)) {
+            // retry
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** @return the middle of the values that fall in the bucket */
+    private static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width / 2;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public long getSumNanos() {
+        return sum.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in nanoseconds below which the given percentage of
+     * the values fall
+     */
+    public long getPercentileNanos(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(valueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @return count, mean and percentiles in microseconds, in the key=value
+     * format used by the test reports
+     */
+    public String summary() {
+        return String.format(Locale.ENGLISH,
+                "count=%d, meanUs=%.1f, p50Us=%d, p90Us=%d, p99Us=%d, p999Us=%d, maxUs=%d",
+                getCount(), getMeanNanos() / 1000,
+                micros(getPercentileNanos(50)), micros(getPercentileNanos(90)),
+                micros(getPercentileNanos(99)), micros(getPercentileNanos(99.9)),
+                micros(getMaxNanos()));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,137 @@
+package hdfsha;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+/**
+ * A ZooKeeper server running inside this JVM on an ephemeral port, so the
+ * lookups and the coordination code can be exercised without an ensemble.
+ *
+ * It also keeps a client session to publish data, e.g. to flip the
+ * <code>/namenode</code> znode as a failover would do.
+ */
+public class LocalZooKeeperServer {
+
+    private static final Logger LOG = Logger.getLogger(LocalZooKeeperServer.class);
+
+    private static final int TICK_TIME = 500;
+    private static final int MAX_CONNECTIONS = 5000;
+    private static final int SESSION_TIMEOUT = 30000;
+
+    private final File dataDir;
+    private ZooKeeperServer server;
+    private ServerCnxnFactory factory;
+    private ZooKeeper client;
+
+    /**
+     * @param dataDir where snapshots and logs are kept, deleted on shutdown
+     */
+    public LocalZooKeeperServer(File dataDir) {
+        this.dataDir = dataDir;
+    }
+
+    public void start() throws IOException, InterruptedException {
+        dataDir.mkdirs();
+        server = new ZooKeeperServer(dataDir, dataDir, TICK_TIME);
+        factory = ServerCnxnFactory.createFactory(0, MAX_CONNECTIONS);
+        factory.startup(server);
+        LOG.info("Local ZooKeeper listening on " + getConnectString());
+
+        final CountDownLatch connectedSignal = new CountDownLatch(1);
+        client = new ZooKeeper(getConnectString(), SESSION_TIMEOUT, new Watcher() {
+
+            @Override
+            public void process(WatchedEvent event) {
+                if (event.getState() == KeeperState.SyncConnected) {
+                    connectedSignal.countDown();
+                }
+            }
+        });
+        connectedSignal.await();
+    }
+
+    /**
+     * @return the connection string to be given to the lookups
+     */
+    public String getConnectString() {
+        return "127.0.0.1:" + factory.getLocalPort();
+    }
+
+    /**
+     * @return the session used to publish data
+     */
+    public ZooKeeper getClient() {
+        return client;
+    }
+
+    /**
+     * Sets the data of a znode, creating it and its parents if needed
+     */
+    public void publish(String path, String data) throws KeeperException,
+            InterruptedException {
+        byte[] bytes = data.getBytes(Charset.forName("UTF-8"));
+        try {
+            client.setData(path, bytes, -1);
+        } catch (KeeperException.NoNodeException e) {
+            int parent = path.lastIndexOf('/');
+            if (parent > 0) {
+                createIfMissing(path.substring(0, parent));
+            }
+            client.create(path, bytes, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+        }
+    }
+
+    private void createIfMissing(String path) throws KeeperException,
+            InterruptedException {
+        if (client.exists(path, false) != null) {
+            return;
+        }
+        int parent = path.lastIndexOf('/');
+        if (parent > 0) {
+            createIfMissing(path.substring(0, parent));
+        }
+        try {
+            client.create(path, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.PERSISTENT);
+        } catch (KeeperException.NodeExistsException e) {
+            // Someone else created it
+        }
+    }
+
+    public void shutdown() throws InterruptedException {
+        if (client != null) {
+            client.close();
+        }
+        if (factory != null) {
+            factory.shutdown();
+        }
+        if (server != null) {
+            server.shutdown();
+        }
+        delete(dataDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,365 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Stresses the namespace of the namenode with many tiny or empty files.
+ *
+ * Many workers create, stat, list, rename and delete files spread over a
+ * directory tree, one phase after the other. Each operation goes through the
+ * {@link FailoverHandler}, so the benchmark keeps going across a failover.
+ * Besides ops/s and latency percentiles per operation, it reports a per
+ * second timeline with the failover epoch, and the latency of the operations
+ * that were in flight while a failover happened.
+ *
+ * Usage: <code>MetadataBenchmark &lt;static|ha|multi&gt; &lt;namenode&gt;
+ * &lt;zookeeper&gt; &lt;root&gt; &lt;workers&gt; &lt;files per worker&gt;</code>
+ *
+ * The tree is set with <code>meta.fanout</code> and <code>meta.depth</code>,
+ * the size of the files with <code>meta.fileSize</code> (0 by default). An
+ * operation that returns false, e.g. a rename that did not happen, counts
+ * as an error. The root is deleted at the end.
+ */
+public class MetadataBenchmark {
+
+    private static final Logger LOG = Logger.getLogger(MetadataBenchmark.class);
+
+    private static final String[] PHASES = { "mkdirs", "create", "stat", "list",
+            "rename", "delete" };
+
+    private final FailoverHandler failover;
+    private final Configuration conf;
+    private final Path root;
+    private final int workers;
+    private final int filesPerWorker;
+    private final int fanout;
+    private final int depth;
+    private final int fileSize;
+    private final Map<String, FileSystem> fileSystems = new HashMap<String, FileSystem>();
+
+    /** Per phase, the operations done in each second of the run */
+    private final Map<String, AtomicLong> currentSecondOps = new HashMap<String, AtomicLong>();
+    private final List<String> timeline = new ArrayList<String>();
+    private final LatencyHistogram acrossFailover = new LatencyHistogram();
+
+    public MetadataBenchmark(NamenodeLookup lookup, Path root, int workers,
+            int filesPerWorker) {
+        this.failover = new FailoverHandler(lookup);
+        this.conf = new Configuration();
+        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+        this.root = root;
+        this.workers = workers;
+        this.filesPerWorker = filesPerWorker;
+        this.fanout = Integer.getInteger("meta.fanout", 16);
+        this.depth = Integer.getInteger("meta.depth", 2);
+        this.fileSize = Integer.getInteger("meta.fileSize", 0);
+        for (String phase : PHASES) {
+            currentSecondOps.put(phase, new AtomicLong());
+        }
+    }
+
+    private synchronized FileSystem fileSystem(String namenodeAddress)
+            throws IOException {
+        FileSystem fs = fileSystems.get(namenodeAddress);
+        if (fs == null) {
+            fs = FileSystem.get(URI.create("hdfs://" + namenodeAddress + "/"),
+                    conf);
+            fileSystems.put(namenodeAddress, fs);
+        }
+        return fs;
+    }
+
+    private int leaves() {
+        int leaves = 1;
+        for (int i = 0; i < depth; i++) {
+            leaves *= fanout;
+        }
+        return leaves;
+    }
+
+    private Path directory(int leaf) {
+        Path dir = root;
+        for (int level = 0; level < depth; level++) {
+            dir = new Path(dir, "d" + (leaf % fanout));
+            leaf /= fanout;
+        }
+        return dir;
+    }
+
+    private Path file(int worker, int index, boolean renamed) {
+        return new Path(directory((worker * filesPerWorker + index) % leaves()),
+                "w" + worker + "-" + index + (renamed ? ".renamed" : ""));
+    }
+
+    /**
+     * Does the operation for one item (a directory or a file) of the phase
+     * @return false if the file system said it did not do it
+     */
+    private boolean operation(String phase, int worker, int index)
+            throws IOException, InterruptedException {
+        if (phase.equals("mkdirs")) {
+            final Path dir = directory(index);
+            return failover.execute("mkdirs " + dir, new FailoverHandler.Attempt<Boolean>() {
+
+                @Override
+                public Boolean run(String namenodeAddress) throws IOException {
+                    return fileSystem(namenodeAddress).mkdirs(dir);
+                }
+            });
+        } else if (phase.equals("create")) {
+            final Path path = file(worker, index, false);
+            failover.execute("create " + path, new FailoverHandler.Attempt<Void>() {
+
+                @Override
+                public Void run(String namenodeAddress) throws IOException {
+                    FSDataOutputStream out = fileSystem(namenodeAddress).create(path, true);
+                    try {
+                        out.write(new byte[fileSize]);
+                    } finally {
+                        out.close();
+                    }
+                    return null;
+                }
+            });
+            return true;
+        } else if (phase.equals("stat")) {
+            final Path path = file(worker, index, false);
+            failover.execute("stat " + path, new FailoverHandler.Attempt<FileStatus>() {
+
+                @Override
+                public FileStatus run(String namenodeAddress) throws IOException {
+                    return fileSystem(namenodeAddress).getFileStatus(path);
+                }
+            });
+            return true;
+        } else if (phase.equals("list")) {
+            final Path dir = directory(index);
+            failover.execute("list " + dir, new FailoverHandler.Attempt<FileStatus[]>() {
+
+                @Override
+                public FileStatus[] run(String namenodeAddress) throws IOException {
+                    return fileSystem(namenodeAddress).listStatus(dir);
+                }
+            });
+            return true;
+        } else if (phase.equals("rename")) {
+            final Path from = file(worker, index, false);
+            final Path to = file(worker, index, true);
+            return failover.execute("rename " + from, new FailoverHandler.Attempt<Boolean>() {
+
+                private int attempts;
+
+                @Override
+                public Boolean run(String namenodeAddress) throws IOException {
+                    FileSystem fs = fileSystem(namenodeAddress);
+                    boolean retry = attempts++ > 0;
+                    // A retried rename may have been done before the failover
+                    return fs.rename(from, to) || retry && !fs.exists(from) && fs.exists(to);
+                }
+            });
+        } else if (phase.equals("delete")) {
+            final Path path = file(worker, index, true);
+            return failover.execute("delete " + path, new FailoverHandler.Attempt<Boolean>() {
+
+                private int attempts;
+
+                @Override
+                public Boolean run(String namenodeAddress) throws IOException {
+                    FileSystem fs = fileSystem(namenodeAddress);
+                    boolean retry = attempts++ > 0;
+                    // Likewise for a retried delete
+                    return fs.delete(path, false) || retry && !fs.exists(path);
+                }
+            });
+        }
+        throw new IllegalArgumentException("Unknown phase " + phase);
+    }
+
+    /**
+     * Runs a phase with all workers and reports it
+     */
+    private void runPhase(final String phase) throws InterruptedException {
+        // Directories are shared, split them among workers
+        final boolean perDirectory = phase.equals("mkdirs") || phase.equals("list");
+        final int items = perDirectory ? leaves() : filesPerWorker;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong counter = currentSecondOps.get(phase);
+
+        long start = System.nanoTime();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int w = 0; w < workers; w++) {
+            final int worker = w;
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    int first = perDirectory ? worker : 0;
+                    int step = perDirectory ? workers : 1;
+                    for (int i = first; i < items; i += step) {
+                        int epochBefore = failover.getEpoch();
+                        long opStart = System.nanoTime();
+                        try {
+                            if (!operation(phase, worker, i)) {
+                                LOG.warn(phase + " of item " + i + " of worker " + worker + " returned false");
+                                errors.incrementAndGet();
+                                continue;
+                            }
+                            long elapsed = System.nanoTime() - opStart;
+                            latency.record(elapsed);
+                            if (failover.getEpoch() != epochBefore) {
+                                acrossFailover.record(elapsed);
+                            }
+                            counter.incrementAndGet();
+                        } catch (IOException e) {
+                            LOG.warn(phase + " failed", e);
+                            errors.incrementAndGet();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "Metadata-" + phase + "-" + w);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d metadata: op=%s, workers=%d, ops=%d, opsPerSec=%.1f, errors=%d, %s",
+                System.currentTimeMillis(), phase, workers, latency.getCount(),
+                latency.getCount() / seconds, errors.get(), latency.summary()));
+    }
+
+    /**
+     * Samples every second how many operations of each phase were done
+     */
+    private Thread startTimeline() {
+        Thread sampler = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    while (true) {
+                        Thread.sleep(1000);
+                        long second = TimeUnit.NANOSECONDS.toSeconds(System
+                                .nanoTime() - start);
+                        for (String phase : PHASES) {
+                            long ops = currentSecondOps.get(phase).getAndSet(0);
+                            if (ops > 0) {
+                                synchronized (timeline) {
+                                    timeline.add(String.format(Locale.ENGLISH,
+                                            "second=%d, op=%s, ops=%d, epoch=%d",
+                                            second, phase, ops, failover.getEpoch()));
+                                }
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                }
+            }
+        }, "Metadata-Timeline");
+        sampler.setDaemon(true);
+        sampler.start();
+        return sampler;
+    }
+
+    void run() throws InterruptedException {
+        Thread sampler = startTimeline();
+        try {
+            for (String phase : PHASES) {
+                LOG.info("Starting phase " + phase);
+                runPhase(phase);
+            }
+        } finally {
+            sampler.interrupt();
+            sampler.join();
+            cleanup();
+        }
+
+        synchronized (timeline) {
+            for (String line : timeline) {
+                System.out.println(String.format(Locale.ENGLISH,
+                        "%d metadata: event=timeline, %s",
+                        System.currentTimeMillis(), line));
+            }
+        }
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d metadata: event=failover, failovers=%d, retries=%d, acrossFailover: %s",
+                System.currentTimeMillis(), failover.getEpoch(),
+                failover.getRetries(), acrossFailover.summary()));
+    }
+
+    /**
+     * Deletes the tree, which is left with a file per failed delete and
+     * every directory
+     */
+    private void cleanup() throws InterruptedException {
+        try {
+            failover.execute("cleanup " + root, new FailoverHandler.Attempt<Boolean>() {
+
+                @Override
+                public Boolean run(String namenodeAddress) throws IOException {
+                    return fileSystem(namenodeAddress).delete(root, true);
+                }
+            });
+        } catch (IOException e) {
+            LOG.warn("Could not delete " + root, e);
+        }
+    }
+
+    synchronized void close() {
+        for (FileSystem fs : fileSystems.values()) {
+            try {
+                fs.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    public static void main(String... args) throws InterruptedException {
+        if (args.length != 6) {
+            System.err.println("Usage: MetadataBenchmark <static|ha|multi> <namenode> <zookeeper>"
+                    + " <root> <workers> <files per worker>");
+            System.exit(1);
+        }
+        Metrics.get().publish();
+        int nnLookupType = NamenodeLookup.STATIC;
+        if (args[0].equalsIgnoreCase("ha")) {
+            nnLookupType = NamenodeLookup.HA;
+        } else if (args[0].equalsIgnoreCase("multi")) {
+            nnLookupType = NamenodeLookup.MULTI;
+        }
+        NamenodeLookup lookup = NamenodeLookupFactory.create(nnLookupType,
+                args[1], args[2]);
+        MetadataBenchmark benchmark = new MetadataBenchmark(lookup, new Path(
+                args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+        try {
+            benchmark.run();
+        } finally {
+            benchmark.close();
+            lookup.shutdown();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package hdfsha;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Caches the results of getFileStatus and listStatus on the client, so
+ * repeated lookups of stable paths do not reach the namenode.
+ *
+ * Entries expire after a TTL, and the least recently used go first once
+ * there are too many entries or they take too much memory, as estimated
+ * from the paths they hold. A cached entry may be stale for up to the TTL
+ * when other clients change the namespace; local changes are not missed,
+ * as long as they are reported with {@link #invalidate(Path)}. Everything is
+ * dropped when the namenode changes, since the new active may not have
+ * caught up with the old one.
+ *
+ * A lookup that misses races with the changes made while it asks the
+ * namenode: callers take the {@link #generation()} before asking, and the
+ * answer is not cached if anything was invalidated in between.
+ *
+ * Paths are keys as they are given, so callers should use a single form,
+ * e.g. without scheme and authority.
+ *
+ * Configured by system properties:
+ * <ul>
+ * <li><code>metadataCache</code>: true to use a cache, false by default</li>
+ * <li><code>metadataCache.ttlMs</code>: 5000 by default</li>
+ * <li><code>metadataCache.entries</code>: 10000 by default</li>
+ * <li><code>metadataCache.maxKB</code>: 16384 by default</li>
+ * </ul>
+ */
+public class MetadataCache implements NamenodeChangedListener {
+
+    // Rough size of a FileStatus without its path, and of a cache entry
+    private static final int STATUS_BYTES = 160;
+    private static final int ENTRY_BYTES = 64;
+
+    private static final class Entry {
+        final FileStatus status;
+        final FileStatus[] listing;
+        final long expires;
+        final long bytes;
+
+        Entry(FileStatus status, FileStatus[] listing, long expires, long bytes) {
+            this.status = status;
+            this.listing = listing;
+            this.expires = expires;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long ttlMs;
+    private final int maxEntries;
+    private final long maxBytes;
+    // Access ordered, the eldest is the least recently used
+    private final LinkedHashMap<String, Entry> statuses = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> listings = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    // The same keys sorted, to find everything below a path
+    private final NavigableSet<String> statusKeys = new TreeSet<String>();
+    private final NavigableSet<String> listingKeys = new TreeSet<String>();
+    private long bytes;
+    private long generation;
+
+    private long hits;
+    private long misses;
+    private long expirations;
+    private long evictions;
+    private long invalidations;
+    private long flushes;
+    private long stalePuts;
+
+    public MetadataCache(long ttlMs, int maxEntries, long maxBytes) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cache set by the <code>metadataCache</code> properties, or
+     * null if there should be none
+     */
+    public static MetadataCache fromProperties() {
+        if (!Boolean.getBoolean("metadataCache")) {
+            return null;
+        }
+        return new MetadataCache(Long.getLong("metadataCache.ttlMs", 5000),
+                Integer.getInteger("metadataCache.entries", 10000),
+                Integer.getInteger("metadataCache.maxKB", 16384) * 1024L);
+    }
+
+    private static long estimate(FileStatus status) {
+        return STATUS_BYTES + 2 * status.getPath().toString().length();
+    }
+
+    private NavigableSet<String> keys(LinkedHashMap<String, Entry> map) {
+        return map == statuses ? statusKeys : listingKeys;
+    }
+
+    private Entry lookup(LinkedHashMap<String, Entry> map, Path path) {
+        String key = path.toString();
+        Entry entry = map.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            remove(map, key);
+            expirations++;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    /**
+     * @return false if something was invalidated since the generation, and
+     * the entry may be stale
+     */
+    private boolean store(LinkedHashMap<String, Entry> map, Path path, Entry entry,
+            long since) {
+        if (since != generation) {
+            stalePuts++;
+            return false;
+        }
+        String key = path.toString();
+        Entry previous = map.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        } else {
+            keys(map).add(key);
+        }
+        bytes += entry.bytes;
+        while (statuses.size() + listings.size() > maxEntries || bytes > maxBytes) {
+            if (!evictEldest()) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evicts the least recently used entry of the larger of the two maps
+     */
+    private boolean evictEldest() {
+        LinkedHashMap<String, Entry> map = listings.size() >= statuses.size() ? listings : statuses;
+        if (map.isEmpty()) {
+            return false;
+        }
+        remove(map, map.keySet().iterator().next());
+        evictions++;
+        return true;
+    }
+
+    private boolean remove(LinkedHashMap<String, Entry> map, String key) {
+        Entry entry = map.remove(key);
+        if (entry != null) {
+            keys(map).remove(key);
+            bytes -= entry.bytes;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return to be given back when caching what the namenode answered
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * @return the cached status, or null if the caller has to ask the
+     * namenode
+     */
+    public synchronized FileStatus getFileStatus(Path path) {
+        Entry entry = lookup(statuses, path);
+        return entry == null ? null : entry.status;
+    }
+
+    /**
+     * @param since the {@link #generation()} before asking the namenode
+     * @return false if not cached, as it may be stale
+     */
+    public synchronized boolean putFileStatus(Path path, FileStatus status, long since) {
+        return store(statuses, path, new Entry(status, null,
+                System.currentTimeMillis() + ttlMs, ENTRY_BYTES + estimate(status)), since);
+    }
+
+    /**
+     * @return the cached listing, or null if the caller has to ask the
+     * namenode. Not to be modified.
+     */
+    public synchronized FileStatus[] listStatus(Path path) {
+        Entry entry = lookup(listings, path);
+        return entry == null ? null : entry.listing;
+    }
+
+    /**
+     * @param since the {@link #generation()} before asking the namenode
+     * @return false if not cached, as it may be stale
+     */
+    public synchronized boolean putListing(Path path, FileStatus[] listing, long since) {
+        long size = ENTRY_BYTES;
+        for (FileStatus status : listing) {
+            size += estimate(status);
+        }
+        return store(listings, path, new Entry(null, listing,
+                System.currentTimeMillis() + ttlMs, size), since);
+    }
+
+    /**
+     * To be called after the path was created, written, deleted or renamed:
+     * drops what is cached about it, about anything below it, and the
+     * listing of its parent
+     */
+    public synchronized void invalidate(Path path) {
+        generation++;
+        String key = path.toString();
+        String prefix = key.endsWith("/") ? key : key + "/";
+        int removed = removeUnder(statuses, key, prefix) + removeUnder(listings, key, prefix);
+        Path parent = path.getParent();
+        if (parent != null && remove(listings, parent.toString())) {
+            removed++;
+        }
+        invalidations += removed;
+    }
+
+    private int removeUnder(LinkedHashMap<String, Entry> map, String key, String prefix) {
+        // Every key that starts with "dir/" sorts between "dir/" and "dir0"
+        String end = prefix.substring(0, prefix.length() - 1) + (char) ('/' + 1);
+        List<String> under = new ArrayList<String>(keys(map).subSet(prefix, true, end, false));
+        int removed = remove(map, key) ? 1 : 0;
+        for (String child : under) {
+            if (remove(map, child)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Drops everything, the new namenode may not have caught up
+     */
+    public synchronized void invalidateAll() {
+        generation++;
+        invalidations += statuses.size() + listings.size();
+        statuses.clear();
+        listings.clear();
+        statusKeys.clear();
+        listingKeys.clear();
+        bytes = 0;
+        flushes++;
+    }
+
+    @Override
+    public void namenodeChanged(String newAddress) {
+        invalidateAll();
+    }
+
+    /**
+     * @return hits, misses, hit rate, entries dropped, answers not cached as
+     * they may be stale, and what is cached now
+     */
+    public synchronized String report() {
+        long lookups = hits + misses;
+        return String.format(Locale.ENGLISH,
+                "hits=%d, misses=%d, hitRate=%.3f, expired=%d, evicted=%d, invalidated=%d, flushes=%d, stalePuts=%d, entries=%d, bytes=%d",
+                hits, misses, lookups == 0 ? 0.0 : hits / (double) lookups,
+                expirations, evictions, invalidations, flushes, stalePuts,
+                statuses.size() + listings.size(), bytes);
+    }
+}
@@ -0,0 +1,474 @@
+package hdfsha;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The live metrics of the client, shared by all the tools of the JVM, so a
+ * load test can be watched while it runs instead of scraping its output.
+ *
+ * Counters, gauges and histograms only use atomic operations, so they can
+ * be updated from the data path. Metrics are named like
+ * <code>hdfs_client_operations_total{op="create"}</code>: a family and
+ * optional labels. They are published:
+ * <ul>
+ * <li>over JMX, as the attributes of <code>hdfs.tests:type=Metrics</code>,
+ * unless <code>metrics.jmx</code> is false</li>
+ * <li>over HTTP, on the port given by <code>metrics.httpPort</code>, in the
+ * Prometheus text format; any path will do, e.g. <code>/metrics</code>. It
+ * listens on <code>metrics.httpHost</code>, 127.0.0.1 unless set, e.g. to
+ * 0.0.0.0 for a scraper on another host.</li>
+ * </ul>
+ * Both are started by {@link #publish()}, at the beginning of the main of
+ * every tool.
+ */
+public class Metrics {
+
+    private static final Logger LOG = Logger.getLogger(Metrics.class);
+
+    private static final String PREFIX = "hdfs_client_";
+    private static final Metrics INSTANCE = new Metrics();
+
+    /**
+     * A value that only grows
+     */
+    public static final class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void add(long amount) {
+            value.addAndGet(amount);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * A value read when the metrics are published
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    /**
+     * Latencies in buckets that double from 1 ms to about 9 minutes
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 20;
+        private static final long FIRST_BOUND_NANOS = 1000000;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+
+        public void record(long nanos) {
+            int bucket = 0;
+            long bound = FIRST_BOUND_NANOS;
+            while (bucket < BUCKETS && nanos > bound) {
+                bucket++;
+                bound <<= 1;
+            }
+            buckets.incrementAndGet(bucket);
+            sumNanos.addAndGet(nanos);
+            count.incrementAndGet();
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSumNanos() {
+            return sumNanos.get();
+        }
+    }
+
+    /**
+     * Publishes every metric as a read only attribute
+     */
+    private final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Object> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(entry.getKey(),
+                        entry.getValue().getClass().getName(), entry.getKey(),
+                        true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "HDFS client metrics",
+                    attributes, null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(action);
+        }
+    }
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String, String> help = new ConcurrentHashMap<String, String>();
+
+    private final Counter bytesRead;
+    private final Counter bytesWritten;
+    private final Counter retries;
+    private final Counter failovers;
+    private final Counter zookeeperReconnects;
+    private final AtomicLong cleanupBacklog = new AtomicLong();
+    private volatile String namenode = "";
+    private boolean published;
+
+    private Metrics() {
+        bytesRead = counter("bytes_read_total", "Bytes read from HDFS");
+        bytesWritten = counter("bytes_written_total", "Bytes written to HDFS");
+        retries = counter("retries_total", "Attempts retried after an error");
+        failovers = counter("failovers_total", "Namenode changes seen, the failover epoch");
+        zookeeperReconnects = counter("zookeeper_reconnects_total",
+                "ZooKeeper sessions set up again after expiring");
+        gauge("cleanup_backlog", "Streams and clients still being closed in background",
+                new Gauge() {
+
+                    @Override
+                    public long value() {
+                        return cleanupBacklog.get();
+                    }
+                });
+    }
+
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    private static String family(String name) {
+        int labels = name.indexOf('{');
+        return labels == -1 ? name : name.substring(0, labels);
+    }
+
+    /**
+     * @param name the name without prefix, with its labels if any
+     * @param description shown once per family
+     * @return the counter of that name, created the first time
+     */
+    public Counter counter(String name, String description) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            help.putIfAbsent(family(name), description);
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public void gauge(String name, String description, Gauge gauge) {
+        help.putIfAbsent(family(name), description);
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return the histogram of that name, created the first time
+     */
+    public Histogram histogram(String name, String description) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            help.putIfAbsent(family(name), description);
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    //========================================================================
+    // What every tool records
+    //========================================================================
+
+    public void bytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * @param op the kind of operation, e.g. create or stat
+     * @param nanos how long it took, retries included
+     */
+    public void operation(String op, long nanos) {
+        counter("operations_total{op=\"" + op + "\"}", "Operations that succeeded").inc();
+        histogram("operation_seconds{op=\"" + op + "\"}", "Latency of the operations")
+                .record(nanos);
+    }
+
+    public void operationFailed(String op) {
+        counter("operation_failures_total{op=\"" + op + "\"}",
+                "Operations that failed after all their attempts").inc();
+    }
+
+    public void retry() {
+        retries.inc();
+    }
+
+    /**
+     * The namenode first used, not a failover
+     */
+    public void namenode(String address) {
+        namenode = address == null ? "" : address;
+    }
+
+    public void namenodeChanged(String newAddress) {
+        namenode(newAddress);
+        failovers.inc();
+    }
+
+    public void zookeeperReconnected() {
+        zookeeperReconnects.inc();
+    }
+
+    public void cleanupStarted() {
+        cleanupBacklog.incrementAndGet();
+    }
+
+    public void cleanupDone() {
+        cleanupBacklog.decrementAndGet();
+    }
+
+    //========================================================================
+    // Publishing
+    //========================================================================
+
+    /**
+     * @return every value by name, histograms as their count and sum
+     */
+    Map<String, Object> snapshot() {
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(PREFIX + entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(PREFIX + entry.getKey(), entry.getValue().value());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            String family = family(name);
+            String labels = name.substring(family.length());
+            values.put(PREFIX + family + "_count" + labels, entry.getValue().getCount());
+            values.put(PREFIX + family + "_sum" + labels,
+                    entry.getValue().getSumNanos() / 1e9);
+        }
+        values.put(PREFIX + "namenode", namenode);
+        return values;
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format
+     */
+    public String exposition() {
+        // By family first, so the lines of a family stay together
+        SortedMap<String, String> lines = new TreeMap<String, String>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            lines.put(sortKey(entry.getKey()),
+                    PREFIX + entry.getKey() + " " + entry.getValue().get() + "\n");
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            lines.put(sortKey(entry.getKey()),
+                    PREFIX + entry.getKey() + " " + entry.getValue().value() + "\n");
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            lines.put(sortKey(entry.getKey()), histogramLines(entry.getKey(), entry.getValue()));
+        }
+        lines.put(sortKey("namenode_info"),
+                PREFIX + "namenode_info{address=\"" + namenode + "\"} 1\n");
+
+        StringBuilder text = new StringBuilder();
+        String lastFamily = null;
+        for (Map.Entry<String, String> entry : lines.entrySet()) {
+            String name = entry.getKey().substring(entry.getKey().indexOf(' ') + 1);
+            String family = family(name);
+            if (!family.equals(lastFamily)) {
+                String type = counters.containsKey(name) ? "counter"
+                        : histograms.containsKey(name) ? "histogram" : "gauge";
+                String description = help.get(family);
+                if (description != null) {
+                    text.append("# HELP ").append(PREFIX).append(family).append(' ')
+                            .append(description).append('\n');
+                }
+                text.append("# TYPE ").append(PREFIX).append(family).append(' ')
+                        .append(type).append('\n');
+                lastFamily = family;
+            }
+            text.append(entry.getValue());
+        }
+        return text.toString();
+    }
+
+    private static String sortKey(String name) {
+        return family(name) + " " + name;
+    }
+
+    private static String histogramLines(String name, Histogram histogram) {
+        String family = PREFIX + family(name);
+        String labels = name.substring(family(name).length());
+        // Inside the braces, to append the bucket bound
+        String inner = labels.isEmpty() ? "" : labels.substring(1, labels.length() - 1) + ",";
+        StringBuilder text = new StringBuilder();
+        long cumulative = 0;
+        long bound = Histogram.FIRST_BOUND_NANOS;
+        for (int i = 0; i <= Histogram.BUCKETS; i++) {
+            cumulative += histogram.buckets.get(i);
+            String le = i == Histogram.BUCKETS ? "+Inf"
+                    : String.format(Locale.ENGLISH, "%.3f", bound / 1e9);
+            text.append(family).append("_bucket{").append(inner).append("le=\"")
+                    .append(le).append("\"} ").append(cumulative).append('\n');
+            bound <<= 1;
+        }
+        text.append(family).append("_sum").append(labels).append(' ')
+                .append(String.format(Locale.ENGLISH, "%.6f", histogram.getSumNanos() / 1e9))
+                .append('\n');
+        text.append(family).append("_count").append(labels).append(' ')
+                .append(histogram.getCount()).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Starts publishing over JMX and HTTP, as set by the properties. Only
+     * the first call does something.
+     */
+    public synchronized void publish() {
+        if (published) {
+            return;
+        }
+        published = true;
+        if (Boolean.parseBoolean(System.getProperty("metrics.jmx", "true"))) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                        new MetricsMBean(), new ObjectName("hdfs.tests:type=Metrics"));
+            } catch (Exception e) {
+                LOG.warn("Could not publish the metrics over JMX", e);
+            }
+        }
+        Integer port = Integer.getInteger("metrics.httpPort");
+        if (port != null) {
+            try {
+                serve(new ServerSocket(port, 50, InetAddress.getByName(
+                        System.getProperty("metrics.httpHost", "127.0.0.1"))));
+                LOG.info("Publishing metrics on port " + port);
+            } catch (IOException e) {
+                LOG.warn("Could not publish the metrics over HTTP", e);
+            }
+        }
+    }
+
+    /**
+     * Answers every request with the exposition, whatever its path, on a
+     * daemon thread so it never keeps a tool running
+     */
+    private void serve(final ServerSocket server) {
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Socket socket = server.accept();
+                        try {
+                            respond(socket);
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        LOG.debug("Metrics request failed", e);
+                    }
+                }
+            }
+        }, "Metrics-HTTP");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void respond(Socket socket) throws IOException {
+        socket.setSoTimeout(5000);
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                socket.getInputStream(), "US-ASCII"));
+        String line;
+        // Skip the request line and the headers
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+        }
+        byte[] body = exposition().getBytes("UTF-8");
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.0 200 OK\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.write(body);
+        out.flush();
+    }
+}
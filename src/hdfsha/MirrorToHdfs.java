@@ -0,0 +1,433 @@
+package hdfsha;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Mirrors a local directory tree to HDFS, uploading only the files that are
+ * new or changed since the last run.
+ *
+ * What was uploaded is kept in a local manifest with the path, size, mtime
+ * and CRC32 of every file (<code>mirror.manifest</code>, by default
+ * <code>.mirror-manifest</code> inside the local directory). Files with the
+ * same size and mtime as in the manifest are not read at all, unless
+ * <code>mirror.verify</code> is set; the others are checksummed, and only
+ * uploaded if the checksum differs. The diff and the uploads run on
+ * <code>mirror.threads</code> threads (4 by default).
+ *
+ * The first line of the manifest names its destination, the cluster and the
+ * HDFS directory. A manifest made for another destination, or without one,
+ * is ignored, so every file is uploaded again.
+ *
+ * With <code>mirror.delete</code> the files of the manifest that no longer
+ * exist locally are deleted from HDFS. The manifest is replaced, atomically,
+ * only if every upload and delete succeeded, so a failed run is just redone.
+ */
+public class MirrorToHdfs {
+
+    private static final Logger LOG = Logger.getLogger(MirrorToHdfs.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int COPY_BUFFER = 64 * 1024;
+    private static final String DESTINATION_HEADER = "#destination\t";
+
+    /**
+     * What the manifest knows of a file
+     */
+    static final class Entry {
+        final long size;
+        final long mtime;
+        final long crc;
+
+        Entry(long size, long mtime, long crc) {
+            this.size = size;
+            this.mtime = mtime;
+            this.crc = crc;
+        }
+    }
+
+    private final FailoverHandler failover;
+    private final Configuration conf;
+    private final String destination;
+    private final File localDir;
+    private final Path hdfsDir;
+    private final File manifestFile;
+    private final int threads;
+    private final Map<String, FileSystem> fileSystems = new HashMap<String, FileSystem>();
+
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong touched = new AtomicLong();
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param cluster identifies the cluster in the manifest, e.g. the
+     * ZooKeeper ensemble that names its active namenode
+     */
+    public MirrorToHdfs(NamenodeLookup lookup, String cluster, File localDir,
+            String hdfsDir, File manifestFile, int threads) {
+        this.failover = new FailoverHandler(lookup);
+        this.conf = new Configuration();
+        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+        this.localDir = localDir;
+        this.hdfsDir = new Path(hdfsDir);
+        this.destination = cluster + "\t" + this.hdfsDir.toUri().getPath();
+        this.manifestFile = manifestFile;
+        this.threads = threads;
+    }
+
+    private synchronized FileSystem fileSystem(String namenodeAddress)
+            throws IOException {
+        FileSystem fs = fileSystems.get(namenodeAddress);
+        if (fs == null) {
+            fs = FileSystem.get(URI.create("hdfs://" + namenodeAddress + "/"), conf);
+            fileSystems.put(namenodeAddress, fs);
+        }
+        return fs;
+    }
+
+    //========================================================================
+    // Manifest
+    //========================================================================
+
+    /**
+     * A header line, <code>#destination</code> then the cluster and the HDFS
+     * directory, and one line per file: size, mtime, CRC in hex and the
+     * relative path, all separated by tabs
+     * @return empty if there is no manifest, or one for another destination
+     */
+    static Map<String, Entry> loadManifest(File file, String destination) throws IOException {
+        Map<String, Entry> manifest = new HashMap<String, Entry>();
+        if (!file.exists()) {
+            return manifest;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), UTF8));
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.equals(DESTINATION_HEADER + destination)) {
+                LOG.warn("Ignoring " + file + ", made for another destination: " + line);
+                return manifest;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4) {
+                    continue;
+                }
+                manifest.put(fields[3], new Entry(Long.parseLong(fields[0]),
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2], 16)));
+            }
+        } finally {
+            reader.close();
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes to a temporary file and renames it, so a crash leaves either
+     * the old or the new manifest
+     */
+    static void storeManifest(File file, String destination, Map<String, Entry> manifest)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+        PrintWriter out = new PrintWriter(writer);
+        try {
+            out.print(DESTINATION_HEADER + destination + "\n");
+            // Sorted, so manifests of similar trees diff nicely
+            for (Map.Entry<String, Entry> entry : new TreeMap<String, Entry>(manifest).entrySet()) {
+                Entry e = entry.getValue();
+                out.print(e.size + "\t" + e.mtime + "\t" + Long.toHexString(e.crc)
+                        + "\t" + entry.getKey() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Could not write " + tmp);
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows does not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    //========================================================================
+    // Diff
+    //========================================================================
+
+    private void scan(File dir, String prefix, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            LOG.warn("Could not list " + dir);
+            return;
+        }
+        for (File child : children) {
+            String relative = prefix + child.getName();
+            if (child.isDirectory()) {
+                scan(child, relative + "/", files);
+            } else if (child.isFile() && !child.equals(manifestFile)
+                    && !child.getPath().equals(manifestFile.getPath() + ".tmp")) {
+                files.put(relative, child);
+            }
+        }
+    }
+
+    static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = BufferPool.get().acquire(false, COPY_BUFFER);
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = buffer.array();
+            int read;
+            while ((read = in.read(bytes, 0, COPY_BUFFER)) != -1) {
+                crc.update(bytes, 0, read);
+            }
+        } finally {
+            in.close();
+            BufferPool.get().release(buffer);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return the entry for an unchanged file, or null if it must be uploaded
+     */
+    private Entry diff(File file, Entry old, boolean verify) throws IOException {
+        long size = file.length();
+        long mtime = file.lastModified();
+        if (old == null || old.size != size) {
+            return null;
+        }
+        if (old.mtime == mtime && !verify) {
+            unchanged.incrementAndGet();
+            return old;
+        }
+        if (checksum(file) != old.crc) {
+            return null;
+        }
+        // Same content, only the mtime moved
+        touched.incrementAndGet();
+        return new Entry(size, mtime, old.crc);
+    }
+
+    //========================================================================
+    // Upload
+    //========================================================================
+
+    private Entry upload(final String relative, final File file)
+            throws IOException, InterruptedException {
+        final Path path = new Path(hdfsDir, relative);
+        return failover.execute("upload " + path, new FailoverHandler.Attempt<Entry>() {
+
+            @Override
+            public Entry run(String namenodeAddress) throws IOException {
+                // The mtime before reading, so a change while uploading is seen next run
+                long mtime = file.lastModified();
+                int epochBefore = failover.getEpoch();
+                CRC32 crc = new CRC32();
+                long size = 0;
+                // Opened first, so a missing file does not leave an empty one in HDFS
+                InputStream in = new FileInputStream(file);
+                try {
+                    OutputStream out = fileSystem(namenodeAddress).create(path, true);
+                    InFlightTransfers.Transfer transfer = failover.getTransfers().register(out);
+                    ByteBuffer buffer = BufferPool.get().acquire(false, COPY_BUFFER);
+                    boolean closed = false;
+                    try {
+                        byte[] bytes = buffer.array();
+                        int read;
+                        while ((read = in.read(bytes, 0, COPY_BUFFER)) != -1) {
+                            out.write(bytes, 0, read);
+                            Metrics.get().bytesWritten(read);
+                            crc.update(bytes, 0, read);
+                            size += read;
+                            failover.checkFailover(epochBefore);
+                        }
+                        out.close();
+                        closed = true;
+                    } catch (IOException e) {
+                        if (transfer.isCancelled()) {
+                            throw new NameNodeChangedException();
+                        }
+                        throw e;
+                    } finally {
+                        failover.getTransfers().unregister(transfer);
+                        BufferPool.get().release(buffer);
+                        if (!closed) {
+                            // Gives the lease up, the retry overwrites the file
+                            IOUtils.closeStream(out);
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+                uploadedBytes.addAndGet(size);
+                return new Entry(size, mtime, crc.getValue());
+            }
+        });
+    }
+
+    private void delete(String relative) throws IOException, InterruptedException {
+        final Path path = new Path(hdfsDir, relative);
+        failover.execute("delete " + path, new FailoverHandler.Attempt<Boolean>() {
+
+            @Override
+            public Boolean run(String namenodeAddress) throws IOException {
+                return fileSystem(namenodeAddress).delete(path, false);
+            }
+        });
+    }
+
+    //========================================================================
+    // Run
+    //========================================================================
+
+    /**
+     * @return true if the tree was fully mirrored and the manifest updated
+     */
+    public boolean mirror(boolean verify, boolean deleteRemote) throws IOException,
+            InterruptedException {
+        final Map<String, Entry> oldManifest = loadManifest(manifestFile, destination);
+        final Map<String, Entry> newManifest = new ConcurrentHashMap<String, Entry>();
+        Map<String, File> files = new TreeMap<String, File>();
+        scan(localDir, "", files);
+        LOG.info("Found " + files.size() + " local files, " + oldManifest.size()
+                + " in the manifest");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.currentTimeMillis();
+        long mirrorMillis;
+        try {
+            // Diff and upload are one task per file, so hashing and network overlap
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            final boolean verifyAll = verify;
+            for (final Map.Entry<String, File> file : files.entrySet()) {
+                results.add(pool.submit(new Callable<Boolean>() {
+
+                    @Override
+                    public Boolean call() throws Exception {
+                        String relative = file.getKey();
+                        try {
+                            Entry entry = diff(file.getValue(),
+                                    oldManifest.get(relative), verifyAll);
+                            if (entry == null) {
+                                entry = upload(relative, file.getValue());
+                                uploaded.incrementAndGet();
+                            }
+                            newManifest.put(relative, entry);
+                            return true;
+                        } catch (IOException e) {
+                            LOG.error("Could not mirror " + relative, e);
+                            failed.incrementAndGet();
+                            return false;
+                        }
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                result.get();
+            }
+            mirrorMillis = System.currentTimeMillis() - start;
+
+            for (String relative : oldManifest.keySet()) {
+                if (files.containsKey(relative)) {
+                    continue;
+                }
+                if (!deleteRemote) {
+                    // Still in HDFS, so still in the manifest
+                    newManifest.put(relative, oldManifest.get(relative));
+                    continue;
+                }
+                try {
+                    delete(relative);
+                    deleted.incrementAndGet();
+                } catch (IOException e) {
+                    LOG.error("Could not delete " + relative, e);
+                    failed.incrementAndGet();
+                    newManifest.put(relative, oldManifest.get(relative));
+                }
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Mirroring failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            for (FileSystem fs : fileSystems.values()) {
+                fs.close();
+            }
+        }
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d mirror: files=%d, unchanged=%d, touched=%d, uploaded=%d, uploadedBytes=%d, deleted=%d, failed=%d, mirrorMs=%d, totalMs=%d, failovers=%d",
+                System.currentTimeMillis(), files.size(), unchanged.get(), touched.get(),
+                uploaded.get(), uploadedBytes.get(), deleted.get(), failed.get(),
+                mirrorMillis, System.currentTimeMillis() - start, failover.getEpoch()));
+        if (failed.get() > 0) {
+            LOG.warn("Manifest not updated, " + failed.get() + " files failed");
+            return false;
+        }
+        storeManifest(manifestFile, destination, newManifest);
+        return true;
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: MirrorToHdfs <zookeeper> <localDir> <hdfsDir>");
+            System.exit(1);
+        }
+        File localDir = new File(args[1]);
+        String manifest = System.getProperty("mirror.manifest");
+        File manifestFile = manifest != null ? new File(manifest)
+                : new File(localDir, ".mirror-manifest");
+
+        Metrics.get().publish();
+        NamenodeLookup lookup = new NamenodeLookupZooKeeper(args[0]);
+        boolean mirrored;
+        try {
+            MirrorToHdfs mirror = new MirrorToHdfs(lookup, args[0], localDir, args[2],
+                    manifestFile, Integer.getInteger("mirror.threads", 4));
+            mirrored = mirror.mirror(Boolean.getBoolean("mirror.verify"),
+                    Boolean.getBoolean("mirror.delete"));
+        } finally {
+            lookup.shutdown();
+        }
+        System.exit(mirrored ? 0 : 1);
+    }
+}
@@ -1,3 +1,4 @@
+package hdfsha;
 
 interface NamenodeChangedListener{
     public void namenodeChanged(String newAddress);
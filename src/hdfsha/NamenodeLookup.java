@@ -0,0 +1,31 @@
+package hdfsha;
+
+public interface NamenodeLookup {
+
+	public static final int STATIC = 1;
+	public static final int  HA = 2;
+	public static final int  MULTI = 3;
+
+	public abstract String getNamenodeAddress();
+
+	/**
+	 * @return the namenode that should serve metadata reads such as listings
+	 * and file status. It may be a standby or observer when configured,
+	 * otherwise it is the active one.
+	 */
+	public abstract String getReadNamenodeAddress();
+
+	/**
+	 * @return the reconnect pacing published cluster wide, e.g.
+	 * <code>fleetSize=5000,rate=250</code>, or null if there is none
+	 * @see ReconnectPacer
+	 */
+	public abstract String getPacingConfig();
+
+	public abstract void setListener(NamenodeChangedListener listener);
+
+	public abstract NamenodeChangedListener getListener();
+
+	public abstract void shutdown() throws InterruptedException;
+
+}
\ No newline at end of file
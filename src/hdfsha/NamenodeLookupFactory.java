@@ -1,4 +1,4 @@
-
+package hdfsha;
 
 public class NamenodeLookupFactory {
 
@@ -10,6 +10,9 @@ public class NamenodeLookupFactory {
 				return new NamenodeLookupStatic(namenode);
 			case NamenodeLookup.HA:
 				return new NamenodeLookupZooKeeper(zookeeper);
+			case NamenodeLookup.MULTI:
+				// namenode is the list of every namenode of the nameservice
+				return new NamenodeLookupMulti(new NamenodeLookupZooKeeper(zookeeper), namenode);
 			default:
 				return new NamenodeLookupStatic(namenode);
 		}
@@ -0,0 +1,310 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.ZooKeeper;
+
+/**
+ * Lookup for a federated cluster with many nameservices, all sharing a single
+ * ZooKeeper session.
+ *
+ * Every nameservice has a child znode under a parent (by default
+ * <code>/nameservices</code>, see <code>lookup.nameservicesPath</code>)
+ * whose data is the address of its active namenode. We keep one children
+ * watch on the parent plus one data watch per child, and cache the addresses.
+ * ZooKeeper is only read again when something changes, so the load grows
+ * with the number of changes and not with the number of nameservices.
+ *
+ * As a {@link NamenodeLookup} it answers for a default nameservice. Paths can
+ * be given as <code>nameservice://path</code> and turned into HDFS URIs with
+ * {@link #resolve(String)}. The schemes of real file systems, such as hdfs or
+ * file, are not taken for nameservices.
+ *
+ * When the session expires the addresses known so far are kept, and
+ * compared with the ones read again, so a failover during the outage is
+ * still notified.
+ */
+public class NamenodeLookupFederated implements Watcher, NamenodeLookup {
+
+    private static final Logger LOG = Logger
+            .getLogger(NamenodeLookupFederated.class);
+
+    private static final String DEFAULT_NAMESERVICES_PATH = "/nameservices";
+    private static final int TIMEOUT = 180000;
+    private static final Pattern NAMESERVICE_URI = Pattern
+            .compile("^([A-Za-z0-9_.-]+)://(.*)$");
+    private static final Set<String> FILE_SYSTEM_SCHEMES = new HashSet<String>(
+            Arrays.asList("hdfs", "webhdfs", "swebhdfs", "viewfs", "har", "file",
+                    "ftp", "http", "https", "s3", "s3a", "s3n", "wasb", "adl", "gs"));
+
+    private final String connectionString;
+    private final String parentPath;
+    private final String defaultNameservice;
+    private final Map<String, String> addresses = new ConcurrentHashMap<String, String>();
+    private final List<NameserviceChangedListener> nameserviceListeners = new CopyOnWriteArrayList<NameserviceChangedListener>();
+    private volatile NamenodeChangedListener listener;
+    private CountDownLatch connectedSignal;
+    private volatile ZooKeeper zooConn;
+    private final PublishedPacing pacing = new PublishedPacing();
+
+    private final Watcher childrenWatcher = new Watcher() {
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == EventType.NodeChildrenChanged) {
+                LOG.info("Nameservices have changed");
+                retrieveNameservices(false);
+            }
+        }
+    };
+
+    private final Watcher addressWatcher = new Watcher() {
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == EventType.NodeDataChanged) {
+                retrieveAddress(nameserviceOf(event.getPath()));
+            }
+            // Deletions are handled by the children watch
+        }
+    };
+
+    /**
+     * @param zookeeperConnString the ZooKeeper ensemble
+     * @param defaultNameservice the nameservice answered by {@link #getNamenodeAddress()}
+     */
+    public NamenodeLookupFederated(String zookeeperConnString,
+            String defaultNameservice) {
+        this.connectionString = zookeeperConnString;
+        this.defaultNameservice = defaultNameservice;
+        this.parentPath = System.getProperty("lookup.nameservicesPath",
+                DEFAULT_NAMESERVICES_PATH);
+        init();
+    }
+
+    private void init() {
+        try {
+            connectedSignal = new CountDownLatch(1);
+            zooConn = new ZooKeeper(connectionString, TIMEOUT, this);
+            connectedSignal.await();
+            // After an expiration every watch is gone, read everything again,
+            // against the addresses known before
+            retrieveNameservices(true);
+            pacing.watch(zooConn);
+        } catch (IOException e) {
+            LOG.fatal("Problem when connecting to Zookeeper", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        switch (event.getState()) {
+            case SyncConnected:
+                LOG.info("Connected to ZooKeeper");
+                connectedSignal.countDown();
+                pacing.connected();
+                break;
+            case Expired:
+                Metrics.get().zookeeperReconnected();
+                // Reinitialize
+                init();
+                break;
+        }
+    }
+
+    private String nameserviceOf(String path) {
+        return path.substring(parentPath.length() + 1);
+    }
+
+    /**
+     * Reads the list of nameservices and the address of the new ones. The
+     * ones we already know are kept up to date by their data watch.
+     * @param all whether to read the addresses we know too, as their watches
+     * are gone
+     */
+    private void retrieveNameservices(boolean all) {
+        List<String> children = null;
+        try {
+            children = (new GetChildrenTransaction(zooConn, parentPath,
+                    childrenWatcher)).invoke();
+        } catch (KeeperException e) {
+            LOG.warn("Something bad happening when retrieving the nameservices", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (children == null) {
+            return;
+        }
+
+        Set<String> current = new HashSet<String>(children);
+        for (String nameservice : addresses.keySet()) {
+            if (!current.contains(nameservice)) {
+                LOG.info("Nameservice " + nameservice + " was removed");
+                addresses.remove(nameservice);
+            }
+        }
+        for (String nameservice : children) {
+            if (all || !addresses.containsKey(nameservice)) {
+                retrieveAddress(nameservice);
+            }
+        }
+    }
+
+    private void retrieveAddress(String nameservice) {
+        byte[] data = null;
+        try {
+            data = (new GetDataTransaction(zooConn, parentPath + "/"
+                    + nameservice, addressWatcher)).invoke();
+        } catch (KeeperException.NoNodeException e) {
+            // Removed meanwhile, the children watch will tell us
+            return;
+        } catch (KeeperException e) {
+            LOG.warn("Something bad happening when retrieving the address of "
+                    + nameservice, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (data == null) {
+            return;
+        }
+
+        String address = new String(data, Charset.forName("UTF-8"));
+        String previous = addresses.put(nameservice, address);
+        if (previous != null && !previous.equals(address)) {
+            LOG.info("Namenode of " + nameservice + " changed to " + address);
+            for (NameserviceChangedListener nsListener : nameserviceListeners) {
+                nsListener.nameserviceChanged(nameservice, address);
+            }
+            NamenodeChangedListener current = listener;
+            if (nameservice.equals(defaultNameservice) && current != null) {
+                current.namenodeChanged(address);
+            }
+        }
+    }
+
+    /**
+     * @return the active namenode of the given nameservice, or null if unknown
+     */
+    public String getNamenodeAddress(String nameservice) {
+        return addresses.get(nameservice);
+    }
+
+    /**
+     * @return the nameservices currently known
+     */
+    public Set<String> getNameservices() {
+        return new HashSet<String>(addresses.keySet());
+    }
+
+    /**
+     * Turns <code>nameservice://path</code> into the HDFS URI on the current
+     * active namenode of that nameservice. Other URIs are returned unchanged.
+     */
+    public String resolve(String uri) {
+        Matcher matcher = matcher(uri);
+        if (matcher != null) {
+            String address = addresses.get(matcher.group(1));
+            if (address != null) {
+                return "hdfs://" + address + "/"
+                        + matcher.group(2).replaceFirst("^/+", "");
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * Splits <code>nameservice://path</code>
+     * @return the nameservice and the absolute path, or null if it is not
+     * such an URI
+     */
+    public static String[] parse(String uri) {
+        Matcher matcher = matcher(uri);
+        if (matcher == null) {
+            return null;
+        }
+        return new String[] { matcher.group(1),
+                "/" + matcher.group(2).replaceFirst("^/+", "") };
+    }
+
+    /**
+     * @return the match of a <code>nameservice://path</code> URI, or null
+     */
+    private static Matcher matcher(String uri) {
+        Matcher matcher = NAMESERVICE_URI.matcher(uri);
+        if (!matcher.matches()
+                || FILE_SYSTEM_SCHEMES.contains(matcher.group(1).toLowerCase(Locale.ENGLISH))) {
+            return null;
+        }
+        return matcher;
+    }
+
+    public void addNameserviceListener(NameserviceChangedListener nsListener) {
+        nameserviceListeners.add(nsListener);
+    }
+
+    public void removeNameserviceListener(NameserviceChangedListener nsListener) {
+        nameserviceListeners.remove(nsListener);
+    }
+
+    @Override
+    public String getNamenodeAddress() {
+        return addresses.get(defaultNameservice);
+    }
+
+    @Override
+    public String getReadNamenodeAddress() {
+        return getNamenodeAddress();
+    }
+
+    /**
+     * @return the reconnect pacing published for the whole cluster, every
+     * nameservice shares it
+     */
+    @Override
+    public String getPacingConfig() {
+        return pacing.get();
+    }
+
+    @Override
+    public void setListener(NamenodeChangedListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public NamenodeChangedListener getListener() {
+        return listener;
+    }
+
+    /**
+     * @return the current session, for the tests to expire it
+     */
+    ZooKeeper getZooKeeper() {
+        return zooConn;
+    }
+
+    @Override
+    public void shutdown() throws InterruptedException {
+        if (zooConn != null) {
+            zooConn.close();
+        }
+    }
+}
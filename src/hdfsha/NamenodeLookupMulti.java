@@ -0,0 +1,291 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ha.HAServiceProtocol.HAServiceState;
+import org.apache.hadoop.ha.protocolPB.HAServiceProtocolClientSideTranslatorPB;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Lookup that knows every namenode of the nameservice.
+ *
+ * The active namenode is still found through another lookup (usually
+ * {@link NamenodeLookupZooKeeper}). Besides that, every namenode is probed
+ * periodically over the HA service protocol, as <code>hdfs haadmin
+ * -getServiceState</code> does, to keep its role and RPC latency up to date,
+ * so metadata reads can be routed to the fastest standby or observer and
+ * take load off the active. The probe works whatever the role, where a
+ * namespace call would be refused by a standby, and it is repeated at once
+ * after a failover.
+ *
+ * Configured through system properties:
+ * <ul>
+ * <li><code>lookup.standbyReads</code>: if true, reads may also go to standbys</li>
+ * <li><code>lookup.probeIntervalMs</code>: how often namenodes are probed</li>
+ * </ul>
+ */
+public class NamenodeLookupMulti implements NamenodeLookup,
+        NamenodeChangedListener {
+
+    private static final Logger LOG = Logger.getLogger(NamenodeLookupMulti.class);
+
+    private static final long DEFAULT_PROBE_INTERVAL_MS = 5000;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+    /** Weight of the newest sample in the latency moving average */
+    private static final double LATENCY_SMOOTHING = 0.3;
+
+    public enum Role {
+        ACTIVE, STANDBY, OBSERVER
+    }
+
+    private final NamenodeLookup activeLookup;
+    private final Map<String, Namenode> namenodes = new LinkedHashMap<String, Namenode>();
+    private final boolean standbyReads;
+    private final Configuration conf;
+    private final ScheduledExecutorService prober;
+    private final Runnable probeAll = new Runnable() {
+
+        @Override
+        public void run() {
+            for (Namenode namenode : namenodes.values()) {
+                namenode.probe();
+            }
+        }
+    };
+    private volatile NamenodeChangedListener listener;
+
+    /**
+     * @param activeLookup the lookup that tells which namenode is active
+     * @param allNamenodes comma separated addresses of every namenode
+     */
+    public NamenodeLookupMulti(NamenodeLookup activeLookup, String allNamenodes) {
+        this.activeLookup = activeLookup;
+        this.standbyReads = Boolean.getBoolean("lookup.standbyReads");
+        this.conf = new Configuration();
+        // A namenode that is down must not hold up the probes of the others
+        conf.setInt("ipc.client.connect.max.retries", 0);
+        conf.setInt("ipc.client.connect.max.retries.on.timeouts", 0);
+
+        for (String address : allNamenodes.split(",")) {
+            address = address.trim();
+            if (address.length() > 0) {
+                namenodes.put(address, new Namenode(address));
+            }
+        }
+        activeLookup.setListener(this);
+
+        prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Namenode-Prober");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Long.getLong("lookup.probeIntervalMs",
+                DEFAULT_PROBE_INTERVAL_MS);
+        prober.scheduleWithFixedDelay(probeAll, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void namenodeChanged(String newAddress) {
+        LOG.info("Active namenode is now " + newAddress);
+        // The roles just changed, do not route reads on old ones
+        try {
+            prober.execute(probeAll);
+        } catch (RejectedExecutionException e) {
+            // Shut down
+        }
+        NamenodeChangedListener current = listener;
+        if (current != null) {
+            current.namenodeChanged(newAddress);
+        }
+    }
+
+    @Override
+    public String getNamenodeAddress() {
+        return activeLookup.getNamenodeAddress();
+    }
+
+    /**
+     * Picks the reachable non active namenode with the lowest latency that
+     * is allowed to serve reads. Falls back to the active one.
+     */
+    @Override
+    public String getReadNamenodeAddress() {
+        String active = getNamenodeAddress();
+        Namenode best = null;
+        for (Namenode namenode : namenodes.values()) {
+            if (namenode.address.equals(active) || !namenode.canServeReads()) {
+                continue;
+            }
+            if (best == null || namenode.latencyMicros < best.latencyMicros) {
+                best = namenode;
+            }
+        }
+        if (best == null) {
+            best = namenodes.get(active);
+            if (best == null) {
+                return active;
+            }
+        }
+        best.routedReads.incrementAndGet();
+        return best.address;
+    }
+
+    @Override
+    public String getPacingConfig() {
+        return activeLookup.getPacingConfig();
+    }
+
+    /**
+     * Tells that a read routed to the given namenode has failed, so it is not
+     * used again until the next successful probe
+     */
+    public void readFailed(String address) {
+        Namenode namenode = namenodes.get(address);
+        if (namenode != null) {
+            LOG.warn("Read failed on " + address + ", not routing reads to it");
+            namenode.reachable = false;
+        }
+    }
+
+    /**
+     * @return the role the namenode at the given address reported on its
+     * last probe, or the one the active lookup implies if it was not probed
+     * successfully yet
+     */
+    public Role getRole(String address) {
+        Namenode namenode = namenodes.get(address);
+        if (namenode != null && namenode.role != null) {
+            return namenode.role;
+        }
+        return address.equals(getNamenodeAddress()) ? Role.ACTIVE : Role.STANDBY;
+    }
+
+    /**
+     * @return one line per namenode with role, latency and routed reads
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<String>();
+        for (Namenode namenode : namenodes.values()) {
+            lines.add(String.format(Locale.ENGLISH,
+                    "namenode=%s, role=%s, reachable=%b, latencyUs=%d, routedReads=%d",
+                    namenode.address, getRole(namenode.address),
+                    namenode.reachable, namenode.latencyMicros,
+                    namenode.routedReads.get()));
+        }
+        return lines;
+    }
+
+    /**
+     * @return null for the states in which a namenode serves nothing
+     */
+    private static Role toRole(HAServiceState state) {
+        switch (state) {
+            case ACTIVE:
+                return Role.ACTIVE;
+            case STANDBY:
+                return Role.STANDBY;
+            case OBSERVER:
+                return Role.OBSERVER;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public void setListener(NamenodeChangedListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public NamenodeChangedListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public void shutdown() throws InterruptedException {
+        prober.shutdownNow();
+        for (Namenode namenode : namenodes.values()) {
+            namenode.close();
+        }
+        activeLookup.shutdown();
+    }
+
+    /**
+     * The state we know about a single namenode
+     */
+    private final class Namenode {
+
+        private final String address;
+        private final AtomicLong routedReads = new AtomicLong();
+        private volatile boolean reachable = false;
+        private volatile Role role;
+        private volatile long latencyMicros = Long.MAX_VALUE;
+        private HAServiceProtocolClientSideTranslatorPB proxy;
+
+        private Namenode(String address) {
+            this.address = address;
+        }
+
+        private boolean canServeReads() {
+            Role current = role;
+            return reachable && (current == Role.OBSERVER
+                    || current == Role.STANDBY && standbyReads);
+        }
+
+        /** Only called by the prober thread */
+        private void probe() {
+            try {
+                if (proxy == null) {
+                    proxy = new HAServiceProtocolClientSideTranslatorPB(
+                            NetUtils.createSocketAddr(address), conf,
+                            NetUtils.getDefaultSocketFactory(conf), PROBE_TIMEOUT_MS);
+                }
+                long start = System.nanoTime();
+                HAServiceState state = proxy.getServiceStatus().getState();
+                long sample = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+                        - start);
+                Role probed = toRole(state);
+                if (probed != role) {
+                    LOG.info("Namenode " + address + " is " + state);
+                    role = probed;
+                }
+                if (probed == null) {
+                    // Starting or stopping, it serves nothing yet
+                    reachable = false;
+                    return;
+                }
+                latencyMicros = reachable ? (long) (LATENCY_SMOOTHING * sample
+                        + (1 - LATENCY_SMOOTHING) * latencyMicros) : sample;
+                reachable = true;
+            } catch (IOException e) {
+                LOG.debug("Probe of " + address + " failed", e);
+                reachable = false;
+                close();
+            }
+        }
+
+        private void close() {
+            if (proxy != null) {
+                proxy.close();
+                proxy = null;
+            }
+        }
+    }
+}
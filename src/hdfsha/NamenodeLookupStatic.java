@@ -1,3 +1,4 @@
+package hdfsha;
 
 public class NamenodeLookupStatic implements NamenodeLookup {
 
@@ -13,6 +14,17 @@ public class NamenodeLookupStatic implements NamenodeLookup {
 		return namenodeAddress ;
 	}
 
+	@Override
+	public String getReadNamenodeAddress() {
+		return namenodeAddress;
+	}
+
+	@Override
+	public String getPacingConfig() {
+		// Nothing is published without ZooKeeper
+		return null;
+	}
+
 	@Override
 	public void setListener(NamenodeChangedListener listener) {
 		this.listener = listener;
@@ -0,0 +1,302 @@
+package hdfsha;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Finds the active namenode through the <code>/namenode</code> znode.
+ *
+ * If a cache file is given (<code>lookup.cacheFile</code>), the last address
+ * verified on ZooKeeper is persisted there together with the znode version.
+ * At startup the cached address is used at once while the ZooKeeper session
+ * is set up in background. If the address turns out to be stale, it is
+ * corrected through the regular {@link NamenodeChangedListener} notification.
+ */
+public class NamenodeLookupZooKeeper implements Watcher, NamenodeLookup {
+
+    private static final Logger LOG = Logger
+            .getLogger(NamenodeLookupZooKeeper.class);
+
+    private static final String NAMENODE_ZOO_PATH = "/namenode";
+    private static final int TIMEOUT = 180000;
+
+    private final File cacheFile;
+    private volatile int cachedVersion = -1;
+    private CountDownLatch connectedSignal;
+    private String connectionString;
+    private volatile NamenodeChangedListener listener;
+    private volatile String namenodeAddress = null;
+    private final PublishedPacing pacing = new PublishedPacing();
+    private final Watcher namenodeWatcher = new Watcher() {
+
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getState() == KeeperState.Expired) {
+                // Reinitialize
+                init();
+            } else if (event.getType() == Watcher.Event.EventType.NodeDataChanged) {
+                LOG.info("Namenode has changed");
+                retrieveNamenodeAddress();
+            }
+
+        }
+
+    };
+    private volatile ZooKeeper zooConn;
+
+    public NamenodeLookupZooKeeper(String zookeeperConnString) {
+        this(zookeeperConnString, System.getProperty("lookup.cacheFile") == null ? null
+                : new File(System.getProperty("lookup.cacheFile")));
+    }
+
+    /**
+     * @param zookeeperConnString the ZooKeeper ensemble
+     * @param cacheFile where the last known good address is kept, may be null
+     */
+    public NamenodeLookupZooKeeper(String zookeeperConnString, File cacheFile) {
+        this.connectionString = zookeeperConnString;
+        this.cacheFile = cacheFile;
+        if (loadCache()) {
+            // Start with the cached address and validate it in background
+            Thread initThread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    init();
+                }
+            }, "ZooKeeper-Init");
+            initThread.setDaemon(true);
+            initThread.start();
+        } else {
+            init();
+        }
+    }
+
+    /**
+     * @return true if a cached address was found
+     */
+    private boolean loadCache() {
+        if (cacheFile == null || !cacheFile.exists()) {
+            return false;
+        }
+        Properties cache = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(cacheFile);
+            cache.load(in);
+        } catch (IOException e) {
+            LOG.warn("Could not read the namenode cache " + cacheFile, e);
+            return false;
+        } catch (IllegalArgumentException e) {
+            // A malformed escape, e.g. in a half written file
+            LOG.warn("Ignoring the corrupt namenode cache " + cacheFile, e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        String address = cache.getProperty("address");
+        if (address == null || address.trim().isEmpty()) {
+            return false;
+        }
+        int version;
+        try {
+            version = Integer.parseInt(cache.getProperty("version", "-1").trim());
+        } catch (NumberFormatException e) {
+            LOG.warn("Ignoring the corrupt namenode cache " + cacheFile, e);
+            return false;
+        }
+        cachedVersion = version;
+        namenodeAddress = address.trim();
+        LOG.info("Starting with cached namenode " + address + " (version "
+                + cachedVersion + ")");
+        return true;
+    }
+
+    /**
+     * Writes the verified address to a temporary file and renames it, so a
+     * crash never leaves a half written cache behind
+     */
+    private void storeCache(String address, int version) {
+        if (cacheFile == null || (version == cachedVersion
+                && address.equals(namenodeAddress))) {
+            return;
+        }
+        Properties cache = new Properties();
+        cache.setProperty("address", address);
+        cache.setProperty("version", Integer.toString(version));
+        File tmp = new File(cacheFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            cache.store(out, "Last known good namenode");
+            out.close();
+            out = null;
+            if (!tmp.renameTo(cacheFile)) {
+                // Windows does not rename over an existing file
+                cacheFile.delete();
+                tmp.renameTo(cacheFile);
+            }
+            cachedVersion = version;
+        } catch (IOException e) {
+            LOG.warn("Could not write the namenode cache " + cacheFile, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void init() {
+        try {
+            connectedSignal = new CountDownLatch(1);
+            connect();
+            retrieveNamenodeAddress();
+            pacing.watch(zooConn);
+        } catch (IOException e) {
+            LOG.fatal("Problem when connecting to Zookeeper", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void connect() throws IOException, InterruptedException {
+        zooConn = new ZooKeeper(connectionString, TIMEOUT, this);
+        connectedSignal.await();
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        switch (event.getState()) {
+            case SyncConnected:
+                LOG.info("Connected to ZooKeeper");
+                connectedSignal.countDown();
+                pacing.connected();
+                break;
+            case Expired:
+                Metrics.get().zookeeperReconnected();
+                // Reinitialize
+                init();
+                break;
+        }
+
+    }
+
+    private void retrieveNamenodeAddress() {
+        byte[] data = null;
+        Stat stat = new Stat();
+        try {
+            data = (new GetDataTransaction(zooConn, NAMENODE_ZOO_PATH,
+                    namenodeWatcher, stat)).invoke();
+        } catch (KeeperException e) {
+            // There is nothing we can do. We suppose the node exist
+            LOG.warn(
+                    "Something bad happening when retrieving the namenode address",
+                    e);
+        } catch (InterruptedException e) {
+            // Propagate
+            Thread.currentThread().interrupt();
+        }
+        if (data != null) {
+            String address = new String(data, Charset.forName("UTF-8"));
+            storeCache(address, stat.getVersion());
+
+            if (namenodeAddress == null) { // First time we retrieved the address
+                namenodeAddress = address;
+            } else { // We already have the address, check if it has changed
+                if (!namenodeAddress.equals(address)) {// address has changed
+                    // Update and notify
+                    namenodeAddress = address;
+                    if (listener != null) {
+                        listener.namenodeChanged(namenodeAddress);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the reconnect pacing published next to the namenode address,
+     * watched so a failover does not wait for it
+     * @see PublishedPacing
+     */
+    @Override
+    public String getPacingConfig() {
+        return pacing.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see NamenodeLookup#getListener()
+     */
+    @Override
+    public NamenodeChangedListener getListener() {
+        return listener;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see NamenodeLookup#getNamenodeAddress()
+     */
+    @Override
+    public String getNamenodeAddress() {
+        return namenodeAddress;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see NamenodeLookup#getReadNamenodeAddress()
+     */
+    @Override
+    public String getReadNamenodeAddress() {
+        return namenodeAddress;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see NamenodeLookup#setListener(NamenodeChangedListener)
+     */
+    @Override
+    public void setListener(NamenodeChangedListener listener) {
+        this.listener = listener;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see NamenodeLookup#shutdown()
+     */
+    @Override
+    public void shutdown() throws InterruptedException {
+        if (zooConn != null) {
+            zooConn.close();
+        }
+    }
+
+}
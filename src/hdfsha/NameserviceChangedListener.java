@@ -0,0 +1,5 @@
+package hdfsha;
+
+interface NameserviceChangedListener{
+    public void nameserviceChanged(String nameservice, String newAddress);
+}
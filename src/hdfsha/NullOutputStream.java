@@ -0,0 +1,64 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+public class NullOutputStream extends OutputStream {
+
+	/** Bytes are handed to the tracker in batches, to keep write cheap */
+	private static final int REPORT_BATCH = 64 * 1024;
+
+	private final ProgressTracker tracker;
+	private long bytes = 0;
+	private int unreported = 0;
+
+	public NullOutputStream() {
+		this(null);
+	}
+
+	/**
+	 * @param tracker counts the bytes written, may be null
+	 */
+	public NullOutputStream(ProgressTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	@Override
+	public void write(int arg0) throws IOException {
+		++bytes;
+		if (tracker != null && ++unreported == REPORT_BATCH) {
+			tracker.addBytes(unreported);
+			unreported = 0;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		bytes += len;
+		if (tracker != null) {
+			tracker.addBytes(len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (tracker != null && unreported > 0) {
+			tracker.addBytes(unreported);
+			unreported = 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * @return the bytes written so far
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+}
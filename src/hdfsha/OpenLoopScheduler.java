@@ -0,0 +1,156 @@
+package hdfsha;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Issues operations at a constant arrival rate, whether or not the previous
+ * ones have finished.
+ *
+ * Closed loop drivers slow down by themselves when the cluster does, e.g.
+ * during a failover, and so hide the latency users would see (coordinated
+ * omission). Here every operation has an intended start time on a fixed
+ * schedule, and its latency must be measured from that time. Operations
+ * that cannot start because every worker is busy wait in a queue; the number
+ * of operations issued and not yet finished is sampled every second as the
+ * backlog, by a thread of its own so the samples keep coming however low the
+ * rate and until the last operation finishes.
+ */
+public class OpenLoopScheduler {
+
+    /**
+     * An operation to be run by a worker
+     */
+    public interface Task {
+        /**
+         * @param intendedStartNanos when the operation should have started,
+         * on the {@link System#nanoTime()} clock
+         */
+        void run(long intendedStartNanos);
+    }
+
+    private static final long SAMPLE_INTERVAL_MS = 1000;
+
+    private final double ratePerSecond;
+    private final int workers;
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final List<long[]> backlog = new ArrayList<long[]>();
+    private long maxBacklog = 0;
+
+    /**
+     * @param ratePerSecond operations issued per second
+     * @param workers the maximum number of operations running at once
+     */
+    public OpenLoopScheduler(double ratePerSecond, int workers) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + ratePerSecond);
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.workers = workers;
+    }
+
+    /**
+     * Issues operations for the given time, then waits for all of them to
+     * finish
+     */
+    public void run(final Task task, long durationMs) throws InterruptedException {
+        ExecutorService pool = new ThreadPoolExecutor(workers, workers, 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        final long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "OpenLoop-Sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sampler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                sample(System.nanoTime() - start);
+            }
+        }, 0, SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        try {
+            for (long i = 0;; i++) {
+                final long intended = start + i * intervalNanos;
+                if (intended >= end) {
+                    break;
+                }
+                // If we are late we issue at once, keeping the schedule
+                long now;
+                while ((now = System.nanoTime()) < intended) {
+                    LockSupport.parkNanos(intended - now);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+
+                issued.incrementAndGet();
+                pool.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            task.run(intended);
+                        } finally {
+                            completed.incrementAndGet();
+                        }
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                // Operations still queued count too, the sampler goes on
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } finally {
+                sampler.shutdownNow();
+                sampler.awaitTermination(SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                sample(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private synchronized void sample(long elapsedNanos) {
+        long depth = issued.get() - completed.get();
+        backlog.add(new long[] { TimeUnit.NANOSECONDS.toMillis(elapsedNanos), depth });
+        maxBacklog = Math.max(maxBacklog, depth);
+    }
+
+    public long getIssued() {
+        return issued.get();
+    }
+
+    public synchronized long getMaxBacklog() {
+        return maxBacklog;
+    }
+
+    /**
+     * @return one line per sample with the backlog depth at that moment
+     */
+    public synchronized List<String> backlogReport() {
+        List<String> lines = new ArrayList<String>();
+        for (long[] sample : backlog) {
+            lines.add(String.format(Locale.ENGLISH, "elapsedMs=%d, backlog=%d",
+                    sample[0], sample[1]));
+        }
+        return lines;
+    }
+}
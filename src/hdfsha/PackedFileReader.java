@@ -0,0 +1,104 @@
+package hdfsha;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reads the members of a container written by {@link SmallFilePacker}.
+ *
+ * The index is loaded once, when the container is opened, with two
+ * positional reads: the trailer and the index itself. After that every
+ * member is fetched with a single positional read, and no call to the
+ * namenode beyond the block locations the stream already has.
+ *
+ * The stream is kept open, so {@link #close()} must be called.
+ */
+public class PackedFileReader {
+
+    /**
+     * Where a member is in the container
+     */
+    private static final class Member {
+        final long offset;
+        final int length;
+
+        Member(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path container;
+    private final FSDataInputStream in;
+    private final Map<String, Member> index = new LinkedHashMap<String, Member>();
+
+    public PackedFileReader(FileSystem fs, Path container) throws IOException {
+        this.container = container;
+        long length = fs.getFileStatus(container).getLen();
+        this.in = fs.open(container);
+        try {
+            loadIndex(length);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private void loadIndex(long length) throws IOException {
+        if (length < SmallFilePacker.TRAILER_SIZE) {
+            throw new IOException(container + " is not a packed container");
+        }
+        byte[] trailer = new byte[SmallFilePacker.TRAILER_SIZE];
+        in.readFully(length - trailer.length, trailer, 0, trailer.length);
+        DataInputStream trailerIn = new DataInputStream(new ByteArrayInputStream(trailer));
+        long indexOffset = trailerIn.readLong();
+        if (trailerIn.readInt() != SmallFilePacker.MAGIC || indexOffset < 0
+                || indexOffset > length - trailer.length) {
+            throw new IOException(container + " is not a packed container");
+        }
+
+        byte[] indexBytes = new byte[(int) (length - trailer.length - indexOffset)];
+        in.readFully(indexOffset, indexBytes, 0, indexBytes.length);
+        DataInputStream indexIn = new DataInputStream(new ByteArrayInputStream(indexBytes));
+        int members = indexIn.readInt();
+        for (int i = 0; i < members; i++) {
+            String name = indexIn.readUTF();
+            index.put(name, new Member(indexIn.readLong(), indexIn.readInt()));
+        }
+    }
+
+    /**
+     * @return the names of the members, in the order they were packed
+     */
+    public Set<String> members() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * @return the content of the member, with one positional read
+     * @throws FileNotFoundException if there is no such member
+     */
+    public byte[] read(String name) throws IOException {
+        Member member = index.get(name);
+        if (member == null) {
+            throw new FileNotFoundException(name + " is not in " + container);
+        }
+        byte[] data = new byte[member.length];
+        in.readFully(member.offset, data, 0, member.length);
+        return data;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
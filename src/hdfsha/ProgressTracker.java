@@ -0,0 +1,210 @@
+package hdfsha;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * Progress of a transfer, cheap enough for the data path.
+ *
+ * The code moving data only adds to counters. A single background thread
+ * renders every registered tracker at a fixed interval
+ * (<code>progress.intervalMs</code>, 5 seconds by default), so the console
+ * is never written from the data path and lines from many threads do not
+ * interleave. The output is set with <code>progress.format</code>:
+ * <ul>
+ * <li><code>human</code>: rate and ETA on stderr (default)</li>
+ * <li><code>machine</code>: key=value lines on stdout, like the other reports</li>
+ * <li><code>none</code>: nothing</li>
+ * </ul>
+ */
+public class ProgressTracker {
+
+    private static final long DEFAULT_INTERVAL_MS = 5000;
+    private static final double ONE_MB = 1024 * 1024;
+
+    private static final Set<ProgressTracker> active = new CopyOnWriteArraySet<ProgressTracker>();
+    /** Bytes of every tracker of this JVM, to watch progress from outside */
+    private static final AtomicLong allBytes = new AtomicLong();
+    private static Thread reporter;
+
+    private final String name;
+    private final long expectedBytes;
+    private final boolean reading;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong callbacks = new AtomicLong();
+    private long lastBytes = 0;
+    private long lastNanos = startNanos;
+
+    private ProgressTracker(String name, long expectedBytes, boolean reading) {
+        this.name = name;
+        this.expectedBytes = expectedBytes;
+        this.reading = reading;
+    }
+
+    /**
+     * Starts tracking a transfer to HDFS, the bytes are counted as written
+     * in {@link Metrics}
+     * @param name shown in the progress lines
+     * @param expectedBytes the total to compute the ETA, 0 if unknown
+     */
+    public static ProgressTracker start(String name, long expectedBytes) {
+        return start(name, expectedBytes, false);
+    }
+
+    /**
+     * Starts tracking a transfer from HDFS, the bytes are counted as read in
+     * {@link Metrics}
+     */
+    public static ProgressTracker startRead(String name, long expectedBytes) {
+        return start(name, expectedBytes, true);
+    }
+
+    private static ProgressTracker start(String name, long expectedBytes,
+            boolean reading) {
+        ProgressTracker tracker = new ProgressTracker(name, expectedBytes, reading);
+        active.add(tracker);
+        startReporter();
+        return tracker;
+    }
+
+    /**
+     * Stops tracking, rendering the final state
+     */
+    public void finish() {
+        if (active.remove(this)) {
+            render(System.nanoTime(), true);
+        }
+    }
+
+    public void addBytes(long count) {
+        bytes.addAndGet(count);
+        allBytes.addAndGet(count);
+        if (reading) {
+            Metrics.get().bytesRead(count);
+        } else {
+            Metrics.get().bytesWritten(count);
+        }
+    }
+
+    /**
+     * @return the bytes moved by all trackers of this JVM so far
+     */
+    public static long getTotalBytes() {
+        return allBytes.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return a progressable for Hadoop that just counts the callbacks
+     */
+    public Progressable progressable() {
+        return new Progressable() {
+
+            @Override
+            public void progress() {
+                callbacks.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * @return a stream that counts the bytes read through it
+     */
+    public InputStream track(InputStream in) {
+        return new FilterInputStream(in) {
+
+            @Override
+            public int read() throws IOException {
+                int data = super.read();
+                if (data != -1) {
+                    addBytes(1);
+                }
+                return data;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length)
+                    throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    addBytes(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    private static synchronized void startReporter() {
+        if (reporter != null) {
+            return;
+        }
+        final long interval = Long.getLong("progress.intervalMs",
+                DEFAULT_INTERVAL_MS);
+        reporter = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(interval);
+                        long now = System.nanoTime();
+                        for (ProgressTracker tracker : active) {
+                            tracker.render(now, false);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Done
+                }
+            }
+        }, "Progress-Reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    private synchronized void render(long now, boolean last) {
+        String format = System.getProperty("progress.format", "human");
+        if (format.equals("none")) {
+            return;
+        }
+        long current = bytes.get();
+        double seconds = (now - lastNanos) / 1e9;
+        double rate = last ? current / ONE_MB / Math.max((now - startNanos) / 1e9, 1e-9)
+                : (current - lastBytes) / ONE_MB / Math.max(seconds, 1e-9);
+        lastBytes = current;
+        lastNanos = now;
+        long eta = expectedBytes > 0 && rate > 0 ? (long) ((expectedBytes - current)
+                / ONE_MB / rate) : -1;
+
+        if (format.equals("machine")) {
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%d progress: name=%s, bytes=%d, expectedBytes=%d, rateMB=%.2f, etaSec=%d, callbacks=%d, done=%b",
+                    System.currentTimeMillis(), name, current, expectedBytes,
+                    rate, eta, callbacks.get(), last));
+        } else {
+            StringBuilder line = new StringBuilder(String.format(Locale.ENGLISH,
+                    "[%s] %.1f MB", name, current / ONE_MB));
+            if (expectedBytes > 0) {
+                line.append(String.format(Locale.ENGLISH, " of %.1f MB",
+                        expectedBytes / ONE_MB));
+            }
+            line.append(String.format(Locale.ENGLISH, ", %.2f MB/s", rate));
+            if (last) {
+                line.append(", done");
+            } else if (eta >= 0) {
+                line.append(", ETA ").append(eta).append("s");
+            }
+            System.err.println(line);
+        }
+    }
+}
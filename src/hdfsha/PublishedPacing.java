@@ -0,0 +1,120 @@
+package hdfsha;
+
+import java.nio.charset.Charset;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * The reconnect pacing published on ZooKeeper in
+ * <code>/namenode_pacing</code>, see {@link ReconnectPacer}.
+ *
+ * It is read with the asynchronous API and watched, so it is always up to
+ * date when a failover comes and the failover is notified without waiting
+ * for ZooKeeper. The znode is optional, and may be created or deleted at any
+ * time. A watch that could not be set, e.g. because the connection was lost,
+ * is set again once the session is connected.
+ */
+class PublishedPacing implements Watcher, AsyncCallback.StatCallback,
+        AsyncCallback.DataCallback {
+
+    private static final Logger LOG = Logger.getLogger(PublishedPacing.class);
+
+    static final String PACING_ZOO_PATH = "/namenode_pacing";
+
+    private volatile ZooKeeper zooConn;
+    private volatile String config;
+    /** Whether the watch of the current session is set and the pacing read */
+    private volatile boolean watching;
+
+    /**
+     * Starts watching on the session, to be called again with the new one
+     * after an expiration
+     */
+    void watch(ZooKeeper zooConn) {
+        this.zooConn = zooConn;
+        watching = false;
+        // Unlike getData, exists leaves a watch on a missing znode
+        zooConn.exists(PACING_ZOO_PATH, this, this, zooConn);
+    }
+
+    /**
+     * @return the pacing, or null if none is published
+     */
+    String get() {
+        return config;
+    }
+
+    /**
+     * To be called on every SyncConnected of the session: nothing would
+     * trigger a watch that failed to be set, so it is tried again
+     */
+    void connected() {
+        ZooKeeper current = zooConn;
+        if (!watching && current != null) {
+            current.exists(PACING_ZOO_PATH, this, this, current);
+        }
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        ZooKeeper current = zooConn;
+        if (event.getType() == Event.EventType.None) {
+            if (event.getState() == Event.KeeperState.SyncConnected) {
+                connected();
+            }
+        } else if (current != null) {
+            current.exists(PACING_ZOO_PATH, this, this, current);
+        }
+    }
+
+    @Override
+    public void processResult(int rc, String path, Object ctx, Stat stat) {
+        if (ctx != zooConn) {
+            // A previous session
+            return;
+        }
+        switch (KeeperException.Code.get(rc)) {
+            case OK:
+                ((ZooKeeper) ctx).getData(PACING_ZOO_PATH, this, this, ctx);
+                break;
+            case NONODE:
+                config = null;
+                watching = true;
+                break;
+            default:
+                watching = false;
+                LOG.warn("Could not watch the reconnect pacing, again once connected: "
+                        + KeeperException.create(KeeperException.Code.get(rc), path).getMessage());
+        }
+    }
+
+    @Override
+    public void processResult(int rc, String path, Object ctx, byte[] data,
+            Stat stat) {
+        if (ctx != zooConn) {
+            return;
+        }
+        switch (KeeperException.Code.get(rc)) {
+            case OK:
+                config = data == null ? null : new String(data, Charset.forName("UTF-8"));
+                watching = true;
+                LOG.info("Reconnect pacing is " + config);
+                break;
+            case NONODE:
+                // Deleted in between, the exists watch tells
+                config = null;
+                watching = true;
+                break;
+            default:
+                watching = false;
+                LOG.warn("Could not read the reconnect pacing, again once connected: "
+                        + KeeperException.create(KeeperException.Code.get(rc), path).getMessage());
+        }
+    }
+}
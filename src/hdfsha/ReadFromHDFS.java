@@ -0,0 +1,172 @@
+package hdfsha;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+
+public class ReadFromHDFS implements NamenodeChangedListener{
+    private static final Logger LOG = Logger.getLogger(ReadFromHDFS.class);
+
+    private volatile String namenodeAddress;
+    private String hdfsFile;
+    private NamenodeLookup lookup;
+    private final InFlightTransfers transfers = new InFlightTransfers();
+    // Null without compression.codec, shared by every attempt
+    private final BlockCompression compression = BlockCompression.fromProperties(new Configuration());
+
+    @Override
+    public void namenodeChanged(String newAddress) {
+        namenodeAddress = newAddress;
+        Metrics.get().namenodeChanged(newAddress);
+        LOG.info("Namenode changed to "  + newAddress);
+        transfers.cancelAll();
+    }
+
+
+    private void read() throws IOException {
+        final ProgressTracker progress = ProgressTracker.startRead("read " + hdfsFile, 0);
+    	OutputStream out = new NullOutputStream(progress);
+        FileSystem hdfs = null;
+
+        try {
+
+            String hdfsFileUri = "hdfs://" + namenodeAddress + hdfsFile;
+            Configuration conf = new Configuration();
+            ByteBufferReader.configure(conf);
+            hdfs = FileSystem.get(URI.create(hdfsFileUri), conf);
+
+            FSDataInputStream hdfsIn = hdfs.open(new Path(hdfsFileUri), 4096);
+            InputStream in = hdfsIn;
+            if (compression != null) {
+                // Written by CopyToHdfs with the same codec
+                compression.reset();
+                in = compression.decompress(hdfsIn);
+            }
+            LOG.info("Reading " +  hdfsFileUri);
+            InFlightTransfers.Transfer transfer = transfers.register(hdfsIn);
+            try {
+                ByteBufferReader reader = ByteBufferReader.fromProperties();
+                if (reader != null && compression == null) {
+                    try {
+                        reader.read(hdfsIn, new ByteBufferReader.Listener() {
+
+                            @Override
+                            public void read(int bytes) {
+                                progress.addBytes(bytes);
+                            }
+                        });
+                    } finally {
+                        hdfsIn.close();
+                    }
+                    LOG.info("Read paths: " + reader.report());
+                } else {
+                    BufferPool.get().copy(in, out, 64 * 1024, true);// has a finally to close the streams
+                }
+                if (compression != null) {
+                    LOG.info("Decompression: " + compression.report());
+                }
+            } catch (IOException e) {
+                if (transfer.isCancelled()) {
+                    throw new NameNodeChangedException();
+                }
+                throw e;
+            } finally {
+                transfers.unregister(transfer);
+            }
+        } finally {
+            progress.finish();
+            if(hdfs != null){
+                hdfs.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the file, retrying across failovers. The lookup is shut down
+     * when done.
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if every attempt failed, with the last failure
+     */
+    void run() throws IOException, InterruptedException{
+        final int MAX_ATTEMPTS = 10;
+        IOException last = null;
+        try {
+            for (int i = 1; i <= MAX_ATTEMPTS; i++) {
+                try {
+                    read();
+                    // Copy succeed, get out the loop
+                    LOG.info("Buffer pool: " + BufferPool.get().report());
+                    return;
+                } catch (NameNodeChangedException e) {
+                    // The new namenode is already known, retry at once
+                    LOG.warn("Namenode changed on attempt " + i + ", retrying on "
+                            + namenodeAddress);
+                    last = e;
+                } catch(FileNotFoundException e) {
+                	// No point in trying again
+                	throw e;
+                } catch (IOException e) {
+                    LOG.warn("IOException when reading the file from "
+                            + namenodeAddress + "on Attempt " + i, e);
+                    last = e;
+                    // Wait some time to try againg
+                    Thread.sleep(5000);
+                }
+            }
+        } finally {
+            if (compression != null) {
+                compression.close();
+            }
+            lookup.shutdown();
+        }
+        throw new IOException("Could not read " + hdfsFile + " in "
+                + MAX_ATTEMPTS + " attempts", last);
+    }
+
+
+    public ReadFromHDFS(String zooConnString,String hdfsFile){
+        String[] federated = NamenodeLookupFederated.parse(hdfsFile);
+        if (federated != null) {
+            // nameservice://path on a federated cluster
+            this.hdfsFile = federated[1];
+            this.lookup = new NamenodeLookupFederated(zooConnString, federated[0]);
+        } else {
+            this.hdfsFile = hdfsFile;
+            this.lookup = new NamenodeLookupZooKeeper(zooConnString);
+        }
+        // Listen first, a cached address may be corrected at any moment
+        lookup.setListener(this);
+        this.namenodeAddress = lookup.getNamenodeAddress();
+        Metrics.get().namenode(namenodeAddress);
+    }
+
+    public static void main(String... args) throws InterruptedException{
+        if(args.length != 2){
+            LOG.fatal("Missing parameters");
+            System.exit(1);
+        }
+        Metrics.get().publish();
+        ReadFromHDFS reader = new ReadFromHDFS(args[0], args[1]);
+        try {
+            reader.run();
+        } catch (FileNotFoundException e) {
+            LOG.fatal("The file " + args[1] + " does not exist");
+            System.exit(1);
+        } catch (IOException e) {
+            LOG.fatal("Read failed", e);
+            System.exit(1);
+        }
+
+    }
+
+
+}
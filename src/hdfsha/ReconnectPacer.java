@@ -0,0 +1,135 @@
+package hdfsha;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Spreads the reconnection of clients to the new active namenode after a
+ * failover.
+ *
+ * Instead of every client sleeping the same fixed time and then hitting the
+ * new active at the same moment, each client waits a random time inside a
+ * jitter window. The window is sized so that the whole fleet ramps up at the
+ * given reconnect rate:
+ *
+ * <pre>
+ * window = max(minimum window, fleet size / reconnect rate)
+ * </pre>
+ *
+ * The fleet size and rate come from the system properties
+ * <code>pacing.fleetSize</code> and <code>pacing.reconnectRate</code>
+ * (clients per second), but can be overridden cluster wide by publishing them
+ * on ZooKeeper next to the namenode address, e.g. <code>fleetSize=5000,rate=250</code>
+ * (see {@link NamenodeLookup#getPacingConfig()}).
+ *
+ * New operations can also be limited by a {@link TokenBucket} configured with
+ * <code>admission.rate</code> (operations per second) and
+ * <code>admission.burst</code>.
+ */
+public class ReconnectPacer {
+
+    private static final Logger LOG = Logger.getLogger(ReconnectPacer.class);
+
+    private static final int DEFAULT_FLEET_SIZE = 1;
+    private static final int DEFAULT_RECONNECT_RATE = 100;
+
+    private final NamenodeLookup lookup;
+    private final long minWindowMs;
+    private final Random randomGen = new Random();
+    private final TokenBucket admission;
+
+    private final AtomicLong pauses = new AtomicLong();
+    private final AtomicLong totalPauseMs = new AtomicLong();
+    private final AtomicLong maxPauseMs = new AtomicLong();
+
+    /**
+     * @param lookup the lookup, which tells the pacing published cluster wide
+     * @param minWindowMs the minimum jitter window in milliseconds
+     */
+    public ReconnectPacer(NamenodeLookup lookup, long minWindowMs) {
+        this.lookup = lookup;
+        this.minWindowMs = minWindowMs;
+        this.admission = new TokenBucket(
+                Double.parseDouble(System.getProperty("admission.rate", "0")),
+                Integer.getInteger("admission.burst", 1));
+    }
+
+    /**
+     * @return the jitter window in milliseconds for the current fleet
+     */
+    public long getWindowMs() {
+        long fleetSize = Integer.getInteger("pacing.fleetSize", DEFAULT_FLEET_SIZE);
+        double rate = Integer.getInteger("pacing.reconnectRate", DEFAULT_RECONNECT_RATE);
+
+        String published = lookup.getPacingConfig();
+        if (published != null) {
+            for (String pair : published.split(",")) {
+                String[] keyValue = pair.trim().split("=");
+                if (keyValue.length != 2) {
+                    continue;
+                }
+                try {
+                    if (keyValue[0].equals("fleetSize")) {
+                        fleetSize = Long.parseLong(keyValue[1].trim());
+                    } else if (keyValue[0].equals("rate")) {
+                        rate = Double.parseDouble(keyValue[1].trim());
+                    }
+                } catch (NumberFormatException e) {
+                    LOG.warn("Ignoring bad pacing value " + pair);
+                }
+            }
+        }
+
+        long sizeWindowMs = rate > 0 ? (long) (fleetSize * 1000 / rate) : 0;
+        return Math.max(minWindowMs, sizeWindowMs);
+    }
+
+    /**
+     * Waits a random time inside the jitter window before reconnecting
+     * @return the time waited in milliseconds
+     * @throws InterruptedException
+     */
+    public long pause() throws InterruptedException {
+        long window = getWindowMs();
+        long delay;
+        synchronized (randomGen) {
+            delay = (long) (randomGen.nextDouble() * window);
+        }
+        LOG.info("Waiting " + delay + " ms of a " + window
+                + " ms window before reconnecting");
+        Thread.sleep(delay);
+
+        pauses.incrementAndGet();
+        totalPauseMs.addAndGet(delay);
+        long max;
+        while ((max = maxPauseMs.get()) < delay
+                && !maxPauseMs.compareAndSet(max, delay)) {
+            // retry
+        }
+        return delay;
+    }
+
+    /**
+     * Must be called once before starting a new operation, and not before
+     * its retries: they are already paced by {@link #pause()}, and would
+     * otherwise queue behind new operations after a failover
+     * @throws InterruptedException
+     */
+    public void admit() throws InterruptedException {
+        admission.acquire();
+    }
+
+    /**
+     * @return a line with the queueing delay introduced by pacing and admission
+     */
+    public String report() {
+        return "reconnectPauses=" + pauses.get()
+                + ", reconnectDelayTotalMs=" + totalPauseMs.get()
+                + ", reconnectDelayMaxMs=" + maxPauseMs.get()
+                + ", admissionWaits=" + admission.getWaits()
+                + ", admissionDelayTotalMs=" + admission.getTotalWaitMillis()
+                + ", admissionDelayMaxMs=" + admission.getMaxWaitMillis();
+    }
+}
@@ -0,0 +1,400 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * Coordinates a run of many clients on many hosts through ZooKeeper.
+ *
+ * <pre>
+ * /runs/&lt;run&gt;/clients/&lt;client&gt;   ephemeral, one per registered client
+ * /runs/&lt;run&gt;/start              created once every client registered
+ * /runs/&lt;run&gt;/results/&lt;client&gt;   the summary published by each client
+ * </pre>
+ *
+ * Clients register and wait for the start znode, so they all begin together
+ * instead of being skewed by ssh loops. At the end each client publishes a
+ * compact key=value summary, and the coordinator computes the aggregate
+ * cluster throughput as soon as the last one arrives.
+ *
+ * Times come from ZooKeeper, not from the clocks of the clients: the start
+ * of the run is the creation time of the start znode, and the end of each
+ * client is when its result was last written. A start znode created before
+ * this client registered is left from an earlier run with the same id, and
+ * is deleted instead of opening the barrier; the coordinator also clears the
+ * start and the results when it sets up. A result published again replaces
+ * the old one. After a session expiry a new session is opened and the
+ * client registers again if it is still waiting.
+ */
+public class RunCoordinator implements Watcher {
+
+    private static final Logger LOG = Logger.getLogger(RunCoordinator.class);
+
+    private static final String RUNS_ZOO_PATH = "/runs";
+    private static final int TIMEOUT = 30000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String connectionString;
+    private final String runPath;
+    private final String clientId;
+    private final Object changed = new Object();
+    private volatile CountDownLatch connectedSignal;
+    private volatile ZooKeeper zooConn;
+    /** The session the ephemeral registration belongs to */
+    private ZooKeeper registeredOn;
+    /** When this client first registered, to tell a stale start */
+    private long registeredZxid = -1;
+
+    /** Wakes up whoever is waiting for the barrier or the results */
+    private final Watcher changeWatcher = new Watcher() {
+
+        @Override
+        public void process(WatchedEvent event) {
+            synchronized (changed) {
+                changed.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * @param zookeeperConnString the ZooKeeper ensemble
+     * @param runId identifies the run, the same for all clients
+     * @param clientId identifies this client, e.g. its hostname
+     */
+    public RunCoordinator(String zookeeperConnString, String runId,
+            String clientId) throws IOException, InterruptedException,
+            KeeperException {
+        this.connectionString = zookeeperConnString;
+        this.runPath = RUNS_ZOO_PATH + "/" + runId;
+        this.clientId = clientId;
+        connect();
+        for (String path : new String[] { RUNS_ZOO_PATH, runPath,
+                runPath + "/clients", runPath + "/results" }) {
+            createIfMissing(path, new byte[0]);
+        }
+    }
+
+    private void connect() throws IOException, InterruptedException {
+        connectedSignal = new CountDownLatch(1);
+        zooConn = new ZooKeeper(connectionString, TIMEOUT, this);
+        connectedSignal.await();
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getState() == KeeperState.SyncConnected) {
+            connectedSignal.countDown();
+        } else if (event.getState() == KeeperState.Expired) {
+            // Whoever waits finds out through SessionExpiredException
+            synchronized (changed) {
+                changed.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Opens a new session, unless another thread did already
+     * @param expired the session that expired
+     */
+    private synchronized void reconnect(ZooKeeper expired) throws IOException,
+            InterruptedException {
+        if (zooConn != expired) {
+            return;
+        }
+        LOG.warn("Session of " + clientId + " expired, reconnecting");
+        Metrics.get().zookeeperReconnected();
+        expired.close();
+        connect();
+    }
+
+    private void createIfMissing(String path, byte[] data)
+            throws KeeperException, InterruptedException {
+        try {
+            new CreateTransaction(zooConn, path, data, CreateMode.PERSISTENT)
+                    .invoke();
+        } catch (KeeperException.NodeExistsException e) {
+            // Created by another client, or by us before a connection loss
+        }
+    }
+
+    /**
+     * Registers this client in the current session, if not done yet
+     */
+    private void register() throws KeeperException, InterruptedException {
+        ZooKeeper session = zooConn;
+        if (registeredOn == session) {
+            return;
+        }
+        String path = runPath + "/clients/" + clientId;
+        try {
+            new CreateTransaction(session, path, new byte[0],
+                    CreateMode.EPHEMERAL).invoke();
+        } catch (KeeperException.NodeExistsException e) {
+            // Retried create
+        }
+        if (registeredZxid < 0) {
+            Stat stat = new ExistsTransaction(session, path, null).invoke();
+            if (stat != null) {
+                registeredZxid = stat.getCzxid();
+            }
+        }
+        registeredOn = session;
+        LOG.info("Client " + clientId + " registered");
+    }
+
+    /**
+     * Registers this client and waits until the expected number of clients
+     * registered
+     * @return the start time agreed by all clients, in milliseconds, as
+     * ZooKeeper created the start znode
+     * @throws IOException if the barrier is not reached in time
+     */
+    public long awaitStart(int expectedClients, long timeoutMs)
+            throws KeeperException, InterruptedException, IOException {
+        LOG.info("Client " + clientId + " waiting for " + expectedClients
+                + " clients");
+        String startPath = runPath + "/start";
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (changed) {
+            while (true) {
+                ZooKeeper session = zooConn;
+                try {
+                    register();
+                    Stat start = new ExistsTransaction(session, startPath,
+                            changeWatcher).invoke();
+                    if (start != null && start.getCzxid() > registeredZxid) {
+                        LOG.info("Barrier open, starting");
+                        return start.getCtime();
+                    }
+                    if (start != null) {
+                        LOG.warn("Deleting the start of an earlier run " + runPath);
+                        deleteIfPresent(startPath, start.getVersion());
+                        continue;
+                    }
+                    List<String> clients = new GetChildrenTransaction(session,
+                            runPath + "/clients", changeWatcher).invoke();
+                    if (clients.size() >= expectedClients) {
+                        // The last one to arrive opens the barrier
+                        createIfMissing(startPath, new byte[0]);
+                        continue;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new IOException("Only " + clients.size() + " of "
+                                + expectedClients + " clients registered");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(changed, remaining);
+                } catch (KeeperException.SessionExpiredException e) {
+                    reconnect(session);
+                }
+            }
+        }
+    }
+
+    private void deleteIfPresent(String path, int version)
+            throws KeeperException, InterruptedException {
+        try {
+            new DeleteTransaction(zooConn, path, version).invoke();
+        } catch (KeeperException.NoNodeException e) {
+            // Deleted by another client, or by us before a connection loss
+        } catch (KeeperException.BadVersionException e) {
+            // Replaced meanwhile, looked at again by the caller
+        }
+    }
+
+    /**
+     * Removes what an earlier run with the same id left: the start and the
+     * results. To be called by the coordinator before the clients start.
+     */
+    public void reset() throws KeeperException, InterruptedException {
+        deleteIfPresent(runPath + "/start", -1);
+        String resultsPath = runPath + "/results";
+        for (String client : new GetChildrenTransaction(zooConn, resultsPath,
+                null).invoke()) {
+            deleteIfPresent(resultsPath + "/" + client, -1);
+        }
+    }
+
+    /**
+     * Publishes the summary of this client, replacing the one of an earlier
+     * run
+     */
+    public void publishResult(Map<String, Long> summary)
+            throws KeeperException, InterruptedException, IOException {
+        String path = runPath + "/results/" + clientId;
+        byte[] data = format(summary).getBytes(UTF8);
+        while (true) {
+            ZooKeeper session = zooConn;
+            try {
+                try {
+                    new CreateTransaction(session, path, data,
+                            CreateMode.PERSISTENT).invoke();
+                } catch (KeeperException.NodeExistsException e) {
+                    new SetDataTransaction(session, path, data).invoke();
+                }
+                return;
+            } catch (KeeperException.SessionExpiredException e) {
+                reconnect(session);
+            }
+        }
+    }
+
+    /**
+     * Waits for the summary of every client
+     * @return the summaries, by client, with <code>zkStartMs</code> and
+     * <code>zkEndMs</code> added, the start of the run and when the summary
+     * was published as ZooKeeper saw them
+     * @throws IOException if they do not arrive in time
+     */
+    public Map<String, Map<String, Long>> awaitResults(int expectedClients,
+            long timeoutMs) throws KeeperException, InterruptedException,
+            IOException {
+        String resultsPath = runPath + "/results";
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        List<String> clients;
+        synchronized (changed) {
+            while (true) {
+                ZooKeeper session = zooConn;
+                try {
+                    clients = new GetChildrenTransaction(session, resultsPath,
+                            changeWatcher).invoke();
+                    if (clients.size() >= expectedClients) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new IOException("Only " + clients.size() + " of "
+                                + expectedClients + " results arrived");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(changed, remaining);
+                } catch (KeeperException.SessionExpiredException e) {
+                    reconnect(session);
+                }
+            }
+        }
+
+        Stat start = new ExistsTransaction(zooConn, runPath + "/start", null).invoke();
+        Map<String, Map<String, Long>> results = new LinkedHashMap<String, Map<String, Long>>();
+        for (String client : clients) {
+            Stat stat = new Stat();
+            byte[] data = new GetDataTransaction(zooConn, resultsPath + "/"
+                    + client, null, stat).invoke();
+            Map<String, Long> summary = parse(new String(data, UTF8));
+            if (start != null) {
+                summary.put("zkStartMs", start.getCtime());
+            }
+            summary.put("zkEndMs", stat.getMtime());
+            results.put(client, summary);
+        }
+        return results;
+    }
+
+    /**
+     * Adds up the summaries: total bytes over the window between the first
+     * start and the last end, and the files the clients gave up on. The times from ZooKeeper are used when there
+     * are, those of the clients otherwise.
+     */
+    public static String aggregate(Map<String, Map<String, Long>> results) {
+        long written = 0;
+        long read = 0;
+        long failures = 0;
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (Map<String, Long> summary : results.values()) {
+            written += value(summary, "bytesWritten");
+            read += value(summary, "bytesRead");
+            failures += value(summary, "failures");
+            start = Math.min(start, summary.containsKey("zkStartMs")
+                    ? value(summary, "zkStartMs") : value(summary, "startMs"));
+            end = Math.max(end, summary.containsKey("zkEndMs")
+                    ? value(summary, "zkEndMs") : value(summary, "endMs"));
+        }
+        double seconds = Math.max(end - start, 1) / 1000.0;
+        return String.format(Locale.ENGLISH,
+                "clients=%d, window=%.3f, bytesWritten=%d, bytesRead=%d, writeThroughput=%f, readThroughput=%f, failures=%d",
+                results.size(), seconds, written, read,
+                written / 1048576.0 / seconds, read / 1048576.0 / seconds, failures);
+    }
+
+    private static long value(Map<String, Long> summary, String key) {
+        Long value = summary.get(key);
+        return value == null ? 0 : value;
+    }
+
+    static String format(Map<String, Long> summary) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> entry : summary.entrySet()) {
+            if (text.length() > 0) {
+                text.append(',');
+            }
+            text.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return text.toString();
+    }
+
+    static Map<String, Long> parse(String text) {
+        Map<String, Long> summary = new LinkedHashMap<String, Long>();
+        for (String pair : text.split(",")) {
+            String[] keyValue = pair.split("=");
+            if (keyValue.length == 2) {
+                summary.put(keyValue[0], Long.parseLong(keyValue[1]));
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * @return the current session, for the tests to expire it
+     */
+    ZooKeeper getZooKeeper() {
+        return zooConn;
+    }
+
+    public void shutdown() throws InterruptedException {
+        zooConn.close();
+    }
+
+    /**
+     * Coordinator: waits for the results of a run and prints the aggregate.
+     * Usage: <code>RunCoordinator &lt;zookeeper&gt; &lt;run&gt; &lt;clients&gt; [timeout sec]</code>
+     */
+    public static void main(String... args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: RunCoordinator <zookeeper> <run> <clients> [timeout sec]");
+            System.exit(1);
+        }
+        long timeoutMs = TimeUnit.SECONDS.toMillis(args.length > 3 ? Long
+                .parseLong(args[3]) : 3600);
+        RunCoordinator coordinator = new RunCoordinator(args[0], args[1],
+                "coordinator");
+        try {
+            coordinator.reset();
+            Map<String, Map<String, Long>> results = coordinator.awaitResults(
+                    Integer.parseInt(args[2]), timeoutMs);
+            for (Map.Entry<String, Map<String, Long>> entry : results.entrySet()) {
+                System.out.println(String.format("%d run: client=%s, %s",
+                        System.currentTimeMillis(), entry.getKey(),
+                        format(entry.getValue())));
+            }
+            System.out.println(String.format("%d run: event=aggregate, %s",
+                    System.currentTimeMillis(), aggregate(results)));
+        } finally {
+            coordinator.shutdown();
+        }
+    }
+}
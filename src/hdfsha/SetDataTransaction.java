@@ -0,0 +1,40 @@
+package hdfsha;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+
+/**
+ * Resilient {@link ZooKeeper#setData}, whatever the version of the znode.
+ *
+ * Setting the same data again after a connection loss does no harm.
+ */
+public final class SetDataTransaction extends Transaction<Stat> {
+
+    /** The new data of the node*/
+    private byte[] data;
+
+    /**
+     * @param conn ZooKeeper connection
+     * @param nodePath the path of the znode to be changed
+     * @param data the new data of the znode
+     */
+    public SetDataTransaction(ZooKeeper conn,String nodePath, byte[] data){
+        super(conn,nodePath);
+        this.data = data;
+    }
+
+
+
+    @Override
+    public String toString() {
+        return "SetDataTransaction [result=" + result + ", path=" + path
+                + ", zooConn=" + zooConn + "]";
+    }
+
+    @Override
+    protected void trasactionBody() throws KeeperException, InterruptedException{
+        result = zooConn.setData(path, data, -1);
+    }
+}
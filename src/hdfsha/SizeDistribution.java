@@ -0,0 +1,92 @@
+package hdfsha;
+
+import java.util.Random;
+
+/**
+ * Distribution of file sizes in bytes, parsed from the scenario files:
+ * <ul>
+ * <li><code>fixed:SIZE</code></li>
+ * <li><code>uniform:MIN:MAX</code></li>
+ * <li><code>exp:MEAN</code>, exponential, many small files and a few big ones</li>
+ * <li><code>blocks:N</code>, N whole HDFS blocks as {@link ClientTest} does</li>
+ * </ul>
+ * Sizes accept the suffixes k, m and g.
+ */
+public abstract class SizeDistribution {
+
+    /**
+     * @return the next size in bytes
+     */
+    public abstract long next(Random random);
+
+    /**
+     * @return the mean size in bytes
+     */
+    public abstract double mean();
+
+    public static SizeDistribution parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        String kind = parts[0].toLowerCase();
+        if (kind.equals("fixed") && parts.length == 2) {
+            return uniform(parseSize(parts[1]), parseSize(parts[1]));
+        } else if (kind.equals("uniform") && parts.length == 3) {
+            return uniform(parseSize(parts[1]), parseSize(parts[2]));
+        } else if (kind.equals("blocks") && parts.length == 2) {
+            long size = Long.parseLong(parts[1]) * DeadBeefInputStream.HDFS_BLOCK;
+            return uniform(size, size);
+        } else if (kind.equals("exp") && parts.length == 2) {
+            final double mean = parseSize(parts[1]);
+            return new SizeDistribution() {
+
+                @Override
+                public long next(Random random) {
+                    return (long) (-mean * Math.log(1 - random.nextDouble()));
+                }
+
+                @Override
+                public double mean() {
+                    return mean;
+                }
+            };
+        }
+        throw new IllegalArgumentException("Bad size distribution " + spec);
+    }
+
+    private static SizeDistribution uniform(final long min, final long max) {
+        if (max < min) {
+            throw new IllegalArgumentException("Bad size range " + min + "-" + max);
+        }
+        return new SizeDistribution() {
+
+            @Override
+            public long next(Random random) {
+                return min == max ? min
+                        : min + (long) (random.nextDouble() * (max - min + 1));
+            }
+
+            @Override
+            public double mean() {
+                return (min + max) / 2.0;
+            }
+        };
+    }
+
+    /**
+     * @param size a number with an optional k, m or g suffix
+     */
+    public static long parseSize(String size) {
+        String value = size.trim().toLowerCase();
+        long unit = 1;
+        if (value.endsWith("k")) {
+            unit = 1024L;
+        } else if (value.endsWith("m")) {
+            unit = 1024L * 1024;
+        } else if (value.endsWith("g")) {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+}
@@ -0,0 +1,450 @@
+package hdfsha;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.StorageStatistics;
+import org.apache.hadoop.hdfs.DFSOpsCountStatistics;
+import org.apache.log4j.Logger;
+
+/**
+ * Uploads a tree of small files to HDFS packed into a few large containers,
+ * instead of creating one HDFS file, and so one namenode object and a few
+ * round trips, for each of them.
+ *
+ * A container holds the members back to back, then the index (name, offset
+ * and length of every member), then a trailer with the offset of the index
+ * and a magic number. Members are read with {@link PackedFileReader}.
+ * Containers are cut at <code>pack.containerMB</code> (256 by default).
+ *
+ * The main compares the packed and the unpacked upload of the same tree,
+ * and then random reads of <code>pack.sampleReads</code> members (1000 by
+ * default), reporting files per second and the file system calls made to
+ * the HDFS client, per kind. Those are not namenode RPCs: a create also
+ * costs an addBlock and a complete, and block locations fetched while
+ * reading are not counted, but they tell how much namespace work each mode
+ * asks for. Both modes read through the {@link FailoverHandler}.
+ */
+public class SmallFilePacker {
+
+    private static final Logger LOG = Logger.getLogger(SmallFilePacker.class);
+
+    static final int MAGIC = 0x5041434b; // "PACK"
+    static final int TRAILER_SIZE = 8 + 4;
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final FailoverHandler failover;
+    private final Configuration conf;
+    private final long containerSize;
+    private final Map<String, FileSystem> fileSystems = new HashMap<String, FileSystem>();
+
+    public SmallFilePacker(NamenodeLookup lookup, long containerSize) {
+        this.failover = new FailoverHandler(lookup);
+        this.conf = new Configuration();
+        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+        this.containerSize = containerSize;
+    }
+
+    private synchronized FileSystem fileSystem(String namenodeAddress)
+            throws IOException {
+        FileSystem fs = fileSystems.get(namenodeAddress);
+        if (fs == null) {
+            fs = FileSystem.get(URI.create("hdfs://" + namenodeAddress + "/"), conf);
+            fileSystems.put(namenodeAddress, fs);
+        }
+        return fs;
+    }
+
+    static void scan(File dir, String prefix, Map<String, File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String relative = prefix + child.getName();
+            if (child.isDirectory()) {
+                scan(child, relative + "/", files);
+            } else if (child.isFile()) {
+                files.put(relative, child);
+            }
+        }
+    }
+
+    /**
+     * Copies a local file to the stream, stopping if the namenode changes
+     * @return the bytes copied
+     */
+    private long copy(File file, OutputStream out, int epochBefore) throws IOException {
+        ByteBuffer buffer = BufferPool.get().acquire(false, COPY_BUFFER);
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = buffer.array();
+            long total = 0;
+            int read;
+            while ((read = in.read(bytes, 0, COPY_BUFFER)) != -1) {
+                out.write(bytes, 0, read);
+                Metrics.get().bytesWritten(read);
+                total += read;
+                failover.checkFailover(epochBefore);
+            }
+            return total;
+        } finally {
+            in.close();
+            BufferPool.get().release(buffer);
+        }
+    }
+
+    //========================================================================
+    // Packed
+    //========================================================================
+
+    /**
+     * Packs the files into containers named <code>pack-NNNNN</code>
+     * @return the containers written
+     */
+    public List<Path> pack(Map<String, File> files, Path hdfsDir) throws IOException,
+            InterruptedException {
+        List<Path> containers = new ArrayList<Path>();
+        List<Map.Entry<String, File>> batch = new ArrayList<Map.Entry<String, File>>();
+        long batchSize = 0;
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            long length = file.getValue().length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException(file.getKey() + " is too big to be packed");
+            }
+            if (!batch.isEmpty() && batchSize + length > containerSize) {
+                containers.add(writeContainer(batch, hdfsDir, containers.size()));
+                batch.clear();
+                batchSize = 0;
+            }
+            batch.add(file);
+            batchSize += length;
+        }
+        if (!batch.isEmpty()) {
+            containers.add(writeContainer(batch, hdfsDir, containers.size()));
+        }
+        return containers;
+    }
+
+    private Path writeContainer(final List<Map.Entry<String, File>> members,
+            Path hdfsDir, int number) throws IOException, InterruptedException {
+        final Path container = new Path(hdfsDir, String.format(Locale.ENGLISH,
+                "pack-%05d", number));
+        // Written again from the start if a failover interrupts it
+        return failover.execute("pack " + container, new FailoverHandler.Attempt<Path>() {
+
+            @Override
+            public Path run(String namenodeAddress) throws IOException {
+                int epochBefore = failover.getEpoch();
+                OutputStream hdfsOut = fileSystem(namenodeAddress).create(container, true);
+                InFlightTransfers.Transfer transfer = failover.getTransfers().register(hdfsOut);
+                DataOutputStream out = new DataOutputStream(hdfsOut);
+                try {
+                    // Not DataOutputStream.size(), which overflows at 2 GB
+                    long position = 0;
+                    long[] offsets = new long[members.size()];
+                    int[] lengths = new int[members.size()];
+                    for (int i = 0; i < members.size(); i++) {
+                        offsets[i] = position;
+                        long length = copy(members.get(i).getValue(), out, epochBefore);
+                        if (length > Integer.MAX_VALUE) {
+                            throw new IOException(members.get(i).getKey() + " grew too big to be packed");
+                        }
+                        lengths[i] = (int) length;
+                        position += length;
+                    }
+                    long indexOffset = position;
+                    out.writeInt(members.size());
+                    for (int i = 0; i < members.size(); i++) {
+                        out.writeUTF(members.get(i).getKey());
+                        out.writeLong(offsets[i]);
+                        out.writeInt(lengths[i]);
+                    }
+                    out.writeLong(indexOffset);
+                    out.writeInt(MAGIC);
+                    out.close();
+                } catch (IOException e) {
+                    if (transfer.isCancelled()) {
+                        throw new NameNodeChangedException();
+                    }
+                    throw e;
+                } finally {
+                    failover.getTransfers().unregister(transfer);
+                }
+                LOG.info("Packed " + members.size() + " files into " + container);
+                return container;
+            }
+        });
+    }
+
+    //========================================================================
+    // Unpacked
+    //========================================================================
+
+    /**
+     * Uploads every file as an HDFS file of its own, for comparison
+     */
+    public void upload(Map<String, File> files, Path hdfsDir) throws IOException,
+            InterruptedException {
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            final File local = file.getValue();
+            final Path path = new Path(hdfsDir, file.getKey());
+            failover.execute("upload " + path, new FailoverHandler.Attempt<Boolean>() {
+
+                @Override
+                public Boolean run(String namenodeAddress) throws IOException {
+                    int epochBefore = failover.getEpoch();
+                    OutputStream out = fileSystem(namenodeAddress).create(path, true);
+                    InFlightTransfers.Transfer transfer = failover.getTransfers().register(out);
+                    try {
+                        copy(local, out, epochBefore);
+                        out.close();
+                    } catch (IOException e) {
+                        if (transfer.isCancelled()) {
+                            throw new NameNodeChangedException();
+                        }
+                        throw e;
+                    } finally {
+                        failover.getTransfers().unregister(transfer);
+                    }
+                    return true;
+                }
+            });
+        }
+    }
+
+    //========================================================================
+    // Reads
+    //========================================================================
+
+    private long readUnpacked(final Path path) throws IOException, InterruptedException {
+        return failover.execute("read_file " + path, new FailoverHandler.Attempt<Long>() {
+
+            @Override
+            public Long run(String namenodeAddress) throws IOException {
+                FSDataInputStream in = fileSystem(namenodeAddress).open(path);
+                ByteBuffer buffer = BufferPool.get().acquire(false, COPY_BUFFER);
+                try {
+                    long total = 0;
+                    int read;
+                    while ((read = in.read(buffer.array(), 0, COPY_BUFFER)) != -1) {
+                        Metrics.get().bytesRead(read);
+                        total += read;
+                    }
+                    return total;
+                } finally {
+                    BufferPool.get().release(buffer);
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads members of the containers, each read retried across failovers
+     * like the unpacked ones. A container whose read failed is opened again
+     * on the next attempt, from the namenode of that attempt.
+     */
+    private final class PackedReads implements Closeable {
+
+        private final Map<String, Path> containerOf = new HashMap<String, Path>();
+        private final Map<Path, PackedFileReader> readers = new HashMap<Path, PackedFileReader>();
+
+        /**
+         * Opens every container, reading its index
+         */
+        private PackedReads(List<Path> containers) throws IOException,
+                InterruptedException {
+            try {
+                for (Path container : containers) {
+                    PackedFileReader reader = open(container);
+                    for (String member : reader.members()) {
+                        containerOf.put(member, container);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private PackedFileReader open(final Path container) throws IOException,
+                InterruptedException {
+            return failover.execute("open " + container,
+                    new FailoverHandler.Attempt<PackedFileReader>() {
+
+                @Override
+                public PackedFileReader run(String namenodeAddress) throws IOException {
+                    return reader(container, namenodeAddress);
+                }
+            });
+        }
+
+        private PackedFileReader reader(Path container, String namenodeAddress)
+                throws IOException {
+            PackedFileReader reader = readers.get(container);
+            if (reader == null) {
+                reader = new PackedFileReader(fileSystem(namenodeAddress), container);
+                readers.put(container, reader);
+            }
+            return reader;
+        }
+
+        private byte[] read(final String name) throws IOException, InterruptedException {
+            final Path container = containerOf.get(name);
+            if (container == null) {
+                throw new FileNotFoundException(name + " is in no container");
+            }
+            return failover.execute("read_file " + name, new FailoverHandler.Attempt<byte[]>() {
+
+                @Override
+                public byte[] run(String namenodeAddress) throws IOException {
+                    PackedFileReader reader = reader(container, namenodeAddress);
+                    try {
+                        byte[] data = reader.read(name);
+                        Metrics.get().bytesRead(data.length);
+                        return data;
+                    } catch (IOException e) {
+                        readers.remove(container);
+                        closeQuietly(reader);
+                        throw e;
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            for (PackedFileReader reader : readers.values()) {
+                closeQuietly(reader);
+            }
+            readers.clear();
+        }
+    }
+
+    private static void closeQuietly(PackedFileReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            LOG.debug("Error closing a container", e);
+        }
+    }
+
+    //========================================================================
+    // Report
+    //========================================================================
+
+    private static void resetStatistics() {
+        FileSystem.getGlobalStorageStatistics().reset();
+    }
+
+    /**
+     * Prints files per second and the calls made to the HDFS client since
+     * the last reset, in total and per kind, e.g. <code>clientOps.create</code>
+     */
+    private static void report(String mode, String event, int files, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        StringBuilder perKind = new StringBuilder();
+        long total = 0;
+        StorageStatistics statistics = FileSystem.getGlobalStorageStatistics()
+                .get(DFSOpsCountStatistics.NAME);
+        if (statistics != null) {
+            Iterator<StorageStatistics.LongStatistic> it = statistics.getLongStatistics();
+            while (it.hasNext()) {
+                StorageStatistics.LongStatistic statistic = it.next();
+                if (statistic.getValue() > 0) {
+                    String name = statistic.getName();
+                    if (name.startsWith("op_")) {
+                        name = name.substring("op_".length());
+                    }
+                    perKind.append(", clientOps.").append(name)
+                            .append('=').append(statistic.getValue());
+                    total += statistic.getValue();
+                }
+            }
+        }
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d pack: mode=%s, event=%s, files=%d, seconds=%f, filesPerSec=%f, clientOps=%d%s",
+                System.currentTimeMillis(), mode, event, files, seconds,
+                files / seconds, total, perKind));
+    }
+
+    public static void main(String... args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: SmallFilePacker <zookeeper> <localDir> <hdfsDir> <packed|unpacked|both>");
+            System.exit(1);
+        }
+        Map<String, File> files = new TreeMap<String, File>();
+        scan(new File(args[1]), "", files);
+        Path hdfsDir = new Path(args[2]);
+        String mode = args[3];
+        List<String> names = new ArrayList<String>(files.keySet());
+        int sampleReads = names.isEmpty() ? 0 : Integer.getInteger("pack.sampleReads", 1000);
+        Random random = new Random(0);
+
+        Metrics.get().publish();
+        NamenodeLookup lookup = new NamenodeLookupZooKeeper(args[0]);
+        SmallFilePacker packer = new SmallFilePacker(lookup,
+                Long.getLong("pack.containerMB", 256) * 1024 * 1024);
+        try {
+            if (mode.equals("unpacked") || mode.equals("both")) {
+                Path dir = new Path(hdfsDir, "unpacked");
+                resetStatistics();
+                long start = System.nanoTime();
+                packer.upload(files, dir);
+                report("unpacked", "write", files.size(), start);
+
+                resetStatistics();
+                start = System.nanoTime();
+                for (int i = 0; i < sampleReads; i++) {
+                    packer.readUnpacked(new Path(dir, names.get(random.nextInt(names.size()))));
+                }
+                report("unpacked", "read", sampleReads, start);
+            }
+            if (mode.equals("packed") || mode.equals("both")) {
+                Path dir = new Path(hdfsDir, "packed");
+                resetStatistics();
+                long start = System.nanoTime();
+                List<Path> containers = packer.pack(files, dir);
+                report("packed", "write", files.size(), start);
+
+                resetStatistics();
+                start = System.nanoTime();
+                PackedReads reads = packer.new PackedReads(containers);
+                try {
+                    for (int i = 0; i < sampleReads; i++) {
+                        reads.read(names.get(random.nextInt(names.size())));
+                    }
+                } finally {
+                    reads.close();
+                }
+                report("packed", "read", sampleReads, start);
+            }
+        } finally {
+            for (FileSystem fs : packer.fileSystems.values()) {
+                fs.close();
+            }
+            lookup.shutdown();
+        }
+    }
+}
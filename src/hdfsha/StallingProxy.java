@@ -0,0 +1,136 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * TCP forwarder on the loopback interface that can stop forwarding for a
+ * while, to make a namenode look stalled to its clients without touching the
+ * namenode itself.
+ */
+public class StallingProxy {
+
+    private static final Logger LOG = Logger.getLogger(StallingProxy.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long STALL_CHECK_MS = 10;
+
+    private final InetSocketAddress target;
+    private final ServerSocket server;
+    private final Set<Socket> sockets = Collections
+            .newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private volatile long stallUntil = 0;
+    private volatile boolean running = true;
+
+    /**
+     * Starts forwarding from an ephemeral port to the target
+     */
+    public StallingProxy(InetSocketAddress target) throws IOException {
+        this.target = target;
+        this.server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Proxy-" + target);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the address clients must connect to, as host:port
+     */
+    public String getAddress() {
+        return "127.0.0.1:" + server.getLocalPort();
+    }
+
+    /**
+     * Stops forwarding data in both directions for the given time.
+     * Connections stay open, as with a namenode stuck in a long GC pause
+     */
+    public void stall(long durationMs) {
+        LOG.info("Stalling " + target + " for " + durationMs + " ms");
+        stallUntil = System.currentTimeMillis() + durationMs;
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket client = server.accept();
+                Socket upstream = new Socket(target.getAddress(), target.getPort());
+                sockets.add(client);
+                sockets.add(upstream);
+                pump(client, upstream);
+                pump(upstream, client);
+            } catch (IOException e) {
+                if (running) {
+                    LOG.warn("Proxy to " + target + " failed to connect", e);
+                }
+            }
+        }
+    }
+
+    private void pump(final Socket from, final Socket to) {
+        Thread pumper = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        while (System.currentTimeMillis() < stallUntil) {
+                            Thread.sleep(STALL_CHECK_MS);
+                        }
+                        out.write(buffer, 0, read);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // Connection closed
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    close(from);
+                    close(to);
+                }
+            }
+        }, "Pump-" + from.getPort() + "-" + to.getPort());
+        pumper.setDaemon(true);
+        pumper.start();
+    }
+
+    private void close(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        for (Socket socket : sockets) {
+            close(socket);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+/**
+ * Lists directories through the remote iterator, so entries are fetched from
+ * the namenode in pages and processed one by one instead of materialising the
+ * whole directory in a <code>FileStatus[]</code>.
+ *
+ * When recursive, subdirectories are listed by a bounded pool of threads.
+ * At most {@link #QUEUED_PER_THREAD} directories per thread wait to be
+ * listed; past that, the thread that found a directory lists it itself,
+ * depth first, so memory stays bounded however wide the tree is.
+ */
+public class StreamingLister {
+
+    public static final int QUEUED_PER_THREAD = 256;
+
+    /**
+     * Called for every entry found, from any of the listing threads
+     */
+    public interface Visitor {
+        void visit(FileStatus status) throws IOException;
+    }
+
+    private final FileSystem fs;
+    private final int parallelism;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong directories = new AtomicLong();
+    private long elapsedNanos;
+
+    /**
+     * @param parallelism how many directories may be listed at once
+     */
+    public StreamingLister(FileSystem fs, int parallelism) {
+        this.fs = fs;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Lists the directory, and its subdirectories if recursive
+     * @param visitor may be null if only the counts matter
+     */
+    public void list(Path dir, boolean recursive, Visitor visitor)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (!recursive) {
+            listOne(dir, visitor, null);
+        } else {
+            listRecursive(dir, visitor);
+        }
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    private void listRecursive(Path dir, Visitor visitor) throws IOException,
+            InterruptedException {
+        Traversal traversal = new Traversal(visitor);
+        try {
+            traversal.submit(dir);
+            traversal.done.await();
+        } finally {
+            traversal.pool.shutdownNow();
+        }
+        Throwable failure = traversal.failure.get();
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+
+    private void listOne(Path dir, Visitor visitor, Traversal traversal)
+            throws IOException {
+        long start = System.nanoTime();
+        RemoteIterator<FileStatus> entries = fs.listStatusIterator(dir);
+        while (entries.hasNext()) {
+            FileStatus status = entries.next();
+            if (status.isDirectory()) {
+                directories.incrementAndGet();
+                if (traversal != null) {
+                    traversal.submit(status.getPath());
+                }
+            } else {
+                files.incrementAndGet();
+            }
+            if (visitor != null) {
+                visitor.visit(status);
+            }
+        }
+        // Visitors included, as the consumer of the stream sees it
+        Metrics.get().operation("list", System.nanoTime() - start);
+    }
+
+    /**
+     * A recursive listing in progress: the directories still to be listed
+     * are queued on the pool, or listed by the caller when the queue is full,
+     * and it is done when none is pending. The first failure, the visitor's
+     * included, stops it.
+     */
+    private final class Traversal {
+
+        private final Visitor visitor;
+        private final ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism,
+                parallelism, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(parallelism * QUEUED_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        private final AtomicInteger pending = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        private Traversal(Visitor visitor) {
+            this.visitor = visitor;
+        }
+
+        private void submit(final Path directory) {
+            pending.incrementAndGet();
+            pool.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        if (failure.get() == null) {
+                            listOne(directory, visitor, Traversal.this);
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } catch (Error e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        if (pending.decrementAndGet() == 0) {
+                            done.countDown();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getDirectories() {
+        return directories.get();
+    }
+
+    public double getEntriesPerSecond() {
+        double seconds = elapsedNanos / 1e9;
+        return seconds == 0 ? 0 : (files.get() + directories.get()) / seconds;
+    }
+
+    /**
+     * @return the counts and rate in the key=value format of the reports
+     */
+    public String report() {
+        return String.format(Locale.ENGLISH,
+                "files=%d, directories=%d, listTime=%.3f, entriesPerSec=%.1f",
+                getFiles(), getDirectories(), elapsedNanos / 1e9,
+                getEntriesPerSecond());
+    }
+
+    /**
+     * Usage: <code>StreamingLister &lt;hdfs uri&gt; &lt;parallelism&gt; [recursive]</code>
+     */
+    public static void main(String... args) throws IOException,
+            InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: StreamingLister <hdfs uri> <parallelism> [recursive]");
+            System.exit(1);
+        }
+        Metrics.get().publish();
+        FileSystem fs = FileSystem.get(URI.create(args[0]), new Configuration());
+        try {
+            StreamingLister lister = new StreamingLister(fs, Integer.parseInt(args[1]));
+            lister.list(new Path(args[0]), args.length > 2
+                    && args[2].equalsIgnoreCase("recursive"), null);
+            System.out.println(String.format(Locale.ENGLISH, "%d listing: %s",
+                    System.currentTimeMillis(), lister.report()));
+        } finally {
+            fs.close();
+        }
+    }
+}
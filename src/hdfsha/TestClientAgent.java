@@ -0,0 +1,117 @@
+package hdfsha;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Runs every kind of job through a {@link ClientAgent} over its socket, and
+ * checks that jobs without the token, or with a token file others may read,
+ * are refused. Usage: TestClientAgent &lt;namenode host:port&gt;
+ */
+public class TestClientAgent {
+
+	private static final Logger LOG = Logger.getLogger(TestClientAgent.class);
+
+	private static final String DIRECTORY = "/test-client-agent";
+
+	public static void main(String[] args) throws Exception {
+		File temp = Files.createTempDirectory("test-client-agent").toFile();
+		File tokenFile = new File(temp, "token");
+		System.setProperty("agent.tokenFile", tokenFile.getPath());
+
+		File local = new File(temp, "local");
+		OutputStream out = new FileOutputStream(local);
+		try {
+			byte[] data = new byte[1024 * 1024];
+			new DeadBeefInputStream(1).read(data);
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		File scenario = new File(temp, "scenario.properties");
+		Properties properties = new Properties();
+		properties.setProperty("root", DIRECTORY + "/workload");
+		properties.setProperty("threads", "2");
+		properties.setProperty("size", "fixed:64k");
+		properties.setProperty("phase.main.duration", "2");
+		properties.setProperty("phase.main.mix", "create:2,read:2,stat:1,list:1");
+		properties.setProperty("cleanup", "true");
+		out = new FileOutputStream(scenario);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+
+		final ClientAgent agent = new ClientAgent(new NamenodeLookupStatic(args[0]));
+		final int port = agent.bind(0);
+		Thread server = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					agent.serve();
+				} catch (IOException e) {
+					LOG.error("Agent failed", e);
+				}
+			}
+		}, "Agent");
+		server.start();
+
+		try {
+			String file = DIRECTORY + "/file";
+			Metrics.Counter written = Metrics.get().counter("bytes_written_total", "Bytes written to HDFS");
+			Metrics.Counter read = Metrics.get().counter("bytes_read_total", "Bytes read from HDFS");
+			long writtenBefore = written.get();
+			check(ClientAgent.submit(port, new String[] { "copy", local.getPath(), file }), "copy");
+			if (written.get() - writtenBefore != local.length()) {
+				throw new AssertionError("Copy counted " + (written.get() - writtenBefore) + " bytes written");
+			}
+			check(ClientAgent.submit(port, new String[] { "stat", file }), "stat");
+			check(ClientAgent.submit(port, new String[] { "list", DIRECTORY }), "list");
+			long readBefore = read.get();
+			check(ClientAgent.submit(port, new String[] { "read", file }), "read");
+			if (read.get() - readBefore != local.length()) {
+				throw new AssertionError("Read counted " + (read.get() - readBefore) + " bytes read");
+			}
+			check(ClientAgent.submit(port, new String[] { "workload", scenario.getPath() }), "workload");
+			check(ClientAgent.submit(port, new String[] { "status" }), "status");
+			check(!ClientAgent.submit(port, new String[] { "read", "/missing" }), "read of a missing file");
+			check(!ClientAgent.submit(port, "not-the-token", new String[] { "status" }), "wrong token");
+
+			Files.setPosixFilePermissions(tokenFile.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+			try {
+				ClientAgent.readToken(tokenFile);
+				throw new AssertionError("Token file readable by others accepted");
+			} catch (IOException e) {
+				LOG.info("Refused: " + e.getMessage());
+			}
+			Files.setPosixFilePermissions(tokenFile.toPath(), PosixFilePermissions.fromString("rw-------"));
+
+			check(ClientAgent.submit(port, new String[] { "shutdown" }), "shutdown");
+			server.join();
+			LOG.info("ClientAgent OK");
+		} finally {
+			agent.close();
+			for (File f : temp.listFiles()) {
+				f.delete();
+			}
+			temp.delete();
+		}
+	}
+
+	private static void check(boolean ok, String job) {
+		if (!ok) {
+			throw new AssertionError("Job " + job + " did not end as expected");
+		}
+	}
+
+}
@@ -1,3 +1,5 @@
+package hdfsha;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
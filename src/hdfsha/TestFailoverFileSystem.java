@@ -0,0 +1,270 @@
+package hdfsha;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.ParentNotDirectoryException;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.MiniDFSNNTopology;
+import org.apache.log4j.Logger;
+
+
+/**
+ * Exercises {@link FailoverFileSystem} through the overloads inherited from
+ * FileSystem, which take the buffer size from the configuration: create,
+ * open, single byte reads and seeks. An error of the call itself must fail
+ * at once instead of waiting for a failover. Usage: TestFailoverFileSystem
+ * &lt;namenode host:port&gt; [directory]
+ *
+ * With <code>ha</code> instead of a namenode, it runs against a mini cluster
+ * with two namenodes and an in-process ZooKeeper, like
+ * {@link FailoverHarness}, and fails over during a read, a rename and a
+ * delete. The standby is made active before ZooKeeper is told, so each call
+ * first fails on the old active and must be replayed on the new one, the
+ * read from the position it had reached. Last, metadata reads routed to the
+ * standby, which refuses them, must be answered by the active at once.
+ * Needs the hadoop-hdfs test jar.
+ */
+public class TestFailoverFileSystem {
+
+	private static final Logger LOG = Logger.getLogger(TestFailoverFileSystem.class);
+
+	private static final int SIZE = 100000;
+	private static final String NAMENODE_ZOO_PATH = "/namenode";
+	private static final int BLOCK_SIZE = 1024 * 1024;
+	private static final int HA_SIZE = 4 * BLOCK_SIZE;
+	/** How long the new active stays unknown to the clients */
+	private static final long PUBLISH_DELAY_MS = 2000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("ha")) {
+			failovers();
+			return;
+		}
+		String directory = args.length > 1 ? args[1] : "/test-failover-file-system";
+		FailoverFileSystem fs = new FailoverFileSystem(new NamenodeLookupStatic(args[0]), new Configuration());
+		Path file = new Path(directory, "file");
+
+		try {
+			FSDataOutputStream out = fs.create(file);
+			try {
+				for (int i = 0; i < SIZE; i++) {
+					out.write(i);
+				}
+			} finally {
+				out.close();
+			}
+
+			FSDataInputStream in = fs.open(file);
+			try {
+				for (int i = 0; i < SIZE; i++) {
+					int data = in.read();
+					if (data != (i & 0xff)) {
+						throw new AssertionError("Read " + data + " at " + i + " instead of " + (i & 0xff));
+					}
+				}
+				if (in.read() != -1) {
+					throw new AssertionError("No end of file after " + SIZE + " bytes");
+				}
+				in.seek(SIZE / 2);
+				if (in.read() != ((SIZE / 2) & 0xff) || in.getPos() != SIZE / 2 + 1) {
+					throw new AssertionError("Bad read after seek to " + SIZE / 2);
+				}
+			} finally {
+				in.close();
+			}
+
+			if (fs.getFileStatus(file).getLen() != SIZE) {
+				throw new AssertionError("Length " + fs.getFileStatus(file).getLen() + " instead of " + SIZE);
+			}
+			long start = System.currentTimeMillis();
+			try {
+				fs.mkdirs(new Path(file, "directory"));
+				throw new AssertionError("Directory created under a file");
+			} catch (ParentNotDirectoryException e) {
+				if (System.currentTimeMillis() - start > 10000) {
+					throw new AssertionError("Waited " + (System.currentTimeMillis() - start) + " ms for " + e);
+				}
+			}
+			for (String line : fs.report()) {
+				LOG.info(line);
+			}
+			LOG.info("FailoverFileSystem OK");
+		} finally {
+			fs.delete(new Path(directory), true);
+			fs.close();
+		}
+	}
+
+	/**
+	 * The two namenodes, and which one is active
+	 */
+	private static final class HaCluster {
+		final LocalZooKeeperServer zookeeper;
+		final MiniDFSCluster cluster;
+		int active = 0;
+
+		HaCluster(File work) throws Exception {
+			zookeeper = new LocalZooKeeperServer(new File(work, "zookeeper"));
+			zookeeper.start();
+			Configuration conf = new Configuration();
+			conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, new File(work, "hdfs").getPath());
+			cluster = new MiniDFSCluster.Builder(conf)
+					.nnTopology(MiniDFSNNTopology.simpleHATopology())
+					.numDataNodes(1).build();
+			cluster.waitActive();
+			cluster.transitionToActive(active);
+			zookeeper.publish(NAMENODE_ZOO_PATH, address(active));
+		}
+
+		String address(int namenode) {
+			return "127.0.0.1:" + cluster.getNameNode(namenode).getNameNodeAddress().getPort();
+		}
+
+		/**
+		 * Makes the standby active at once, and tells ZooKeeper later
+		 */
+		void flip() throws IOException {
+			final int standby = 1 - active;
+			cluster.transitionToStandby(active);
+			cluster.transitionToActive(standby);
+			active = standby;
+			Thread publisher = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(PUBLISH_DELAY_MS);
+						zookeeper.publish(NAMENODE_ZOO_PATH, address(standby));
+					} catch (Exception e) {
+						LOG.error("Could not publish the new active", e);
+					}
+				}
+			}, "Publisher");
+			publisher.setDaemon(true);
+			publisher.start();
+		}
+
+		void shutdown() throws InterruptedException {
+			cluster.shutdown();
+			zookeeper.shutdown();
+		}
+	}
+
+	private static void failovers() throws Exception {
+		HaCluster ha = new HaCluster(new File(System.getProperty("java.io.tmpdir"), "test-failover-file-system"));
+		NamenodeLookup lookup = new NamenodeLookupZooKeeper(ha.zookeeper.getConnectString(), null);
+		Configuration conf = new Configuration();
+		// Locations of one block at a time, so reading on needs the namenode
+		conf.setLong("dfs.client.read.prefetch.size", BLOCK_SIZE);
+		FailoverFileSystem fs = new FailoverFileSystem(lookup, conf);
+		Path file = new Path("/failover/file");
+		try {
+			FSDataOutputStream out = fs.create(file, true, 4096, (short) 1, BLOCK_SIZE);
+			try {
+				for (int i = 0; i < HA_SIZE; i++) {
+					out.write(i);
+				}
+			} finally {
+				out.close();
+			}
+
+			// Read
+			FSDataInputStream in = fs.open(file);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				long position = 0;
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					for (int i = 0; i < read; i++) {
+						if (buffer[i] != (byte) (position + i)) {
+							throw new AssertionError("Read " + buffer[i] + " at " + (position + i));
+						}
+					}
+					position += read;
+					if (position == BLOCK_SIZE / 2) {
+						ha.flip();
+					}
+				}
+				check(position == HA_SIZE, "Read " + position + " bytes instead of " + HA_SIZE);
+			} finally {
+				in.close();
+			}
+			check(fs.getFailover().getEpoch() == 1, "Epoch " + fs.getFailover().getEpoch() + " after the read");
+			check(fs.getRetries(FailoverFileSystem.Op.READ) > 0, "Read not replayed");
+			check(fs.getRecovered(FailoverFileSystem.Op.READ) == 1,
+					"Read recovered " + fs.getRecovered(FailoverFileSystem.Op.READ) + " times");
+
+			// Rename
+			Path renamed = new Path("/failover/renamed");
+			ha.flip();
+			check(fs.rename(file, renamed), "Rename failed");
+			check(!fs.exists(file) && fs.getFileStatus(renamed).getLen() == HA_SIZE, "Not renamed");
+			check(fs.getRetries(FailoverFileSystem.Op.RENAME) > 0, "Rename not replayed");
+			check(fs.getRecovered(FailoverFileSystem.Op.RENAME) == 1, "Rename not recovered");
+
+			// Delete
+			ha.flip();
+			check(fs.delete(renamed, false), "Delete failed");
+			check(!fs.exists(renamed), "Not deleted");
+			check(fs.getRetries(FailoverFileSystem.Op.DELETE) > 0, "Delete not replayed");
+			check(fs.getRecovered(FailoverFileSystem.Op.DELETE) == 1, "Delete not recovered");
+			check(fs.getFailover().getEpoch() == 3, "Epoch " + fs.getFailover().getEpoch() + " at the end");
+
+			for (String line : fs.report()) {
+				LOG.info(line);
+			}
+			LOG.info("FailoverFileSystem over failovers OK");
+
+			routedReads(ha, conf);
+		} finally {
+			fs.close();
+			lookup.shutdown();
+			ha.shutdown();
+		}
+	}
+
+	private static void routedReads(HaCluster ha, Configuration conf) throws Exception {
+		System.setProperty("lookup.standbyReads", "true");
+		String standby = ha.address(1 - ha.active);
+		NamenodeLookupMulti lookup = new NamenodeLookupMulti(
+				new NamenodeLookupZooKeeper(ha.zookeeper.getConnectString(), null),
+				ha.address(0) + "," + ha.address(1));
+		FailoverFileSystem fs = new FailoverFileSystem(lookup, conf);
+		try {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!lookup.report().get(1 - ha.active).startsWith(String.format(Locale.ENGLISH,
+					"namenode=%s, role=STANDBY, reachable=true,", standby))) {
+				check(System.currentTimeMillis() < deadline, "Standby never probed: " + lookup.report());
+				Thread.sleep(100);
+			}
+			// Not a failover, nothing to wait for
+			long start = System.currentTimeMillis();
+			check(fs.getFileStatus(new Path("/")).isDirectory(), "Root is not a directory");
+			check(fs.listStatus(new Path("/")) != null, "No listing of the root");
+			check(System.currentTimeMillis() - start < 5000,
+					"Waited " + (System.currentTimeMillis() - start) + " ms for the active");
+			check(fs.getRetries(FailoverFileSystem.Op.STAT) == 0, "Stat replayed");
+			String line = lookup.report().get(1 - ha.active);
+			check(line.contains("reachable=false") && line.contains("routedReads=1"),
+					"Failed reads still routed: " + line);
+			LOG.info("FailoverFileSystem with reads routed to a standby OK");
+		} finally {
+			System.clearProperty("lookup.standbyReads");
+			fs.close();
+			lookup.shutdown();
+		}
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
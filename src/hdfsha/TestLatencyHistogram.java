@@ -0,0 +1,57 @@
+package hdfsha;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Checks that {@link LatencyHistogram} keeps percentiles within the error of
+ * a bucket over the whole range, failovers of seconds and minutes included.
+ */
+public class TestLatencyHistogram {
+
+	private static final Logger LOG = Logger.getLogger(TestLatencyHistogram.class);
+
+	/** Half the width of a bucket, relative to its values */
+	private static final double BUCKET_ERROR = 1.0 / 16;
+
+	public static void main(String... args) {
+		long[] values = { TimeUnit.MICROSECONDS.toNanos(250), TimeUnit.SECONDS.toNanos(1),
+				TimeUnit.SECONDS.toNanos(3), TimeUnit.SECONDS.toNanos(10),
+				TimeUnit.MINUTES.toNanos(10), TimeUnit.DAYS.toNanos(365) };
+		for (long value : values) {
+			LatencyHistogram histogram = new LatencyHistogram();
+			for (int i = 0; i < 100; i++) {
+				histogram.record(value);
+			}
+			checkClose(histogram.getPercentileNanos(50), value, "p50");
+			checkClose(histogram.getPercentileNanos(99.9), value, "p999");
+			check(histogram.getMaxNanos() == value, "max " + histogram.getMaxNanos() + " for " + value);
+		}
+
+		// Percentiles of a mix land on their own values
+		LatencyHistogram mixed = new LatencyHistogram();
+		for (int i = 0; i < 90; i++) {
+			mixed.record(TimeUnit.MILLISECONDS.toNanos(5));
+		}
+		for (int i = 0; i < 10; i++) {
+			mixed.record(TimeUnit.SECONDS.toNanos(30));
+		}
+		checkClose(mixed.getPercentileNanos(50), TimeUnit.MILLISECONDS.toNanos(5), "mixed p50");
+		checkClose(mixed.getPercentileNanos(99), TimeUnit.SECONDS.toNanos(30), "mixed p99");
+		LOG.info("LatencyHistogram OK");
+	}
+
+	private static void checkClose(long actual, long expected, String what) {
+		check(Math.abs(actual - expected) <= expected * BUCKET_ERROR,
+				what + " is " + actual + " for " + expected);
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -1,3 +1,5 @@
+package hdfsha;
+
 import org.apache.log4j.Logger;
 
 
@@ -0,0 +1,114 @@
+package hdfsha;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+
+/**
+ * Exercises {@link NamenodeLookupFederated} against an in-process ZooKeeper:
+ * the parsing of nameservice URIs, failovers and new nameservices, the
+ * reconnect pacing published and deleted, and a failover while the session
+ * of the lookup is expired.
+ */
+public class TestNamenodeLookupFederated {
+
+	private static final Logger LOG = Logger.getLogger(TestNamenodeLookupFederated.class);
+
+	private static final long TIMEOUT_MS = 30000;
+
+	public static void main(String[] args) throws Exception {
+		LocalZooKeeperServer zookeeper = new LocalZooKeeperServer(new File(
+				System.getProperty("java.io.tmpdir"), "test-namenode-lookup-federated"));
+		zookeeper.start();
+		zookeeper.publish("/nameservices/ns1", "nn1:8020");
+		zookeeper.publish("/nameservices/ns2", "nn2:8020");
+
+		check(NamenodeLookupFederated.parse("hdfs://nn1:8020/dir/file") == null, "hdfs URI taken for a nameservice");
+		check(NamenodeLookupFederated.parse("file:///tmp/file") == null, "file URI taken for a nameservice");
+		String[] parsed = NamenodeLookupFederated.parse("ns1://dir/file");
+		check(parsed != null && parsed[0].equals("ns1") && parsed[1].equals("/dir/file"), "ns1://dir/file not parsed");
+
+		final BlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+		NamenodeLookupFederated lookup = new NamenodeLookupFederated(zookeeper.getConnectString(), "ns1");
+		lookup.setListener(new NamenodeChangedListener() {
+
+			@Override
+			public void namenodeChanged(String newAddress) {
+				changes.add(newAddress);
+			}
+		});
+		try {
+			check("nn1:8020".equals(lookup.getNamenodeAddress()), "Default nameservice at " + lookup.getNamenodeAddress());
+			check("nn2:8020".equals(lookup.getNamenodeAddress("ns2")), "ns2 at " + lookup.getNamenodeAddress("ns2"));
+			check("hdfs://nn2:8020/dir".equals(lookup.resolve("ns2://dir")), "ns2://dir resolved to " + lookup.resolve("ns2://dir"));
+			check("hdfs://other/dir".equals(lookup.resolve("hdfs://other/dir")), "hdfs URI resolved");
+
+			zookeeper.publish("/nameservices/ns1", "nn1b:8020");
+			check("nn1b:8020".equals(changes.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS)), "Failover not notified");
+
+			zookeeper.publish("/nameservices/ns3", "nn3:8020");
+			long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+			while (lookup.getNamenodeAddress("ns3") == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			check("nn3:8020".equals(lookup.getNamenodeAddress("ns3")), "New nameservice not seen");
+
+			check(lookup.getPacingConfig() == null, "Pacing " + lookup.getPacingConfig() + " before it was published");
+			zookeeper.publish(PublishedPacing.PACING_ZOO_PATH, "fleetSize=10,rate=5");
+			awaitPacing(lookup, "fleetSize=10,rate=5");
+			ReconnectPacer pacer = new ReconnectPacer(lookup, 100);
+			check(pacer.getWindowMs() == 2000, "Window of " + pacer.getWindowMs() + " ms for the published pacing");
+			zookeeper.getClient().delete(PublishedPacing.PACING_ZOO_PATH, -1);
+			awaitPacing(lookup, null);
+			check(pacer.getWindowMs() == 100, "Window of " + pacer.getWindowMs() + " ms once the pacing is deleted");
+
+			// Expire the session by closing it from another client, then fail
+			// over before the lookup has a new one
+			ZooKeeper session = lookup.getZooKeeper();
+			ZooKeeper killer = new ZooKeeper(zookeeper.getConnectString(), 10000, new Watcher() {
+
+				@Override
+				public void process(WatchedEvent event) {
+					// Nothing to do
+				}
+			}, session.getSessionId(), session.getSessionPasswd());
+			killer.close();
+			zookeeper.publish("/nameservices/ns1", "nn1c:8020");
+			check("nn1c:8020".equals(changes.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS)), "Failover during the expiry not notified");
+			check(lookup.getZooKeeper() != session, "No new session");
+			check("nn2:8020".equals(lookup.getNamenodeAddress("ns2")), "ns2 lost over the expiry");
+			zookeeper.publish(PublishedPacing.PACING_ZOO_PATH, "fleetSize=20,rate=5");
+			awaitPacing(lookup, "fleetSize=20,rate=5");
+			LOG.info("Federated lookup OK");
+		} finally {
+			lookup.shutdown();
+			zookeeper.shutdown();
+		}
+	}
+
+	private static void awaitPacing(NamenodeLookup lookup, String expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (!equal(lookup.getPacingConfig(), expected) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		check(equal(lookup.getPacingConfig(), expected), "Pacing " + lookup.getPacingConfig() + " instead of " + expected);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package hdfsha;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+
+/**
+ * Exercises {@link RunCoordinator} against an in-process ZooKeeper: clients
+ * arriving at different times must all get the same start time, and the
+ * coordinator must see every result. What an earlier run left must not open
+ * the barrier nor be counted, a result published again replaces the old
+ * one, and a client whose session expires still publishes.
+ */
+public class TestRunCoordinator {
+
+	private static final Logger LOG = Logger.getLogger(TestRunCoordinator.class);
+
+	private static final int CLIENTS = 5;
+	private static final long TIMEOUT_MS = 60000;
+
+	public static void main(String[] args) throws Exception {
+		LocalZooKeeperServer zookeeper = new LocalZooKeeperServer(new File(
+				System.getProperty("java.io.tmpdir"), "test-run-coordinator"));
+		zookeeper.start();
+		final String connectString = zookeeper.getConnectString();
+		final long[] starts = new long[CLIENTS];
+		final long[] arrivals = new long[CLIENTS];
+
+		try {
+			// Left by an earlier run
+			zookeeper.publish("/runs/test/start", "0");
+			zookeeper.publish("/runs/test/results/client-9", "bytesWritten=1");
+			RunCoordinator coordinator = new RunCoordinator(connectString, "test", "coordinator");
+			coordinator.reset();
+			if (zookeeper.getClient().exists("/runs/test/start", false) != null
+					|| !zookeeper.getClient().getChildren("/runs/test/results", false).isEmpty()) {
+				throw new AssertionError("Reset left the earlier run");
+			}
+			// Left again, as if the coordinator had not cleared it
+			zookeeper.publish("/runs/test/start", "0");
+
+			Thread[] clients = new Thread[CLIENTS];
+			for (int i = 0; i < CLIENTS; i++) {
+				final int client = i;
+				clients[i] = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							// Arrive skewed, as ssh loops do
+							Thread.sleep(client * 200L);
+							arrivals[client] = System.currentTimeMillis();
+							RunCoordinator coordinator = new RunCoordinator(connectString, "test", "client-" + client);
+							starts[client] = coordinator.awaitStart(CLIENTS, TIMEOUT_MS);
+							if (client == 0) {
+								coordinator.publishResult(Collections.singletonMap("bytesWritten", 1L));
+							}
+							if (client == 1) {
+								expire(connectString, coordinator.getZooKeeper());
+							}
+							Map<String, Long> summary = new LinkedHashMap<String, Long>();
+							summary.put("startMs", starts[client]);
+							summary.put("endMs", starts[client] + 1000);
+							summary.put("bytesWritten", 1048576L);
+							summary.put("bytesRead", 2 * 1048576L);
+							coordinator.publishResult(summary);
+							coordinator.shutdown();
+						} catch (Exception e) {
+							LOG.error("Client " + client + " failed", e);
+						}
+					}
+				});
+				clients[i].start();
+			}
+
+			Map<String, Map<String, Long>> results = coordinator.awaitResults(CLIENTS, TIMEOUT_MS);
+			coordinator.shutdown();
+			for (Thread client : clients) {
+				client.join();
+			}
+
+			for (int i = 1; i < CLIENTS; i++) {
+				if (starts[i] != starts[0]) {
+					throw new AssertionError("Client " + i + " started at " + starts[i] + " instead of " + starts[0]);
+				}
+			}
+			if (starts[0] < arrivals[CLIENTS - 1]) {
+				throw new AssertionError("Started at " + starts[0] + " before the last client arrived at "
+						+ arrivals[CLIENTS - 1]);
+			}
+			if (results.size() != CLIENTS) {
+				throw new AssertionError("Got " + results.size() + " results instead of " + CLIENTS);
+			}
+			String aggregate = RunCoordinator.aggregate(results);
+			if (!aggregate.contains("bytesWritten=" + CLIENTS * 1048576L)) {
+				throw new AssertionError("Bad aggregate " + aggregate);
+			}
+			LOG.info("Coordinated run OK: " + aggregate);
+		} finally {
+			zookeeper.shutdown();
+		}
+	}
+
+	/**
+	 * Expires the session by closing it from another client
+	 */
+	private static void expire(String connectString, ZooKeeper session) throws Exception {
+		ZooKeeper killer = new ZooKeeper(connectString, 10000, new Watcher() {
+
+			@Override
+			public void process(WatchedEvent event) {
+				// Nothing to do
+			}
+		}, session.getSessionId(), session.getSessionPasswd());
+		killer.close();
+	}
+
+}
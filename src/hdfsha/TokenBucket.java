@@ -0,0 +1,90 @@
+package hdfsha;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side token bucket used to limit the rate of new operations sent to
+ * the namenode. A rate of zero or less disables the limit.
+ *
+ * Threads that find the bucket empty reserve the next token and sleep until
+ * it is due, so waiting threads are served in arrival order without holding
+ * any lock while sleeping.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill;
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param ratePerSecond the sustained number of operations per second
+     * @param burst the maximum number of operations allowed at once
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @return true if the bucket actually limits anything
+     */
+    public boolean isEnabled() {
+        return tokensPerNano > 0;
+    }
+
+    /**
+     * Takes one token, waiting for it if necessary
+     * @return how long we waited in nanoseconds
+     * @throws InterruptedException
+     */
+    public long acquire() throws InterruptedException {
+        if (!isEnabled()) {
+            return 0;
+        }
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+            waits.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            long max;
+            while ((max = maxWaitNanos.get()) < waitNanos
+                    && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+                // retry
+            }
+        }
+        return waitNanos;
+    }
+
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        // Negative tokens are the queue of threads already waiting
+        return (long) (-tokens / tokensPerNano);
+    }
+
+    public long getWaits() {
+        return waits.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+}
@@ -1,4 +1,4 @@
-
+package hdfsha;
 
 import java.util.Random;
 
@@ -0,0 +1,727 @@
+package hdfsha;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs a workload described by a scenario file across worker threads, with
+ * the same failover handling as {@link ClientTest}, and reports throughput
+ * and latency per operation.
+ *
+ * The scenario is a properties file:
+ *
+ * <pre>
+ * root=/workload          # where the files are created
+ * fanout=4                # directories per level
+ * depth=2                 # levels of directories
+ * size=exp:1m             # see SizeDistribution
+ * pread.size=64k          # bytes read by each pread
+ * threads=8
+ * phases=load,mixed
+ * phase.load.duration=60  # seconds
+ * phase.load.mix=create:1
+ * phase.mixed.duration=300
+ * phase.mixed.threads=16
+ * phase.mixed.size=uniform:4k:64m
+ * phase.mixed.mix=create:10,append:5,read:30,pread:10,list:10,stat:25,delete:5,rename:5
+ * cleanup=true            # delete the root at the end
+ * </pre>
+ *
+ * By default workers run closed loop. A phase with <code>rate</code>
+ * (operations per second) or <code>rateMB</code> (MB per second, turned into
+ * operations with the bytes an operation of the mix moves on average, reads
+ * of whole files counted at the mean size) runs open loop instead, see
+ * {@link OpenLoopScheduler}: latency is then measured from the intended start
+ * time and the backlog is reported.
+ *
+ * A delete or rename that returns false counts as an error, as in
+ * {@link MetadataBenchmark}.
+ *
+ * Usage: <code>WorkloadEngine &lt;static|ha|multi&gt; &lt;namenode&gt; &lt;zookeeper&gt; &lt;scenario&gt;</code>
+ */
+public class WorkloadEngine {
+
+    private static final Logger LOG = Logger.getLogger(WorkloadEngine.class);
+
+    private static final int DATA_CHUNK = 64 * 1024;
+
+    enum OpType {
+        CREATE, APPEND, READ, PREAD, LIST, STAT, DELETE, RENAME
+    }
+
+    /**
+     * A phase of the scenario: how long, how many workers and which mix
+     */
+    static final class Phase {
+        final String name;
+        final long durationMs;
+        final int threads;
+        final int[] weights = new int[OpType.values().length];
+        final SizeDistribution sizes;
+        int totalWeight;
+        /** Operations per second for open loop, zero for closed loop */
+        double rate;
+
+        Phase(String name, long durationMs, int threads, SizeDistribution sizes) {
+            this.name = name;
+            this.durationMs = durationMs;
+            this.threads = threads;
+            this.sizes = sizes;
+        }
+
+        OpType pick(Random random) {
+            int value = random.nextInt(totalWeight);
+            for (OpType type : OpType.values()) {
+                value -= weights[type.ordinal()];
+                if (value < 0) {
+                    return type;
+                }
+            }
+            return OpType.CREATE;
+        }
+    }
+
+    /**
+     * What we measured for one kind of operation in a phase
+     */
+    static final class OpStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    /**
+     * A file created by the workload, with the length we think it has
+     */
+    private static final class FileEntry {
+        final Path path;
+        volatile long length;
+
+        FileEntry(Path path, long length) {
+            this.path = path;
+            this.length = length;
+        }
+    }
+
+    private final FailoverHandler failover;
+    private final FailoverFileSystem metadata;
+    private final boolean ownsFileSystem;
+    private final Properties scenario;
+    private final Path root;
+    private final int fanout;
+    private final int depth;
+    private final int preadSize;
+    private final byte[] data;
+    private final List<FileEntry> files = new ArrayList<FileEntry>();
+    private final AtomicLong fileCounter = new AtomicLong();
+
+    public WorkloadEngine(NamenodeLookup lookup, Properties scenario)
+            throws IOException {
+        this(newFileSystem(lookup), scenario, true);
+    }
+
+    /**
+     * Runs on the file system, namenode clients and metadata cache of a
+     * longer lived client, see {@link ClientAgent}, and leaves them open
+     */
+    WorkloadEngine(FailoverFileSystem fs, Properties scenario)
+            throws IOException {
+        this(fs, scenario, false);
+    }
+
+    private WorkloadEngine(FailoverFileSystem fs, Properties scenario,
+            boolean ownsFileSystem) throws IOException {
+        this.failover = fs.getFailover();
+        this.metadata = fs;
+        this.ownsFileSystem = ownsFileSystem;
+        this.scenario = scenario;
+        this.root = new Path(scenario.getProperty("root", "/workload"));
+        this.fanout = Integer.parseInt(scenario.getProperty("fanout", "4"));
+        this.depth = Integer.parseInt(scenario.getProperty("depth", "1"));
+        this.preadSize = (int) SizeDistribution.parseSize(scenario.getProperty(
+                "pread.size", "64k"));
+        this.data = new byte[DATA_CHUNK];
+        InputStream in = new DeadBeefInputStream(1);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) in.read();
+        }
+        in.close();
+    }
+
+    private static FailoverFileSystem newFileSystem(NamenodeLookup lookup) {
+        Configuration conf = new Configuration();
+        conf.setBoolean("fs.hdfs.impl.disable.cache", true);
+        FailoverFileSystem fs = new FailoverFileSystem(lookup, conf);
+        fs.setMetadataCache(MetadataCache.fromProperties());
+        return fs;
+    }
+
+    FailoverHandler getFailover() {
+        return failover;
+    }
+
+    /**
+     * @return the client of the given namenode, one per namenode
+     */
+    FileSystem fileSystem(String namenodeAddress) throws IOException {
+        return metadata.fileSystem(namenodeAddress);
+    }
+
+    List<Phase> parsePhases() {
+        List<Phase> phases = new ArrayList<Phase>();
+        int defaultThreads = Integer.parseInt(scenario.getProperty("threads", "4"));
+        String defaultSize = scenario.getProperty("size", "exp:1m");
+        for (String name : scenario.getProperty("phases", "main").split(",")) {
+            name = name.trim();
+            String prefix = "phase." + name + ".";
+            Phase phase = new Phase(name, TimeUnit.SECONDS.toMillis(Long
+                    .parseLong(scenario.getProperty(prefix + "duration", "60"))),
+                    Integer.parseInt(scenario.getProperty(prefix + "threads",
+                            Integer.toString(defaultThreads))),
+                    SizeDistribution.parse(scenario.getProperty(prefix + "size",
+                            defaultSize)));
+            String mix = scenario.getProperty(prefix + "mix", "create:1,read:1");
+            for (String entry : mix.split(",")) {
+                String[] opWeight = entry.trim().split(":");
+                OpType type = OpType.valueOf(opWeight[0].trim().toUpperCase(Locale.ENGLISH));
+                int weight = opWeight.length > 1 ? Integer.parseInt(opWeight[1].trim()) : 1;
+                phase.weights[type.ordinal()] += weight;
+                phase.totalWeight += weight;
+            }
+            if (scenario.getProperty(prefix + "rate") != null) {
+                phase.rate = Double.parseDouble(scenario.getProperty(prefix + "rate"));
+            }
+            if (phase.totalWeight <= 0) {
+                throw new IllegalArgumentException("Phase " + name + " has no operations");
+            }
+            if (phase.rate == 0 && scenario.getProperty(prefix + "rateMB") != null) {
+                double bytesPerOp = meanBytesPerOp(phase);
+                if (bytesPerOp <= 0) {
+                    throw new IllegalArgumentException("Phase " + name
+                            + " moves no data, give it a rate instead of rateMB");
+                }
+                phase.rate = Double.parseDouble(scenario.getProperty(prefix + "rateMB"))
+                        * 1048576 / bytesPerOp;
+            }
+            phases.add(phase);
+        }
+        return phases;
+    }
+
+    /**
+     * @return the bytes an operation of the phase moves on average: only
+     * data operations move any, a pread its own size and the others a file
+     */
+    double meanBytesPerOp(Phase phase) {
+        double bytes = 0;
+        for (OpType type : OpType.values()) {
+            int weight = phase.weights[type.ordinal()];
+            switch (type) {
+                case CREATE:
+                case APPEND:
+                case READ:
+                    bytes += weight * phase.sizes.mean();
+                    break;
+                case PREAD:
+                    bytes += weight * (double) preadSize;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return bytes / phase.totalWeight;
+    }
+
+    //========================================================================
+    // Namespace
+    //========================================================================
+
+    private void createDirectories() throws IOException, InterruptedException {
+        int leaves = 1;
+        for (int i = 0; i < depth; i++) {
+            leaves *= fanout;
+        }
+        for (int leaf = 0; leaf < leaves; leaf++) {
+            final Path dir = directory(leaf);
+            failover.execute("mkdirs " + dir, new FailoverHandler.Attempt<Boolean>() {
+
+                @Override
+                public Boolean run(String namenodeAddress) throws IOException {
+                    return fileSystem(namenodeAddress).mkdirs(dir);
+                }
+            });
+        }
+    }
+
+    private Path directory(int leaf) {
+        Path dir = root;
+        for (int level = 0; level < depth; level++) {
+            dir = new Path(dir, "d" + (leaf % fanout));
+            leaf /= fanout;
+        }
+        return dir;
+    }
+
+    private Path randomDirectory(Random random) {
+        int leaves = 1;
+        for (int i = 0; i < depth; i++) {
+            leaves *= fanout;
+        }
+        return directory(random.nextInt(leaves));
+    }
+
+    private Path newFile(Random random) {
+        return new Path(randomDirectory(random), "f-"
+                + Thread.currentThread().getId() + "-"
+                + fileCounter.incrementAndGet());
+    }
+
+    private FileEntry pickFile(Random random, boolean remove)
+            throws FileNotFoundException {
+        synchronized (files) {
+            if (files.isEmpty()) {
+                // Another worker took the last one
+                throw new FileNotFoundException("No file left to operate on");
+            }
+            int index = random.nextInt(files.size());
+            if (!remove) {
+                return files.get(index);
+            }
+            // Swap with the last one so removal is constant time
+            FileEntry entry = files.get(index);
+            files.set(index, files.get(files.size() - 1));
+            files.remove(files.size() - 1);
+            return entry;
+        }
+    }
+
+    private void addFile(FileEntry entry) {
+        synchronized (files) {
+            files.add(entry);
+        }
+    }
+
+    private boolean hasFiles() {
+        synchronized (files) {
+            return !files.isEmpty();
+        }
+    }
+
+    //========================================================================
+    // Operations
+    //========================================================================
+
+    /**
+     * Operations on existing files become creates while there are none
+     */
+    OpType resolve(OpType type) {
+        if (type != OpType.CREATE && type != OpType.LIST && !hasFiles()) {
+            return OpType.CREATE;
+        }
+        return type;
+    }
+
+    /**
+     * Runs one operation, retrying it across failovers
+     * @return the number of bytes moved
+     */
+    long execute(OpType type, Phase phase, final Random random)
+            throws IOException, InterruptedException {
+        switch (type) {
+            case CREATE: {
+                final Path path = newFile(random);
+                final long size = phase.sizes.next(random);
+                failover.execute("create " + path, new FailoverHandler.Attempt<Void>() {
+
+                    @Override
+                    public Void run(String namenodeAddress) throws IOException {
+                        write(fileSystem(namenodeAddress).create(path, true), size);
+                        return null;
+                    }
+                });
+                // Written outside of the metadata file system
+                metadata.invalidate(path);
+                addFile(new FileEntry(path, size));
+                return size;
+            }
+            case APPEND: {
+                final FileEntry entry = pickFile(random, true);
+                final long size = phase.sizes.next(random);
+                try {
+                    failover.execute("append " + entry.path, new FailoverHandler.Attempt<Void>() {
+
+                        @Override
+                        public Void run(String namenodeAddress) throws IOException {
+                            write(fileSystem(namenodeAddress).append(entry.path), size);
+                            return null;
+                        }
+                    });
+                    entry.length += size;
+                } finally {
+                    metadata.invalidate(entry.path);
+                    // Taken out while appending, so nobody deletes it meanwhile
+                    addFile(entry);
+                }
+                return size;
+            }
+            case READ: {
+                final FileEntry entry = pickFile(random, false);
+                return failover.execute("read " + entry.path, new FailoverHandler.Attempt<Long>() {
+
+                    @Override
+                    public Long run(String namenodeAddress) throws IOException {
+                        return read(fileSystem(namenodeAddress).open(entry.path));
+                    }
+                });
+            }
+            case PREAD: {
+                final FileEntry entry = pickFile(random, false);
+                final long position = entry.length <= preadSize ? 0
+                        : (long) (random.nextDouble() * (entry.length - preadSize));
+                return failover.execute("pread " + entry.path, new FailoverHandler.Attempt<Long>() {
+
+                    @Override
+                    public Long run(String namenodeAddress) throws IOException {
+                        FSDataInputStream in = fileSystem(namenodeAddress).open(entry.path);
+                        ByteBuffer buffer = BufferPool.get().acquire(false, preadSize);
+                        try {
+                            int read = in.read(position, buffer.array(), 0, preadSize);
+                            return (long) Math.max(read, 0);
+                        } finally {
+                            BufferPool.get().release(buffer);
+                            in.close();
+                        }
+                    }
+                });
+            }
+            case LIST: {
+                metadata.listStatus(randomDirectory(random));
+                return 0;
+            }
+            case STAT: {
+                metadata.getFileStatus(pickFile(random, false).path);
+                return 0;
+            }
+            case DELETE: {
+                Path path = pickFile(random, true).path;
+                if (!metadata.delete(path, false)) {
+                    throw new IOException("Delete of " + path + " returned false");
+                }
+                return 0;
+            }
+            case RENAME: {
+                FileEntry entry = pickFile(random, true);
+                Path target = newFile(random);
+                boolean renamed = false;
+                try {
+                    renamed = metadata.rename(entry.path, target);
+                } finally {
+                    addFile(renamed ? new FileEntry(target, entry.length) : entry);
+                }
+                if (!renamed) {
+                    throw new IOException("Rename of " + entry.path + " to " + target + " returned false");
+                }
+                return 0;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown operation " + type);
+        }
+    }
+
+    /**
+     * Writes and closes the stream as an in-flight transfer
+     */
+    private void write(FSDataOutputStream out, long size) throws IOException {
+        int epochBefore = failover.getEpoch();
+        InFlightTransfers.Transfer transfer = failover.getTransfers().register(out);
+        boolean closed = false;
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                int len = (int) Math.min(data.length, remaining);
+                out.write(data, 0, len);
+                remaining -= len;
+                failover.checkFailover(epochBefore);
+            }
+            out.close();
+            closed = true;
+        } catch (IOException e) {
+            if (transfer.isCancelled()) {
+                throw new NameNodeChangedException();
+            }
+            throw e;
+        } finally {
+            failover.getTransfers().unregister(transfer);
+            if (!closed) {
+                closeInBackground(out);
+            }
+        }
+    }
+
+    /**
+     * Reads and closes the stream as an in-flight transfer
+     * @return the bytes read
+     */
+    private long read(FSDataInputStream in) throws IOException {
+        int epochBefore = failover.getEpoch();
+        InFlightTransfers.Transfer transfer = failover.getTransfers().register(in);
+        ByteBuffer pooled = BufferPool.get().acquire(false, DATA_CHUNK);
+        byte[] buffer = pooled.array();
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer, 0, DATA_CHUNK)) != -1) {
+                total += read;
+                failover.checkFailover(epochBefore);
+            }
+            return total;
+        } catch (IOException e) {
+            if (transfer.isCancelled()) {
+                throw new NameNodeChangedException();
+            }
+            throw e;
+        } finally {
+            BufferPool.get().release(pooled);
+            failover.getTransfers().unregister(transfer);
+            closeInBackground(in);
+        }
+    }
+
+    /**
+     * Closing may block on a dead namenode, as explained in {@link FailoverTest}
+     */
+    private static void closeInBackground(final Closeable stream) {
+        new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    stream.close();
+                } catch (Exception e) {
+                    // Nothing to do
+                }
+            }
+        }, "Cleanup-Workload").start();
+    }
+
+    //========================================================================
+    // Phases
+    //========================================================================
+
+    /**
+     * Runs the phase with closed loop workers: each starts an operation as
+     * soon as the previous one finishes
+     */
+    Map<OpType, OpStats> runPhase(final Phase phase) throws InterruptedException {
+        final Map<OpType, OpStats> stats = newStats();
+        final long deadline = System.currentTimeMillis() + phase.durationMs;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < phase.threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    while (System.currentTimeMillis() < deadline
+                            && !Thread.currentThread().isInterrupted()) {
+                        OpType type = resolve(phase.pick(random));
+                        long start = System.nanoTime();
+                        runOperation(type, phase, random, stats, start);
+                    }
+                }
+            }, "Workload-" + phase.name + "-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return stats;
+    }
+
+    /**
+     * Runs the phase open loop: operations are issued at the phase rate no
+     * matter how long they take
+     */
+    Map<OpType, OpStats> runPhaseOpenLoop(final Phase phase)
+            throws InterruptedException {
+        final Map<OpType, OpStats> stats = newStats();
+        final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+
+            @Override
+            protected Random initialValue() {
+                return new Random();
+            }
+        };
+        OpenLoopScheduler scheduler = new OpenLoopScheduler(phase.rate,
+                phase.threads);
+        scheduler.run(new OpenLoopScheduler.Task() {
+
+            @Override
+            public void run(long intendedStartNanos) {
+                Random random = randoms.get();
+                runOperation(resolve(phase.pick(random)), phase, random, stats,
+                        intendedStartNanos);
+            }
+        }, phase.durationMs);
+
+        for (String line : scheduler.backlogReport()) {
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%d workload: phase=%s, event=backlog, %s",
+                    System.currentTimeMillis(), phase.name, line));
+        }
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d workload: phase=%s, event=openloop, targetOpsPerSec=%.1f, issued=%d, maxBacklog=%d",
+                System.currentTimeMillis(), phase.name, phase.rate,
+                scheduler.getIssued(), scheduler.getMaxBacklog()));
+        return stats;
+    }
+
+    /**
+     * Runs an operation and records its latency since the given start
+     */
+    void runOperation(OpType type, Phase phase, Random random,
+            Map<OpType, OpStats> stats, long startNanos) {
+        OpStats opStats = stats.get(type);
+        try {
+            long bytes = execute(type, phase, random);
+            opStats.latency.record(System.nanoTime() - startNanos);
+            opStats.bytes.addAndGet(bytes);
+            if (type == OpType.READ || type == OpType.PREAD) {
+                Metrics.get().bytesRead(bytes);
+            } else {
+                Metrics.get().bytesWritten(bytes);
+            }
+        } catch (IOException e) {
+            LOG.warn("Operation " + type + " failed", e);
+            opStats.errors.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static Map<OpType, OpStats> newStats() {
+        Map<OpType, OpStats> stats = new HashMap<OpType, OpStats>();
+        for (OpType type : OpType.values()) {
+            stats.put(type, new OpStats());
+        }
+        return stats;
+    }
+
+    void report(Phase phase, Map<OpType, OpStats> stats, double seconds) {
+        for (OpType type : OpType.values()) {
+            OpStats opStats = stats.get(type);
+            long ops = opStats.latency.getCount();
+            if (ops == 0 && opStats.errors.get() == 0) {
+                continue;
+            }
+            System.out.println(String.format(Locale.ENGLISH,
+                    "%d workload: phase=%s, op=%s, ops=%d, opsPerSec=%.1f, MBPerSec=%.2f, errors=%d, %s",
+                    System.currentTimeMillis(), phase.name,
+                    type.name().toLowerCase(Locale.ENGLISH), ops, ops / seconds,
+                    opStats.bytes.get() / 1048576.0 / seconds,
+                    opStats.errors.get(), opStats.latency.summary()));
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        createDirectories();
+        for (Phase phase : parsePhases()) {
+            LOG.info("Starting phase " + phase.name);
+            long start = System.nanoTime();
+            Map<OpType, OpStats> stats = phase.rate > 0 ? runPhaseOpenLoop(phase)
+                    : runPhase(phase);
+            report(phase, stats, (System.nanoTime() - start) / 1e9);
+        }
+        System.out.println(String.format(Locale.ENGLISH,
+                "%d workload: event=end, failovers=%d, retries=%d, %s",
+                System.currentTimeMillis(), failover.getEpoch(),
+                failover.getRetries(), failover.getPacer().report()));
+        System.out.println(String.format(Locale.ENGLISH, "%d workload: event=bufferpool, %s",
+                System.currentTimeMillis(), BufferPool.get().report()));
+        for (String line : metadata.report()) {
+            System.out.println(String.format(Locale.ENGLISH, "%d workload: event=metadata, %s",
+                    System.currentTimeMillis(), line));
+        }
+        if (metadata.getMetadataCache() != null) {
+            System.out.println(String.format(Locale.ENGLISH, "%d workload: event=metadataCache, %s",
+                    System.currentTimeMillis(), metadata.getMetadataCache().report()));
+        }
+
+        if (Boolean.parseBoolean(scenario.getProperty("cleanup", "false"))) {
+            failover.execute("cleanup " + root, new FailoverHandler.Attempt<Boolean>() {
+
+                @Override
+                public Boolean run(String namenodeAddress) throws IOException {
+                    return fileSystem(namenodeAddress).delete(root, true);
+                }
+            });
+        }
+    }
+
+    void close() {
+        if (!ownsFileSystem) {
+            return;
+        }
+        try {
+            metadata.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    static Properties loadScenario(String file) throws IOException {
+        Properties scenario = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            scenario.load(in);
+        } finally {
+            in.close();
+        }
+        return scenario;
+    }
+
+    public static void main(String... args) throws IOException,
+            InterruptedException {
+        if (args.length != 4) {
+            System.err.println("Usage: WorkloadEngine <static|ha|multi> <namenode> <zookeeper> <scenario>");
+            System.exit(1);
+        }
+        int nnLookupType = NamenodeLookup.STATIC;
+        if (args[0].equalsIgnoreCase("ha")) {
+            nnLookupType = NamenodeLookup.HA;
+        } else if (args[0].equalsIgnoreCase("multi")) {
+            nnLookupType = NamenodeLookup.MULTI;
+        }
+        Metrics.get().publish();
+        NamenodeLookup lookup = NamenodeLookupFactory.create(nnLookupType,
+                args[1], args[2]);
+        WorkloadEngine engine = new WorkloadEngine(lookup, loadScenario(args[3]));
+        try {
+            engine.run();
+        } finally {
+            engine.close();
+            lookup.shutdown();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package hdfsha;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Copies a stream to another with two threads: a producer reads the source
+ * into buffers taken from a bounded ring, and the calling thread writes
+ * them to the destination. Generating the data and writing it to the
+ * network then overlap, instead of taking turns on a single thread.
+ *
+ * The time each side spends waiting on the other tells which one limits
+ * the copy:
+ * <ul>
+ * <li>the writer waiting for full buffers means the client is the limit
+ * (producer-bound)</li>
+ * <li>the producer waiting for free buffers is backpressure from the
+ * destination (I/O-bound)</li>
+ * </ul>
+ *
+ * A pipeline is used for a single copy. The calling thread can be
+ * interrupted, e.g. by {@link InFlightTransfers}, and then the producer is
+ * stopped as well.
+ */
+public class WritePipeline {
+
+    /**
+     * Called by the writing thread after every buffer written and flushed,
+     * e.g. to count progress or to abort on failover
+     */
+    public interface Listener {
+        void written(int bytes) throws IOException;
+    }
+
+    private static final class Chunk {
+        final ByteBuffer buffer;
+        final byte[] data;
+        int length;
+
+        Chunk(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.data = buffer == null ? null : buffer.array();
+        }
+    }
+
+    // Marks the end of the source in the full queue
+    private static final Chunk END = new Chunk(null);
+
+    private final int buffers;
+    private final int bufferSize;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> full;
+    private volatile IOException producerError;
+
+    private volatile long produceNanos;
+    private volatile long backpressureNanos;
+    private long writeNanos;
+    private long starvedNanos;
+    private long bytes;
+    private int maxQueued;
+
+    /**
+     * @param buffers how many buffers are in the ring
+     * @param bufferSize the size of each buffer, and so of every write
+     */
+    public WritePipeline(int buffers, int bufferSize) {
+        this.buffers = buffers;
+        this.bufferSize = bufferSize;
+        free = new ArrayBlockingQueue<Chunk>(buffers);
+        full = new ArrayBlockingQueue<Chunk>(buffers + 1);
+    }
+
+    /**
+     * Sized by the <code>pipeline.buffers</code> and
+     * <code>pipeline.bufferKB</code> properties
+     */
+    public static WritePipeline fromProperties() {
+        return new WritePipeline(Integer.getInteger("pipeline.buffers", 4),
+                Integer.getInteger("pipeline.bufferKB", 64) * 1024);
+    }
+
+    /**
+     * Copies until the end of the source. Every buffer is flushed after
+     * being written. The ring is leased from {@link BufferPool} for the
+     * duration of the copy.
+     * @param listener may be null
+     */
+    public void copy(final InputStream in, OutputStream out, Listener listener)
+            throws IOException {
+        List<Chunk> ring = new ArrayList<Chunk>(buffers);
+        try {
+            for (int i = 0; i < buffers; i++) {
+                Chunk chunk = new Chunk(BufferPool.get().acquire(false, bufferSize));
+                ring.add(chunk);
+                free.add(chunk);
+            }
+            doCopy(in, out, listener);
+        } finally {
+            for (Chunk chunk : ring) {
+                BufferPool.get().release(chunk.buffer);
+            }
+        }
+    }
+
+    private void doCopy(final InputStream in, OutputStream out, Listener listener)
+            throws IOException {
+        Thread producer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                produce(in);
+            }
+        }, "Producer-" + Thread.currentThread().getName());
+        producer.setDaemon(true);
+        producer.start();
+
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                maxQueued = Math.max(maxQueued, full.size());
+                Chunk chunk = full.take();
+                long writeStart = System.nanoTime();
+                starvedNanos += writeStart - waitStart;
+                if (chunk == END) {
+                    break;
+                }
+                out.write(chunk.data, 0, chunk.length);
+                out.flush();
+                writeNanos += System.nanoTime() - writeStart;
+                bytes += chunk.length;
+                int length = chunk.length;
+                free.put(chunk);
+                if (listener != null) {
+                    listener.written(length);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipelined write interrupted");
+        } finally {
+            producer.interrupt();
+            // The producer must be done with the ring before it is released
+            joinUninterruptibly(producer);
+        }
+        if (producerError != null) {
+            throw producerError;
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void produce(InputStream in) {
+        try {
+            while (true) {
+                long waitStart = System.nanoTime();
+                Chunk chunk = free.take();
+                long readStart = System.nanoTime();
+                backpressureNanos += readStart - waitStart;
+
+                int length = 0;
+                int read = 0;
+                while (length < bufferSize
+                        && (read = in.read(chunk.data, length, bufferSize - length)) != -1) {
+                    length += read;
+                }
+                produceNanos += System.nanoTime() - readStart;
+                if (length > 0) {
+                    chunk.length = length;
+                    full.put(chunk);
+                }
+                if (read == -1) {
+                    full.put(END);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            producerError = e;
+            full.offer(END);
+        } catch (InterruptedException e) {
+            // The writer gave up
+        }
+    }
+
+    /**
+     * @return bytes written so far
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return how long the writer waited for the producer, in ms
+     */
+    public long getProducerBoundMillis() {
+        return starvedNanos / 1000000;
+    }
+
+    /**
+     * @return how long the producer waited for the writer, in ms
+     */
+    public long getIoBoundMillis() {
+        return backpressureNanos / 1000000;
+    }
+
+    /**
+     * @return the stall breakdown of the copy, to be called once it finished
+     */
+    public String report() {
+        long producerBound = getProducerBoundMillis();
+        long ioBound = getIoBoundMillis();
+        return String.format(Locale.ENGLISH,
+                "bytes=%d, produceMs=%d, writeMs=%d, producerBoundMs=%d, ioBoundMs=%d, maxQueued=%d, bound=%s",
+                bytes, produceNanos / 1000000, writeNanos / 1000000,
+                producerBound, ioBound, maxQueued,
+                producerBound > ioBound ? "producer" : "io");
+    }
+}